@@ -20,6 +20,8 @@ import com.kieronquinn.app.ambientmusicmod.repositories.AmbientServiceRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.AmbientServiceRepositoryImpl
 import com.kieronquinn.app.ambientmusicmod.repositories.ApiRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.ApiRepositoryImpl
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepositoryImpl
 import com.kieronquinn.app.ambientmusicmod.repositories.BackupRestoreRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.BackupRestoreRepositoryImpl
 import com.kieronquinn.app.ambientmusicmod.repositories.BatteryOptimisationRepository
@@ -34,8 +36,14 @@ import com.kieronquinn.app.ambientmusicmod.repositories.ExternalAccessRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.ExternalAccessRepositoryImpl
 import com.kieronquinn.app.ambientmusicmod.repositories.JobsRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.JobsRepositoryImpl
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepositoryImpl
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepositoryImpl
 import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepositoryImpl
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionScheduleRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionScheduleRepositoryImpl
 import com.kieronquinn.app.ambientmusicmod.repositories.RemoteSettingsRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.RemoteSettingsRepositoryImpl
 import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository
@@ -140,6 +148,7 @@ import com.kieronquinn.app.ambientmusicmod.ui.screens.updates.country.CountryPic
 import com.kieronquinn.app.ambientmusicmod.ui.screens.updates.country.CountryPickerViewModelImpl
 import com.kieronquinn.app.ambientmusicmod.ui.screens.updates.download.UpdatesDownloadViewModel
 import com.kieronquinn.app.ambientmusicmod.ui.screens.updates.download.UpdatesDownloadViewModelImpl
+import com.kieronquinn.app.ambientmusicmod.utils.alarm.WakeupCounter
 import com.kieronquinn.monetcompat.core.MonetCompat
 import dagger.hilt.android.HiltAndroidApp
 import io.noties.markwon.AbstractMarkwonPlugin
@@ -164,15 +173,19 @@ class AmbientMusicMod: Application() {
         single<ContainerNavigation> { ContainerNavigationImpl() }
         single<TracklistNavigation> { TracklistNavigationImpl() }
         single<SetupNavigation> { SetupNavigationImpl() }
-        single<ShizukuServiceRepository> { ShizukuServiceRepositoryImpl(get(), get()) }
+        single<ShizukuServiceRepository> { ShizukuServiceRepositoryImpl(get(), get(), get()) }
         single<AmbientServiceRepository> { AmbientServiceRepositoryImpl(get()) }
+        single<RecognitionEventRepository> { RecognitionEventRepositoryImpl() }
         single<RecognitionRepository> { RecognitionRepositoryImpl(get(), get(), get()) }
+        single<MusicPresenceRepository> { MusicPresenceRepositoryImpl(get(), get()) }
+        single<RecognitionScheduleRepository> { RecognitionScheduleRepositoryImpl(get(), get()) }
+        single<AudioContextRepository> { AudioContextRepositoryImpl(get(), get()) }
         single<RemoteSettingsRepository> { RemoteSettingsRepositoryImpl(get(), get(), get(), get(), get(), get(), get(), get()) }
         single<AccessibilityRepository> { AccessibilityRepositoryImpl(get()) }
         single<BedtimeRepository> { BedtimeRepositoryImpl(get(), get()) }
         single<ShardsRepository> { ShardsRepositoryImpl(get(), get(), get()) }
         single<UpdatesRepository> { UpdatesRepositoryImpl(get(), get()) }
-        single<WidgetRepository>(createdAtStart = true) { WidgetRepositoryImpl(get(), get(), get(), get()) }
+        single<WidgetRepository>(createdAtStart = true) { WidgetRepositoryImpl(get(), get(), get(), get(), get()) }
         single<BackupRestoreRepository> { BackupRestoreRepositoryImpl(get(), get(), get(), get(), get()) }
         single<BatteryOptimisationRepository> { BatteryOptimisationRepositoryImpl(get()) }
         single<JobsRepository>(createdAtStart = true) { JobsRepositoryImpl(get(), get(), get()) }
@@ -180,6 +193,7 @@ class AmbientMusicMod: Application() {
         single { BlurProvider.getBlurProvider(resources) }
         single { createMarkwon() }
         single { Gson() }
+        single { WakeupCounter() }
     }
 
     private val viewModelsModule = module {
@@ -200,7 +214,7 @@ class AmbientMusicMod: Application() {
         viewModel<SettingsRecognitionPeriodViewModel> { SettingsRecognitionPeriodViewModelImpl(get()) }
         viewModel<SettingsRecognitionBufferViewModel> { SettingsRecognitionBufferViewModelImpl(get()) }
         viewModel<SettingsBedtimeViewModel> { SettingsBedtimeViewModelImpl(get()) }
-        viewModel<SettingsAdvancedViewModel> { SettingsAdvancedViewModelImpl(get(), get(), get(), get()) }
+        viewModel<SettingsAdvancedViewModel> { SettingsAdvancedViewModelImpl(get(), get(), get(), get(), get(), get(), get()) }
         viewModel<SettingsAdvancedGainBottomSheetViewModel> { SettingsAdvancedGainBottomSheetViewModelImpl(get(), get()) }
         viewModel<UpdatesViewModel> { UpdatesViewModelImpl(get(), get(), get(), get(), get(), get(), get()) }
         viewModel<UpdatesDownloadViewModel> { UpdatesDownloadViewModelImpl(get(), get(), get()) }
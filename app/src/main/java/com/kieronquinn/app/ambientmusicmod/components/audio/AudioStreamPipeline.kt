@@ -0,0 +1,189 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+import android.os.Process
+import android.os.SystemClock
+import java.io.IOException
+import java.io.OutputStream
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ *  Two stage audio pipeline. A capture thread running at audio priority reads chunks from the
+ *  [AudioSource] into a bounded queue, and the calling thread drains that queue into an
+ *  [OutputStream]. A slow consumer of the stream is absorbed by the queued chunks, if they are
+ *  all filled the capture thread waits for the consumer to free one rather than dropping audio,
+ *  while the source's own buffer (the `AudioRecord`'s) keeps recording.
+ *
+ *  Chunks are allocated once when the pipeline is created and recycled, so a running pipeline
+ *  does not allocate.
+ */
+class AudioStreamPipeline(
+    private val chunkSize: Int,
+    chunkCount: Int = DEFAULT_CHUNK_COUNT
+) {
+
+    companion object {
+        private const val DEFAULT_CHUNK_COUNT = 8
+        private const val POLL_TIMEOUT = 100L
+
+        /**
+         *  Chunks that wait longer than this in the queue before being written are counted as
+         *  late.
+         */
+        private const val LATE_CHUNK_THRESHOLD = 500L
+    }
+
+    /**
+     *  Reads up to `size` bytes into `buffer`, returning the number read or a negative error code.
+     */
+    fun interface AudioSource {
+        fun read(buffer: ByteArray, size: Int): Int
+    }
+
+    data class Stats(
+        val capturedChunks: Long,
+        val writtenChunks: Long,
+        val stalledReads: Long,
+        val lateChunks: Long,
+        val capturedBytes: Long,
+        val isCancelled: Boolean
+    )
+
+    private class Chunk(val data: ByteArray) {
+        var offset = 0
+        var length = 0
+        var capturedAt = 0L
+    }
+
+    private val freeChunks = ArrayBlockingQueue<Chunk>(chunkCount)
+    private val filledChunks = ArrayBlockingQueue<Chunk>(chunkCount)
+
+    @Volatile
+    private var isCapturing = false
+
+    @Volatile
+    private var isCancelled = false
+
+    @Volatile
+    private var capturedChunks = 0L
+    @Volatile
+    private var writtenChunks = 0L
+    @Volatile
+    private var stalledReads = 0L
+    @Volatile
+    private var lateChunks = 0L
+    @Volatile
+    private var capturedBytes = 0L
+
+    init {
+        repeat(chunkCount) {
+            freeChunks.add(Chunk(ByteArray(chunkSize)))
+        }
+    }
+
+    val stats
+        get() = Stats(
+            capturedChunks, writtenChunks, stalledReads, lateChunks, capturedBytes, isCancelled
+        )
+
+    /**
+     *  Stops capture after the current read and drops any audio that has not been written yet.
+     *  Safe to call from any thread. To stop without waiting for a blocking read to fill, the
+     *  caller should also stop the underlying source.
+     */
+    fun cancel() {
+        isCancelled = true
+        isCapturing = false
+    }
+
+    /**
+     *  Streams up to [maxBytes] from [source] into [outputStream], skipping the first
+     *  [ignoreBytes]. Capture stops early when [shouldContinue] returns false, the source returns
+     *  an error, or writing fails. Blocks until all captured audio has been written.
+     */
+    @Throws(IOException::class)
+    fun run(
+        source: AudioSource,
+        outputStream: OutputStream,
+        maxBytes: Int,
+        ignoreBytes: Int,
+        shouldContinue: () -> Boolean
+    ) {
+        if(isCancelled) return
+        isCapturing = true
+        val captureThread = Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO)
+            try {
+                capture(source, maxBytes, ignoreBytes, shouldContinue)
+            } finally {
+                isCapturing = false
+            }
+        }, "AudioStreamPipeline")
+        captureThread.start()
+        try {
+            write(outputStream)
+        } finally {
+            //Stop capturing if writing failed, the thread exits after its current read
+            isCapturing = false
+            captureThread.join()
+        }
+    }
+
+    private fun capture(
+        source: AudioSource,
+        maxBytes: Int,
+        ignoreBytes: Int,
+        shouldContinue: () -> Boolean
+    ) {
+        var remainingIgnoreBytes = ignoreBytes
+        var totalBytesRead = 0
+        while (isCapturing && !isCancelled && totalBytesRead < maxBytes && shouldContinue()) {
+            val chunk = freeChunks.poll() ?: run {
+                //Consumer is behind, wait for it to free a chunk rather than dropping queued audio
+                stalledReads++
+                freeChunks.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS)
+            } ?: continue
+            val bytesRead = source.read(chunk.data, chunkSize)
+            if (bytesRead < 0 || isCancelled) {
+                freeChunks.offer(chunk)
+                break
+            }
+            totalBytesRead += bytesRead
+            capturedBytes += bytesRead
+            // If we are ignoring the first x bytes, only pass on the bytes we shouldn't skip.
+            val skip = remainingIgnoreBytes.coerceIn(0, bytesRead)
+            remainingIgnoreBytes -= skip
+            if (bytesRead - skip <= 0) {
+                freeChunks.offer(chunk)
+                continue
+            }
+            chunk.offset = skip
+            chunk.length = bytesRead - skip
+            chunk.capturedAt = SystemClock.elapsedRealtime()
+            capturedChunks++
+            filledChunks.offer(chunk)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun write(outputStream: OutputStream) {
+        while (isCapturing || filledChunks.isNotEmpty()) {
+            val chunk = filledChunks.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS) ?: continue
+            if (isCancelled) {
+                //The result is already in, the remaining audio is no longer wanted
+                freeChunks.offer(chunk)
+                continue
+            }
+            if (SystemClock.elapsedRealtime() - chunk.capturedAt > LATE_CHUNK_THRESHOLD) {
+                lateChunks++
+            }
+            try {
+                outputStream.write(chunk.data, chunk.offset, chunk.length)
+                writtenChunks++
+            } finally {
+                freeChunks.offer(chunk)
+            }
+        }
+    }
+
+}
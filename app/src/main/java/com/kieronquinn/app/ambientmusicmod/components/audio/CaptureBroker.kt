@@ -0,0 +1,250 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+import android.media.AudioFormat
+import android.media.AudioRecord
+import android.os.Process
+import android.util.Log
+import java.io.Closeable
+
+/**
+ *  Owns a single `AudioRecord` and fans its audio out to any number of [Subscription]s, so
+ *  overlapping recordings share one microphone session rather than blocking each other.
+ *
+ *  Captured audio is written once into a circular buffer of [bufferSeconds]. Each subscription
+ *  keeps its own cursor into that buffer, along with its own start offset and length, and reads
+ *  block until audio is available. A subscriber that falls more than the buffer behind skips to
+ *  the oldest available audio, which is counted in [Subscription.overruns].
+ *
+ *  Recording starts with the first subscription and stops when the last one is closed.
+ *  [onCaptureStateChanged] is called before recording starts and after it stops, so anything
+ *  else using the microphone can get out of the way.
+ */
+class CaptureBroker(
+    val audioFormat: AudioFormat,
+    bufferSeconds: Int = DEFAULT_BUFFER_SECONDS,
+    private val onCaptureStateChanged: (isCapturing: Boolean) -> Unit = {},
+    private val createAudioRecord: (audioFormat: AudioFormat, bufferSizeInBytes: Int) -> AudioRecord
+) {
+
+    companion object {
+        private const val TAG = "CaptureBroker"
+        private const val DEFAULT_BUFFER_SECONDS = 4
+
+        //Number of reads per second from the AudioRecord, each read wakes any waiting subscribers
+        private const val READS_PER_SECOND = 20
+
+        private const val BYTES_PER_SAMPLE = 2
+    }
+
+    private val samplesPerSecond =
+        audioFormat.sampleRate * audioFormat.channelCount.coerceAtLeast(1)
+    private val readSize = samplesPerSecond / READS_PER_SECOND
+    private val capacity = samplesPerSecond * bufferSeconds
+    private val buffer = ShortArray(capacity)
+    private val readBuffer = ShortArray(readSize)
+
+    //Guards starting and stopping the recording, held while waiting for the capture thread
+    private val stateLock = Object()
+    //Guards the buffer and cursors, never held while waiting on the AudioRecord
+    private val lock = Object()
+
+    private val subscriptions = ArrayList<Subscription>()
+    private var audioRecord: AudioRecord? = null
+    private var captureThread: Thread? = null
+    private var nextSubscriptionId = -1
+
+    //Total samples written, guarded by lock
+    private var writeCursor = 0L
+    //Cursor the current recording started at, history before this is from an older recording
+    private var recordingStartCursor = 0L
+    private var isCapturing = false
+
+    fun matches(format: AudioFormat): Boolean {
+        return format.sampleRate == audioFormat.sampleRate &&
+                format.encoding == audioFormat.encoding &&
+                format.channelMask == audioFormat.channelMask
+    }
+
+    /**
+     *  Subscribes to the shared recording, starting it if needed. The subscription starts
+     *  [historyInSamples] before the current position (limited to what is buffered from the
+     *  current recording) and ends after [lengthInSamples]. Returns null if recording could not
+     *  be started.
+     */
+    fun subscribe(
+        historyInSamples: Int = 0,
+        lengthInSamples: Long = Long.MAX_VALUE
+    ): Subscription? = synchronized(stateLock) {
+        //Restart the recording if it has failed since it was started
+        if(audioRecord != null && !synchronized(lock) { isCapturing }) stopCapture()
+        if(audioRecord == null && !startCapture()) return null
+        synchronized(lock) {
+            val available = (writeCursor - recordingStartCursor).coerceAtMost(capacity.toLong())
+            val history = historyInSamples.toLong().coerceIn(0L, available)
+            Subscription(nextSubscriptionId--, writeCursor - history, lengthInSamples).also {
+                subscriptions.add(it)
+            }
+        }
+    }
+
+    private fun startCapture(): Boolean {
+        onCaptureStateChanged(true)
+        val record = try {
+            createAudioRecord(audioFormat, capacity * BYTES_PER_SAMPLE).apply {
+                startRecording()
+            }
+        }catch (e: Exception) {
+            Log.e(TAG, "Failed to start shared recording", e)
+            onCaptureStateChanged(false)
+            return false
+        }
+        synchronized(lock) {
+            recordingStartCursor = writeCursor
+            isCapturing = true
+        }
+        audioRecord = record
+        captureThread = Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO)
+            capture(record)
+        }, TAG).also {
+            it.start()
+        }
+        return true
+    }
+
+    private fun stopCapture() {
+        val record = audioRecord ?: return
+        //Stopping the record unblocks any pending read, so the thread can exit
+        try {
+            record.stop()
+        }catch (e: IllegalStateException) {
+            //Not started
+        }
+        captureThread?.join()
+        captureThread = null
+        record.release()
+        audioRecord = null
+        onCaptureStateChanged(false)
+    }
+
+    private fun capture(record: AudioRecord) {
+        while (record.recordingState == AudioRecord.RECORDSTATE_RECORDING) {
+            val samplesRead = record.read(readBuffer, 0, readSize)
+            if(samplesRead <= 0) break
+            synchronized(lock) {
+                var position = (writeCursor % capacity).toInt()
+                for(i in 0 until samplesRead) {
+                    buffer[position] = readBuffer[i]
+                    position++
+                    if(position == capacity) position = 0
+                }
+                writeCursor += samplesRead
+                lock.notifyAll()
+            }
+        }
+        synchronized(lock) {
+            //Wake any waiting subscribers so they see the recording has ended
+            isCapturing = false
+            lock.notifyAll()
+        }
+    }
+
+    private fun unsubscribe(subscription: Subscription) = synchronized(stateLock) {
+        val isEmpty = synchronized(lock) {
+            subscriptions.remove(subscription)
+            lock.notifyAll()
+            subscriptions.isEmpty()
+        }
+        if(isEmpty) stopCapture()
+    }
+
+    inner class Subscription internal constructor(
+        /**
+         *  Unique, negative ID for this subscription so it can't collide with an `AudioRecord`
+         *  session ID when used as a key
+         */
+        val id: Int,
+        startCursor: Long,
+        lengthInSamples: Long
+    ): Closeable {
+
+        private var cursor = startCursor
+        private val endCursor = if(lengthInSamples == Long.MAX_VALUE) {
+            Long.MAX_VALUE
+        }else startCursor + lengthInSamples
+        private var isClosed = false
+
+        /**
+         *  Number of times this subscription fell behind and skipped audio
+         */
+        @Volatile
+        var overruns = 0
+            private set
+
+        /**
+         *  Reads up to [size] samples into [audioData], blocking until at least one is available.
+         *  Returns the number of samples read, or a negative `AudioRecord` error code if the
+         *  subscription is closed, has reached its length or the recording has stopped.
+         */
+        fun read(audioData: ShortArray, offset: Int, size: Int): Int = synchronized(lock) {
+            val length = awaitAvailable(size)
+            if(length <= 0) return length
+            var position = (cursor % capacity).toInt()
+            for(i in offset until offset + length) {
+                audioData[i] = buffer[position]
+                position++
+                if(position == capacity) position = 0
+            }
+            cursor += length
+            length
+        }
+
+        /**
+         *  Reads up to [size] bytes of little endian PCM16 into [audioData], the same layout as
+         *  `AudioRecord.read(byte[], int, int)`. Returns the number of bytes read, or a negative
+         *  error code as [read].
+         */
+        fun readBytes(audioData: ByteArray, size: Int): Int = synchronized(lock) {
+            val length = awaitAvailable(size / BYTES_PER_SAMPLE)
+            if(length <= 0) return length
+            var position = (cursor % capacity).toInt()
+            for(i in 0 until length) {
+                val sample = buffer[position].toInt()
+                audioData[i * 2] = sample.toByte()
+                audioData[i * 2 + 1] = (sample shr 8).toByte()
+                position++
+                if(position == capacity) position = 0
+            }
+            cursor += length
+            length * BYTES_PER_SAMPLE
+        }
+
+        /**
+         *  Waits until audio is available for this subscription, returning how many samples (up
+         *  to [size]) can be read. Must be called holding [lock].
+         */
+        private fun awaitAvailable(size: Int): Int {
+            while(!isClosed && isCapturing && writeCursor <= cursor && cursor < endCursor) {
+                lock.wait()
+            }
+            if(isClosed || cursor >= endCursor) return AudioRecord.ERROR_INVALID_OPERATION
+            if(writeCursor <= cursor) return AudioRecord.ERROR_DEAD_OBJECT
+            if(writeCursor - cursor > capacity) {
+                //Fell behind and the oldest audio has been overwritten, skip to what's left
+                cursor = writeCursor - capacity
+                overruns++
+            }
+            return minOf(size.toLong(), writeCursor - cursor, endCursor - cursor).toInt()
+        }
+
+        override fun close() {
+            synchronized(lock) {
+                if(isClosed) return
+                isClosed = true
+            }
+            unsubscribe(this)
+        }
+
+    }
+
+}
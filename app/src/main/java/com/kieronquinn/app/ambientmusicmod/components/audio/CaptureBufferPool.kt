@@ -0,0 +1,84 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+/**
+ *  Pool of reusable capture buffers, keyed by the `AudioRecord` session ID. Buffers are only
+ *  allocated when a session first reads or asks for a larger size than it has had before, so a
+ *  running capture loop reuses the same arrays for every read.
+ *
+ *  Only a handful of sessions are ever open at once, so they are held in a list and found by
+ *  scanning it, which avoids boxing the session ID on every read.
+ *
+ *  [allocations] and [reuses] count pool misses and hits respectively, once a recognition has
+ *  warmed up [allocations] should stop increasing.
+ */
+class CaptureBufferPool {
+
+    private class Session(val id: Int) {
+        var shorts: ShortArray? = null
+        var bytes: ByteArray? = null
+    }
+
+    private val sessions = ArrayList<Session>()
+
+    @Volatile
+    var allocations = 0L
+        private set
+
+    @Volatile
+    var reuses = 0L
+        private set
+
+    fun getShorts(sessionId: Int, size: Int): ShortArray = synchronized(this) {
+        val session = getSession(sessionId)
+        val current = session.shorts
+        if(current != null && current.size >= size) {
+            reuses++
+            return current
+        }
+        allocations++
+        return ShortArray(size).also {
+            session.shorts = it
+        }
+    }
+
+    fun getBytes(sessionId: Int, size: Int): ByteArray = synchronized(this) {
+        val session = getSession(sessionId)
+        val current = session.bytes
+        if(current != null && current.size >= size) {
+            reuses++
+            return current
+        }
+        allocations++
+        return ByteArray(size).also {
+            session.bytes = it
+        }
+    }
+
+    /**
+     *  Drops the buffers held for [sessionId], called when its `AudioRecord` is released.
+     */
+    fun release(sessionId: Int) = synchronized(this) {
+        val index = indexOf(sessionId)
+        if(index >= 0) sessions.removeAt(index)
+    }
+
+    private fun getSession(sessionId: Int): Session {
+        val index = indexOf(sessionId)
+        if(index >= 0) return sessions[index]
+        return Session(sessionId).also {
+            sessions.add(it)
+        }
+    }
+
+    private fun indexOf(sessionId: Int): Int {
+        for(i in sessions.indices) {
+            if(sessions[i].id == sessionId) return i
+        }
+        return -1
+    }
+
+    override fun toString(): String {
+        return "CaptureBufferPool(allocations=$allocations, reuses=$reuses)"
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.exp
+import kotlin.math.ln
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ *  Cheap check for whether a short window of PCM16 audio is likely to contain music, used to
+ *  skip full recognitions in silent or noisy rooms. Works on reusable primitive arrays, so does
+ *  not allocate after being created.
+ *
+ *  Three features are combined into a score between 0 and 1:
+ *  - The ratio of frames with an RMS energy above silence
+ *  - Tonality, from the spectral flatness of each frame (noise is flat, music is not)
+ *  - Spectral flux between frames, so a constant hum does not count as music
+ */
+class MusicPresenceDetector(private val frameSize: Int = DEFAULT_FRAME_SIZE) {
+
+    companion object {
+        const val DEFAULT_FRAME_SIZE = 512
+
+        //Roughly -50dBFS, anything quieter is treated as silence
+        private const val SILENCE_RMS = 0.003f
+
+        //Mean normalised flux at which the flux factor is saturated
+        private const val FLUX_REFERENCE = 0.15f
+
+        //Flux of a steady tone from leakage alone, as with a low hum, which counts as no change
+        private const val FLUX_FLOOR = 0.05f
+
+        //Tonality of white noise, whose magnitude spectrum is never perfectly flat
+        private const val NOISE_TONALITY = 0.16f
+
+        private const val EPSILON = 1e-10
+    }
+
+    data class Result(
+        val activeFrameRatio: Float,
+        val tonality: Float,
+        val flux: Float
+    ) {
+        val score = activeFrameRatio *
+                ((tonality - NOISE_TONALITY) / (1f - NOISE_TONALITY)).coerceIn(0f, 1f) *
+                ((flux - FLUX_FLOOR) / (FLUX_REFERENCE - FLUX_FLOOR)).coerceIn(0f, 1f)
+    }
+
+    private val bins = frameSize / 2
+    private val window = FloatArray(frameSize) {
+        (0.5 - 0.5 * cos(2 * PI * it / (frameSize - 1))).toFloat()
+    }
+    private val cosTable = FloatArray(bins) { cos(2 * PI * it / frameSize).toFloat() }
+    private val sinTable = FloatArray(bins) { sin(2 * PI * it / frameSize).toFloat() }
+    private val real = FloatArray(frameSize)
+    private val imaginary = FloatArray(frameSize)
+    private val magnitudes = FloatArray(bins)
+    private val previousMagnitudes = FloatArray(bins)
+
+    init {
+        require(frameSize > 1 && (frameSize and (frameSize - 1)) == 0) {
+            "Frame size must be a power of two"
+        }
+    }
+
+    fun analyse(samples: ShortArray, size: Int): Result {
+        val frames = size / frameSize
+        if(frames == 0) return Result(0f, 0f, 0f)
+        var activeFrames = 0
+        var tonalityTotal = 0f
+        var fluxTotal = 0f
+        var fluxFrames = 0
+        var hasPrevious = false
+        for(frame in 0 until frames) {
+            val offset = frame * frameSize
+            var energy = 0f
+            for(i in 0 until frameSize) {
+                val sample = samples[offset + i] / 32768f
+                energy += sample * sample
+                real[i] = sample * window[i]
+                imaginary[i] = 0f
+            }
+            val rms = sqrt(energy / frameSize)
+            if(rms < SILENCE_RMS) {
+                hasPrevious = false
+                continue
+            }
+            activeFrames++
+            fft()
+            var magnitudeTotal = 0f
+            var logTotal = 0.0
+            for(i in 0 until bins) {
+                val magnitude = sqrt(real[i] * real[i] + imaginary[i] * imaginary[i])
+                magnitudes[i] = magnitude
+                magnitudeTotal += magnitude
+                logTotal += ln(magnitude + EPSILON)
+            }
+            if(magnitudeTotal <= 0f) continue
+            //Spectral flatness is the geometric mean over the arithmetic mean
+            val flatness = exp(logTotal / bins) / (magnitudeTotal / bins)
+            tonalityTotal += (1f - flatness.toFloat()).coerceIn(0f, 1f)
+            if(hasPrevious) {
+                var flux = 0f
+                for(i in 0 until bins) {
+                    val difference = magnitudes[i] / magnitudeTotal - previousMagnitudes[i]
+                    if(difference > 0f) flux += difference
+                }
+                fluxTotal += flux
+                fluxFrames++
+            }
+            for(i in 0 until bins) {
+                previousMagnitudes[i] = magnitudes[i] / magnitudeTotal
+            }
+            hasPrevious = true
+        }
+        return Result(
+            activeFrames / frames.toFloat(),
+            if(activeFrames > 0) tonalityTotal / activeFrames else 0f,
+            if(fluxFrames > 0) fluxTotal / fluxFrames else 0f
+        )
+    }
+
+    /**
+     *  In place iterative radix-2 FFT of [real] and [imaginary]
+     */
+    private fun fft() {
+        var j = 0
+        for(i in 1 until frameSize) {
+            var bit = frameSize shr 1
+            while((j and bit) != 0) {
+                j = j xor bit
+                bit = bit shr 1
+            }
+            j = j xor bit
+            if(i < j) {
+                val tempReal = real[i]
+                real[i] = real[j]
+                real[j] = tempReal
+                val tempImaginary = imaginary[i]
+                imaginary[i] = imaginary[j]
+                imaginary[j] = tempImaginary
+            }
+        }
+        var length = 2
+        while(length <= frameSize) {
+            val half = length / 2
+            val step = frameSize / length
+            var start = 0
+            while(start < frameSize) {
+                for(k in 0 until half) {
+                    val wReal = cosTable[k * step]
+                    val wImaginary = -sinTable[k * step]
+                    val a = start + k
+                    val b = a + half
+                    val tReal = real[b] * wReal - imaginary[b] * wImaginary
+                    val tImaginary = real[b] * wImaginary + imaginary[b] * wReal
+                    real[b] = real[a] - tReal
+                    imaginary[b] = imaginary[a] - tImaginary
+                    real[a] += tReal
+                    imaginary[a] += tImaginary
+                }
+                start += length
+            }
+            length = length shl 1
+        }
+    }
+
+}
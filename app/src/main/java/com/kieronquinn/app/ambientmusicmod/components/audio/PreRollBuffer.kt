@@ -0,0 +1,239 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+import android.media.AudioFormat
+import android.media.AudioRecord
+import android.os.Process
+import android.os.SystemClock
+import android.util.Log
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ *  Keeps the last [preRollSeconds] of audio from the hotword mic in a fixed size circular buffer,
+ *  so an On Demand search can be given audio from before it was requested. Reads are done in
+ *  large chunks on a low priority thread to keep wakeups down.
+ *
+ *  The buffer is capped at [MAX_PRE_ROLL_BYTES] regardless of [preRollSeconds]. Capture is stopped
+ *  and the buffer cleared whenever the microphone is disabled via sensor privacy, and is paused
+ *  while anything else is recording, since the hotword mic can only be used by one recording.
+ *  Audio from before a pause is dropped when capture resumes, and at flush time if it was captured
+ *  more than [MAX_PRE_ROLL_GAP] ago, so the pre-roll is always continuous with the live audio.
+ */
+class PreRollBuffer(
+    private val audioFormat: AudioFormat,
+    preRollSeconds: Int,
+    private val createAudioRecord: (audioFormat: AudioFormat, bufferSizeInBytes: Int) -> AudioRecord
+) {
+
+    companion object {
+        private const val TAG = "PreRollBuffer"
+
+        /**
+         *  Hard cap on the size of the buffer, 512KB is 16 seconds of 16kHz mono PCM16
+         */
+        const val MAX_PRE_ROLL_BYTES = 512 * 1024
+
+        //Number of reads per second, lower means fewer wakeups
+        private const val READS_PER_SECOND = 2
+
+        //How long flushing waits for a stopping capture thread to finish its last read
+        private const val STOP_TIMEOUT = 1000L
+
+        //Buffered audio older than this when flushed was captured before an earlier pause
+        private const val MAX_PRE_ROLL_GAP = 1000L
+    }
+
+    private val frameSize = audioFormat.frameSizeInBytes()
+    private val bytesPerSecond = audioFormat.sampleRate * frameSize
+    private val readSize = bytesPerSecond / READS_PER_SECOND
+    private val capacity = (bytesPerSecond * preRollSeconds)
+        .coerceAtMost(MAX_PRE_ROLL_BYTES)
+        .let { it - (it % frameSize) }
+    private val buffer = ByteArray(capacity)
+    private val lock = Object()
+
+    //Only written by the capture thread, read once it has stopped
+    @Volatile
+    private var writePosition = 0
+    @Volatile
+    private var size = 0
+    @Volatile
+    private var lastCaptureTime = 0L
+
+    //Both cleared by the capture thread once it has exited and released the record
+    private var captureThread: Thread? = null
+    private var audioRecord: AudioRecord? = null
+    private var isStopping = false
+    private var pauseCount = 0
+    private var isMicrophoneDisabled = false
+    private var isReleased = false
+
+    fun start() = synchronized(lock) {
+        update()
+    }
+
+    /**
+     *  Stops capturing until a matching call to [resume]. Must be called before [flushTo].
+     */
+    fun pause() = synchronized(lock) {
+        pauseCount++
+        update()
+    }
+
+    fun resume() = synchronized(lock) {
+        pauseCount = (pauseCount - 1).coerceAtLeast(0)
+        update()
+    }
+
+    fun setMicrophoneDisabled(disabled: Boolean) = synchronized(lock) {
+        isMicrophoneDisabled = disabled
+        if(disabled) {
+            stopCapture()
+            clear()
+        }
+        update()
+    }
+
+    fun release() = synchronized(lock) {
+        isReleased = true
+        stopCapture()
+        clear()
+    }
+
+    /**
+     *  Returns whether the buffered audio can be sent for a request in [format]
+     */
+    fun matches(format: AudioFormat): Boolean {
+        return format.sampleRate == audioFormat.sampleRate &&
+                format.encoding == audioFormat.encoding &&
+                format.channelMask == audioFormat.channelMask
+    }
+
+    /**
+     *  Writes the buffered audio, oldest first, to [outputStream] and clears the buffer. Returns
+     *  the number of bytes written. Capture must be paused, this waits for the capture thread to
+     *  finish its last read, so should not be called on the main thread.
+     */
+    @Throws(IOException::class)
+    fun flushTo(outputStream: OutputStream, maxBytes: Int): Int = synchronized(lock) {
+        check(pauseCount > 0) { "Pre-roll must be paused before flushing" }
+        val deadline = SystemClock.elapsedRealtime() + STOP_TIMEOUT
+        while(captureThread != null) {
+            val remaining = deadline - SystemClock.elapsedRealtime()
+            if(remaining <= 0) {
+                Log.w(TAG, "Capture did not stop in time, skipping pre-roll")
+                return@synchronized 0
+            }
+            //Releases the lock while waiting, so the capture thread can clear itself
+            lock.wait(remaining)
+        }
+        if(SystemClock.elapsedRealtime() - lastCaptureTime > MAX_PRE_ROLL_GAP) {
+            //Paused for something else first, the gap would put stale audio before the live audio
+            clear()
+            return@synchronized 0
+        }
+        val length = (size.coerceAtMost(maxBytes)).let { it - (it % frameSize) }
+        if(length <= 0) return@synchronized 0
+        //Take the newest audio if limited, skipping the oldest
+        val start = (writePosition - length + capacity) % capacity
+        val firstLength = length.coerceAtMost(capacity - start)
+        outputStream.write(buffer, start, firstLength)
+        if(firstLength < length) {
+            outputStream.write(buffer, 0, length - firstLength)
+        }
+        clear()
+        length
+    }
+
+    private fun clear() {
+        writePosition = 0
+        size = 0
+    }
+
+    private fun update() {
+        val shouldCapture = !isReleased && !isMicrophoneDisabled && pauseCount == 0 && capacity > 0
+        if(shouldCapture && captureThread == null) {
+            startCapture()
+        }else if(!shouldCapture && captureThread != null) {
+            //Restarted by the capture thread once it has stopped, if still required
+            stopCapture()
+        }
+    }
+
+    private fun startCapture() {
+        //Anything left over is from before a pause, so isn't continuous with what comes next
+        clear()
+        val record = try {
+            createAudioRecord(audioFormat, readSize * READS_PER_SECOND * 2).apply {
+                //Started here rather than on the thread so a stop can't race the start
+                startRecording()
+            }
+        }catch (e: Exception) {
+            Log.e(TAG, "Failed to start pre-roll recording", e)
+            return
+        }
+        audioRecord = record
+        captureThread = Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+            try {
+                capture(record)
+            } finally {
+                onCaptureStopped(record)
+            }
+        }, TAG).also {
+            it.start()
+        }
+    }
+
+    /**
+     *  Stops the record, which unblocks any pending read so the capture thread can exit. The
+     *  thread releases the record itself, so this never waits for it while holding the lock.
+     */
+    private fun stopCapture() {
+        val record = audioRecord ?: return
+        if(isStopping) return
+        isStopping = true
+        try {
+            record.stop()
+        }catch (e: IllegalStateException) {
+            //Not started
+        }
+    }
+
+    private fun onCaptureStopped(record: AudioRecord) = synchronized(lock) {
+        record.release()
+        val wasStopped = isStopping
+        audioRecord = null
+        captureThread = null
+        isStopping = false
+        //The last read may have finished after the microphone was disabled
+        if(isMicrophoneDisabled || isReleased) clear()
+        lock.notifyAll()
+        //Capture may have been requested again while stopping. If the read failed instead, wait
+        //for the next pause or resume rather than retrying straight away.
+        if(wasStopped) update()
+    }
+
+    private fun capture(record: AudioRecord) {
+        while (record.recordingState == AudioRecord.RECORDSTATE_RECORDING) {
+            val position = writePosition
+            val length = readSize.coerceAtMost(capacity - position)
+            //Read straight into the ring, wrapping at the end
+            val bytesRead = record.read(buffer, position, length)
+            if(bytesRead <= 0) break
+            writePosition = (position + bytesRead) % capacity
+            size = (size + bytesRead).coerceAtMost(capacity)
+            lastCaptureTime = SystemClock.elapsedRealtime()
+        }
+    }
+
+    private fun AudioFormat.frameSizeInBytes(): Int {
+        val bytesPerSample = when(encoding) {
+            AudioFormat.ENCODING_PCM_8BIT -> 1
+            AudioFormat.ENCODING_PCM_FLOAT -> 4
+            else -> 2
+        }
+        return bytesPerSample * channelCount.coerceAtLeast(1)
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+import android.os.SharedMemory
+import android.system.OsConstants
+import java.io.Closeable
+import java.nio.ByteBuffer
+
+/**
+ *  Ring buffer of PCM16 audio backed by [SharedMemory]. The Shizuku service creates the buffer
+ *  and writes captured audio into it, the memory is handed to the caller once and from then on
+ *  only cursors are exchanged over Binder, rather than copying every chunk of audio.
+ *
+ *  Cursors are the total number of bytes written since the buffer was created, the position in
+ *  the ring is `cursor % capacity`. Samples are stored big endian, matching the layout returned
+ *  by `AudioRecord_read`, so callers can switch between the two paths without conversion.
+ */
+class SharedAudioRingBuffer internal constructor(
+    private val memory: SharedMemory?,
+    private val buffer: ByteBuffer
+): Closeable {
+
+    companion object {
+        private const val NAME = "amm_audio_ring_buffer"
+        private const val BYTES_PER_SAMPLE = 2
+
+        /**
+         *  Creates a writable ring buffer of [capacityInBytes] (rounded down to a whole number of
+         *  samples). The [SharedMemory] is protected to read only before it is handed out, so
+         *  callers can never write into it.
+         */
+        fun create(capacityInBytes: Int): SharedAudioRingBuffer {
+            val capacity = capacityInBytes - (capacityInBytes % BYTES_PER_SAMPLE)
+            val sharedMemory = SharedMemory.create(NAME, capacity)
+            val buffer = sharedMemory.mapReadWrite()
+            sharedMemory.setProtect(OsConstants.PROT_READ)
+            return SharedAudioRingBuffer(sharedMemory, buffer)
+        }
+
+        /**
+         *  Maps a [SharedMemory] received from the Shizuku service for reading.
+         */
+        fun map(sharedMemory: SharedMemory): SharedAudioRingBuffer {
+            return SharedAudioRingBuffer(sharedMemory, sharedMemory.mapReadOnly())
+        }
+    }
+
+    /**
+     *  Creates a ring buffer over a plain [buffer], not backed by [SharedMemory]. Used by tests,
+     *  where the ring can't be shared.
+     */
+    internal constructor(buffer: ByteBuffer): this(null, buffer)
+
+    val sharedMemory: SharedMemory
+        get() = memory ?: throw IllegalStateException("Ring buffer is not backed by SharedMemory")
+
+    val capacity = buffer.capacity()
+    val capacityInShorts = capacity / BYTES_PER_SAMPLE
+
+    /**
+     *  Total number of bytes written into the buffer. Only valid on the writing side, readers get
+     *  this from `AudioRecord_readShared`.
+     */
+    var writeCursor = 0L
+        private set
+
+    /**
+     *  Writes [size] samples from [samples] into the ring, wrapping if required, and returns the
+     *  new [writeCursor]. Does not allocate.
+     */
+    fun write(samples: ShortArray, offset: Int, size: Int): Long {
+        var position = (writeCursor % capacity).toInt()
+        for(i in offset until offset + size) {
+            buffer.putShort(position, samples[i])
+            position += BYTES_PER_SAMPLE
+            if(position >= capacity) position = 0
+        }
+        writeCursor += size * BYTES_PER_SAMPLE
+        return writeCursor
+    }
+
+    /**
+     *  Copies the bytes between [readCursor] and [writeCursor] into [audioData], up to [size]
+     *  bytes. If the writer has lapped the reader, the oldest available data is returned instead.
+     *  Returns how far the caller should advance its read cursor, which includes any bytes that
+     *  were overwritten before they could be read.
+     */
+    fun read(
+        readCursor: Long,
+        writeCursor: Long,
+        audioData: ByteArray,
+        offset: Int,
+        size: Int
+    ): Int {
+        val start = readCursor.coerceAtLeast(writeCursor - capacity)
+        val available = (writeCursor - start).toInt()
+        val length = available.coerceAtMost(size)
+        val position = (start % capacity).toInt()
+        val firstLength = length.coerceAtMost(capacity - position)
+        copy(position, audioData, offset, firstLength)
+        if(firstLength < length) {
+            copy(0, audioData, offset + firstLength, length - firstLength)
+        }
+        return length + (start - readCursor).toInt()
+    }
+
+    private fun copy(position: Int, audioData: ByteArray, offset: Int, length: Int) {
+        for(i in 0 until length) {
+            audioData[offset + i] = buffer.get(position + i)
+        }
+    }
+
+    override fun close() {
+        val memory = memory ?: return
+        SharedMemory.unmap(buffer)
+        memory.close()
+    }
+
+}
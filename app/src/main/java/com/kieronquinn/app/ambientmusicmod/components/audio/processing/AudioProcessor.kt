@@ -0,0 +1,21 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+/**
+ *  A stage of audio processing which works in place on PCM16 samples. Implementations must not
+ *  allocate in [process], as it is called for every read of a running recording.
+ */
+interface AudioProcessor {
+
+    /**
+     *  Processes [size] samples of [samples] starting at [offset], in place
+     */
+    fun process(samples: ShortArray, offset: Int, size: Int)
+
+    /**
+     *  Clears any state carried between calls to [process], called when a new recording starts
+     */
+    fun reset() {
+        //No state by default
+    }
+
+}
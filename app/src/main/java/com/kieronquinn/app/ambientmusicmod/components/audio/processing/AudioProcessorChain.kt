@@ -0,0 +1,20 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+/**
+ *  Runs a list of [AudioProcessor]s in order over the same buffer
+ */
+class AudioProcessorChain(private val processors: List<AudioProcessor>): AudioProcessor {
+
+    constructor(vararg processors: AudioProcessor): this(processors.toList())
+
+    override fun process(samples: ShortArray, offset: Int, size: Int) {
+        for(i in processors.indices) {
+            processors[i].process(samples, offset, size)
+        }
+    }
+
+    override fun reset() {
+        processors.forEach { it.reset() }
+    }
+
+}
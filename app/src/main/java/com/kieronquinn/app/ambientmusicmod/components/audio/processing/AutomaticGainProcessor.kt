@@ -0,0 +1,62 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+import kotlin.math.sqrt
+
+/**
+ *  Simple automatic gain control. Tracks the RMS level of each block and moves the gain towards
+ *  bringing it to [targetLevel], within [minGain] and [maxGain]. The gain is ramped across each
+ *  block so changes don't click, and is held rather than raised for blocks below [noiseFloor], so
+ *  silence is not boosted into noise.
+ *
+ *  Levels are relative to full scale.
+ */
+class AutomaticGainProcessor(
+    private val targetLevel: Float = DEFAULT_TARGET_LEVEL,
+    private val minGain: Float = DEFAULT_MIN_GAIN,
+    private val maxGain: Float = DEFAULT_MAX_GAIN,
+    private val noiseFloor: Float = DEFAULT_NOISE_FLOOR
+): AudioProcessor {
+
+    companion object {
+        //-20dBFS
+        private const val DEFAULT_TARGET_LEVEL = 0.1f
+        private const val DEFAULT_MIN_GAIN = 0.5f
+        private const val DEFAULT_MAX_GAIN = 8f
+        //-60dBFS
+        private const val DEFAULT_NOISE_FLOOR = 0.001f
+
+        //How far the gain moves towards its target per block, lower is slower
+        private const val SMOOTHING = 0.2f
+
+        private const val FULL_SCALE = 32768f
+    }
+
+    private var gain = 1f
+
+    override fun process(samples: ShortArray, offset: Int, size: Int) {
+        if(size <= 0) return
+        var energy = 0f
+        for(i in offset until offset + size) {
+            val sample = samples[i] / FULL_SCALE
+            energy += sample * sample
+        }
+        val level = sqrt(energy / size)
+        val startGain = gain
+        val endGain = if(level > noiseFloor) {
+            val target = (targetLevel / level).coerceIn(minGain, maxGain)
+            startGain + (target - startGain) * SMOOTHING
+        }else startGain
+        val step = (endGain - startGain) / size
+        var current = startGain
+        for(i in offset until offset + size) {
+            current += step
+            samples[i] = (samples[i] * current).toInt().toPcm16()
+        }
+        gain = endGain
+    }
+
+    override fun reset() {
+        gain = 1f
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+/**
+ *  Removes any DC offset from the mic with a one pole high pass filter. The default [pole] puts
+ *  the cutoff at around 10Hz for 16kHz audio, well below anything audible.
+ */
+class DcRemovalProcessor(private val pole: Float = DEFAULT_POLE): AudioProcessor {
+
+    companion object {
+        private const val DEFAULT_POLE = 0.996f
+    }
+
+    private var previousInput = 0f
+    private var previousOutput = 0f
+
+    override fun process(samples: ShortArray, offset: Int, size: Int) {
+        var x1 = previousInput
+        var y1 = previousOutput
+        for(i in offset until offset + size) {
+            val x = samples[i].toFloat()
+            val y = x - x1 + pole * y1
+            samples[i] = y.toInt().toPcm16()
+            x1 = x
+            y1 = y
+        }
+        previousInput = x1
+        previousOutput = y1
+    }
+
+    override fun reset() {
+        previousInput = 0f
+        previousOutput = 0f
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+/**
+ *  Applies a fixed [gain], saturating at both ends of the PCM16 range rather than wrapping.
+ */
+class GainProcessor(private val gain: Float): AudioProcessor {
+
+    override fun process(samples: ShortArray, offset: Int, size: Int) {
+        if(gain == 1f) return
+        for(i in offset until offset + size) {
+            samples[i] = (samples[i] * gain).toInt().toPcm16()
+        }
+    }
+
+}
+
+internal fun Int.toPcm16(): Short {
+    return coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt()).toShort()
+}
@@ -0,0 +1,33 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+import kotlin.math.abs
+import kotlin.math.tanh
+
+/**
+ *  Soft limiter. Samples below [knee] of the [ceiling] pass through untouched, louder samples are
+ *  compressed smoothly towards the ceiling instead of being hard clipped.
+ */
+class SoftLimiterProcessor(
+    ceiling: Float = Short.MAX_VALUE.toFloat(),
+    knee: Float = DEFAULT_KNEE
+): AudioProcessor {
+
+    companion object {
+        private const val DEFAULT_KNEE = 0.8f
+    }
+
+    private val ceiling = ceiling.coerceIn(1f, Short.MAX_VALUE.toFloat())
+    private val threshold = this.ceiling * knee.coerceIn(0f, 0.99f)
+    private val range = this.ceiling - threshold
+
+    override fun process(samples: ShortArray, offset: Int, size: Int) {
+        for(i in offset until offset + size) {
+            val sample = samples[i].toFloat()
+            val magnitude = abs(sample)
+            if(magnitude <= threshold) continue
+            val limited = threshold + range * tanh((magnitude - threshold) / range)
+            samples[i] = (if(sample < 0f) -limited else limited).toInt().toPcm16()
+        }
+    }
+
+}
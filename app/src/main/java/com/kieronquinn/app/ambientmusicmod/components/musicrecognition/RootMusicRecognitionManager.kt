@@ -11,6 +11,7 @@ import android.content.pm.PackageManager
 import android.content.pm.ServiceInfo
 import android.media.AudioAttributes
 import android.media.AudioFormat
+import android.media.AudioManager
 import android.media.AudioRecord
 import android.media.MediaMetadata
 import android.media.musicrecognition.IMusicRecognitionManagerCallback
@@ -24,12 +25,16 @@ import androidx.annotation.NonNull
 import androidx.annotation.Nullable
 import androidx.annotation.RequiresApi
 import com.kieronquinn.app.ambientmusicmod.PACKAGE_NAME_GSB
+import com.kieronquinn.app.ambientmusicmod.components.audio.CaptureBroker
+import com.kieronquinn.app.ambientmusicmod.components.audio.PreRollBuffer
 import com.kieronquinn.app.ambientmusicmod.utils.context.ShellContext
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.*
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
 import rikka.shizuku.SystemServiceHelper
 import java.io.IOException
 import java.io.OutputStream
@@ -39,20 +44,43 @@ import kotlin.coroutines.resume
  *  Root re-implementation of MusicRecognitionManager, directly binding the Google App's music
  *  recognition service and interacting with it.
  *
- *  Requires audio recording via the `HOTWORD` mic to work.
+ *  Requires audio recording via the `HOTWORD` mic to work. When a [captureBroker] is given and
+ *  the request's format matches it, audio is read from a subscription to the shared recording
+ *  rather than opening the mic again.
  */
 @RequiresApi(Build.VERSION_CODES.S)
-class RootMusicRecognitionManager(private val context: Context, userId: Int) {
+class RootMusicRecognitionManager(
+    private val context: Context,
+    userId: Int,
+    private val captureBroker: CaptureBroker? = null
+) {
 
     companion object {
         private const val DEBUG = false
         private const val TAG = "RootMRM"
         private const val SERVICE_CONNECT_TIMEOUT = 2500L
 
+        /**
+         *  How long the service stays bound after a result by default. 0 unbinds immediately.
+         */
+        const val DEFAULT_KEEP_WARM_TIMEOUT = 60_000L
+
+        /**
+         *  How long a successful ping of a kept warm service is trusted for before pinging again.
+         */
+        private const val HEALTH_CHECK_CACHE_TIME = 10_000L
+
         // Number of bytes per sample of audio (which is a short).
         private const val BYTES_PER_SAMPLE = 2
         private const val MAX_STREAMING_SECONDS = 24
 
+        //Format used for the pre-roll buffer, matching what the Google App requests
+        private val PRE_ROLL_AUDIO_FORMAT = AudioFormat.Builder()
+            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+            .setSampleRate(16000)
+            .setChannelMask(AudioFormat.CHANNEL_IN_MONO)
+            .build()
+
         private const val MUSIC_RECOGNITION_MANAGER_ATTRIBUTION_TAG =
             "MusicRecognitionManagerService"
     }
@@ -76,9 +104,75 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
         IActivityManager.Stub.asInterface(proxy)
     }
 
+    //Also cleared by the death recipient on a binder thread
+    @Volatile
     private var musicRecognitionBinder: IBinder? = null
+    @Volatile
     private var musicRecognitionServiceConnection: IServiceConnection? = null
     private val recognitionServiceLock = Mutex()
+    private val handler = Handler(Looper.getMainLooper())
+    @Volatile
+    private var lastHealthCheck = 0L
+
+    private val idleUnbindRunnable = Runnable {
+        Log_i("Keep warm timeout reached, unbinding")
+        destroyService()
+    }
+
+    private val deathRecipient = IBinder.DeathRecipient {
+        Log_i("Music recognition service died")
+        //Unbind too, so the connection isn't left registered with the system
+        handler.removeCallbacks(idleUnbindRunnable)
+        destroyService()
+    }
+
+    /**
+     *  How long to keep the Google App's service bound after a result, so the next search can
+     *  skip binding. Set from the Shizuku service's config, 0 disables keeping the service warm.
+     */
+    var keepWarmTimeout = DEFAULT_KEEP_WARM_TIMEOUT
+
+    @Volatile
+    var bindStats = ServiceBindStats()
+        private set
+
+    private var preRollBuffer: PreRollBuffer? = null
+    private var isMicrophoneDisabled = false
+
+    /**
+     *  Sets how many seconds of audio from before a search is started should be kept and sent
+     *  ahead of the live audio. 0 disables the pre-roll buffer.
+     */
+    fun setPreRollSeconds(seconds: Int) {
+        preRollBuffer?.release()
+        preRollBuffer = if(seconds > 0) {
+            PreRollBuffer(PRE_ROLL_AUDIO_FORMAT, seconds) { format, bufferSize ->
+                createAudioRecord(format, bufferSize, AudioManager.AUDIO_SESSION_ID_GENERATE)
+            }.apply {
+                setMicrophoneDisabled(isMicrophoneDisabled)
+                start()
+            }
+        }else null
+    }
+
+    /**
+     *  Stops the pre-roll buffer and clears it while the microphone is disabled via sensor privacy
+     */
+    fun setMicrophoneDisabled(disabled: Boolean) {
+        isMicrophoneDisabled = disabled
+        preRollBuffer?.setMicrophoneDisabled(disabled)
+    }
+
+    /**
+     *  Pauses the pre-roll buffer while another recording needs the hotword mic
+     */
+    fun pausePreRoll() {
+        preRollBuffer?.pause()
+    }
+
+    fun resumePreRoll() {
+        preRollBuffer?.resume()
+    }
 
     suspend fun runStreamingSearch(
         lifecycleScope: CoroutineScope,
@@ -92,6 +186,8 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
             callback.onRecognitionFailed(RECOGNITION_FAILED_SERVICE_UNAVAILABLE)
             return
         }
+        //A new search is starting, the service must stay bound until it finishes
+        handler.removeCallbacks(idleUnbindRunnable)
         val service = getMusicRecognitionService(IApplicationThread.Stub.asInterface(thread), token)
         if(service == null){
             callback.onRecognitionFailed(RECOGNITION_FAILED_SERVICE_UNAVAILABLE)
@@ -106,7 +202,9 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
         val audioSink = clientPipe.second
         val clientRead = clientPipe.first
         val attributionTag = service.getAttributionTag()
-        lifecycleScope.streamAudio(serviceInfo, attributionTag, request, callback, audioSink)
+        lifecycleScope.streamAudio(
+            serviceInfo, attributionTag, request, callback, audioSink, serviceCallback
+        )
         service.onAudioStreamStarted(clientRead, request.audioFormat, serviceCallback)
     }
 
@@ -122,7 +220,8 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
         @Nullable attributionTag: String,
         @NonNull recognitionRequest: RecognitionRequest,
         clientCallback: IMusicRecognitionManagerCallback,
-        audioSink: ParcelFileDescriptor
+        audioSink: ParcelFileDescriptor,
+        serviceCallback: MusicRecognitionServiceCallback
     ) = launch {
         val maxAudioLengthSeconds: Int =
             recognitionRequest.maxAudioLengthSeconds.coerceAtMost(MAX_STREAMING_SECONDS)
@@ -154,16 +253,33 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
             }
             return@launch
         }
-        val audioRecord: AudioRecord = createAudioRecord(recognitionRequest, maxAudioLengthSeconds)
+        //The pre-roll holds the hotword mic, so must be stopped before the live recording starts
+        val preRoll = preRollBuffer
+        preRoll?.pause()
+        val capture = createCapture(recognitionRequest, maxAudioLengthSeconds)
         try {
-            ParcelFileDescriptor.AutoCloseOutputStream(audioSink).use { fos ->
-                streamAudio(recognitionRequest, maxAudioLengthSeconds, audioRecord, fos)
+            withContext(Dispatchers.IO) {
+                ParcelFileDescriptor.AutoCloseOutputStream(audioSink).use { fos ->
+                    val maxBytes = capture.bufferSizeInBytes
+                    val preRollBytes = preRoll?.takeIf {
+                        it.matches(recognitionRequest.audioFormat)
+                    }?.flushTo(fos, maxBytes) ?: 0
+                    streamAudio(
+                        recognitionRequest,
+                        maxAudioLengthSeconds,
+                        capture,
+                        fos,
+                        maxBytes - preRollBytes,
+                        serviceCallback
+                    )
+                }
             }
         } catch (e: IOException) {
             Log_e("Audio streaming stopped.", e)
         } finally {
             finishRecordAudioOp(serviceInfo, attributionTag)
-            audioRecord.release()
+            capture.release()
+            preRoll?.resume()
             try {
                 clientCallback.onAudioStreamClosed()
             } catch (ignored: RemoteException) {
@@ -172,36 +288,28 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
         }
     }
 
-    /** Performs the actual streaming from audioRecord into outputStream.  */
+    /**
+     *  Performs the actual streaming from audioRecord into outputStream, until the service
+     *  returns a result or failure or is unbound. See [SearchAudioStreamer].
+     */
     @Throws(IOException::class)
     private fun streamAudio(
         @NonNull recognitionRequest: RecognitionRequest,
-        maxAudioLengthSeconds: Int, audioRecord: AudioRecord, outputStream: OutputStream
+        maxAudioLengthSeconds: Int, capture: SearchCapture, outputStream: OutputStream,
+        maxBytes: Int, serviceCallback: MusicRecognitionServiceCallback
     ) {
-        val halfSecondBufferSize = audioRecord.bufferSizeInFrames / maxAudioLengthSeconds
-        val byteBuffer = ByteArray(halfSecondBufferSize)
-        var bytesRead = 0
-        var totalBytesRead = 0
-        var ignoreBytes: Int = recognitionRequest.ignoreBeginningFrames * BYTES_PER_SAMPLE
-        audioRecord.startRecording()
-        while (bytesRead >= 0 && (totalBytesRead < audioRecord.bufferSizeInFrames * BYTES_PER_SAMPLE) && musicRecognitionBinder != null) {
-            bytesRead = audioRecord.read(byteBuffer, 0, byteBuffer.size)
-            if (bytesRead > 0) {
-                totalBytesRead += bytesRead
-                // If we are ignoring the first x bytes, update that counter.
-                if (ignoreBytes > 0) {
-                    ignoreBytes -= bytesRead
-                    // If we've dipped negative, we've skipped through all ignored bytes
-                    // and then some.  Write out the bytes we shouldn't have skipped.
-                    if (ignoreBytes < 0) {
-                        outputStream.write(byteBuffer, bytesRead + ignoreBytes, -ignoreBytes)
-                    }
-                } else {
-                    outputStream.write(byteBuffer)
-                }
-            }
+        val halfSecondBufferSize =
+            capture.bufferSizeInBytes / BYTES_PER_SAMPLE / maxAudioLengthSeconds
+        val stats = SearchAudioStreamer(halfSecondBufferSize).stream(
+            capture,
+            outputStream,
+            maxBytes,
+            recognitionRequest.ignoreBeginningFrames * BYTES_PER_SAMPLE,
+            serviceCallback.finished
+        ) {
+            musicRecognitionBinder != null
         }
-        Log_i(String.format("Streamed %s bytes from audio record", totalBytesRead))
+        Log_i { "Streamed audio from audio record, $stats" }
     }
 
     /**
@@ -243,19 +351,31 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
         thread: IApplicationThread,
         token: IBinder?
     ) = recognitionServiceLock.withLock {
+        getWarmService()?.let {
+            bindStats = bindStats.copy(cacheHits = bindStats.cacheHits + 1)
+            return@withLock it
+        }
+        bindStats = bindStats.copy(cacheMisses = bindStats.cacheMisses + 1)
+        val bindStartTime = SystemClock.elapsedRealtime()
         suspendCancellableCoroutineWithTimeout<IMusicRecognitionService>(SERVICE_CONNECT_TIMEOUT) { resume ->
             var hasResumed = false
-            musicRecognitionBinder?.let {
-                if(hasResumed || !it.pingBinder()) return@let
-                resume.resume(IMusicRecognitionService.Stub.asInterface(it))
-                hasResumed = true
-                return@suspendCancellableCoroutineWithTimeout
-            }
             var dispatcher: IServiceConnection? = null
             val serviceConnection = object: ServiceConnection {
                 override fun onServiceConnected(component: ComponentName, binder: IBinder) {
                     musicRecognitionBinder = binder
                     musicRecognitionServiceConnection = dispatcher
+                    lastHealthCheck = SystemClock.elapsedRealtime()
+                    try {
+                        binder.linkToDeath(deathRecipient, 0)
+                    } catch (e: RemoteException) {
+                        //Already dead, will be picked up by the next health check
+                    }
+                    val bindLatency = lastHealthCheck - bindStartTime
+                    bindStats = bindStats.copy(
+                        binds = bindStats.binds + 1,
+                        totalBindLatency = bindStats.totalBindLatency + bindLatency
+                    )
+                    Log_i { "Bound music recognition service in ${bindLatency}ms, $bindStats" }
                     if(!hasResumed) {
                         resume.resume(IMusicRecognitionService.Stub.asInterface(binder))
                     }
@@ -263,8 +383,10 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
                 }
 
                 override fun onServiceDisconnected(component: ComponentName) {
+                    musicRecognitionBinder?.unlinkToDeathSafely()
                     musicRecognitionServiceConnection = null
                     musicRecognitionBinder = null
+                    lastHealthCheck = 0L
                 }
             }
             dispatcher = context.getServiceDispatcher(serviceConnection, 0)
@@ -279,14 +401,122 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
         }
     }
 
-    /** Establishes an audio stream from the DSP audio source. */
-    @SuppressLint("MissingPermission")
-    private fun createAudioRecord(
+    /**
+     *  Returns the already bound service if it is still alive, without binding again. The binder
+     *  is only pinged if it has not been checked within [HEALTH_CHECK_CACHE_TIME], otherwise the
+     *  death recipient is relied on to clear it.
+     */
+    private fun getWarmService(): IMusicRecognitionService? {
+        val binder = musicRecognitionBinder ?: return null
+        if(!binder.isBinderAlive) return null
+        val now = SystemClock.elapsedRealtime()
+        if(now - lastHealthCheck > HEALTH_CHECK_CACHE_TIME) {
+            if(!binder.pingBinder()) return null
+            lastHealthCheck = now
+        }
+        return IMusicRecognitionService.Stub.asInterface(binder)
+    }
+
+    /**
+     *  Called when a search has finished. Keeps the service bound for [keepWarmTimeout] if set,
+     *  otherwise unbinds immediately.
+     */
+    private fun onSearchFinished() {
+        handler.removeCallbacks(idleUnbindRunnable)
+        if(keepWarmTimeout > 0) {
+            handler.postDelayed(idleUnbindRunnable, keepWarmTimeout)
+        }else{
+            destroyService()
+        }
+    }
+
+    private fun IBinder.unlinkToDeathSafely() {
+        try {
+            unlinkToDeath(deathRecipient, 0)
+        } catch (e: NoSuchElementException) {
+            //Not linked
+        }
+    }
+
+    /**
+     *  Establishes an audio stream from the DSP audio source, shared with any other recording via
+     *  the [captureBroker] if the format allows it.
+     */
+    private fun createCapture(
         recognitionRequest: RecognitionRequest,
         maxAudioLengthSeconds: Int
-    ): AudioRecord {
+    ): SearchCapture {
         val sampleRate: Int = recognitionRequest.audioFormat.sampleRate
         val bufferSize: Int = getBufferSizeInBytes(sampleRate, maxAudioLengthSeconds)
+        captureBroker?.takeIf { it.matches(recognitionRequest.audioFormat) }?.let {
+            return BrokerCapture(it, bufferSize)
+        }
+        val audioRecord = createAudioRecord(
+            recognitionRequest.audioFormat, bufferSize, recognitionRequest.captureSession
+        )
+        return RecordCapture(audioRecord)
+    }
+
+    private class RecordCapture(private val audioRecord: AudioRecord): SearchCapture {
+
+        override val bufferSizeInBytes = audioRecord.bufferSizeInFrames * BYTES_PER_SAMPLE
+
+        override fun start() {
+            audioRecord.startRecording()
+        }
+
+        override fun read(buffer: ByteArray, size: Int): Int {
+            return audioRecord.read(buffer, 0, size)
+        }
+
+        override fun stop() {
+            try {
+                audioRecord.stop()
+            } catch (e: IllegalStateException) {
+                //Already released
+            }
+        }
+
+        override fun release() {
+            audioRecord.release()
+        }
+
+    }
+
+    private class BrokerCapture(
+        private val captureBroker: CaptureBroker,
+        override val bufferSizeInBytes: Int
+    ): SearchCapture {
+
+        @Volatile
+        private var subscription: CaptureBroker.Subscription? = null
+
+        override fun start() {
+            subscription = captureBroker.subscribe()
+        }
+
+        override fun read(buffer: ByteArray, size: Int): Int {
+            val subscription = subscription ?: return AudioRecord.ERROR_INVALID_OPERATION
+            return subscription.readBytes(buffer, size)
+        }
+
+        override fun stop() {
+            subscription?.close()
+        }
+
+        override fun release() {
+            subscription?.close()
+            subscription = null
+        }
+
+    }
+
+    @SuppressLint("MissingPermission")
+    private fun createAudioRecord(
+        audioFormat: AudioFormat,
+        bufferSize: Int,
+        sessionId: Int
+    ): AudioRecord {
         val shellContext = ShellContext(context, true)
         //We need to replace the attributes as we can't access the regular mic
         val attributes = AudioAttributes.Builder().apply {
@@ -304,9 +534,9 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
             isAccessible = true
         }.newInstance(
             attributes,
-            recognitionRequest.audioFormat,
+            audioFormat,
             bufferSize,
-            recognitionRequest.captureSession,
+            sessionId,
             shellContext,
             0
         )
@@ -321,8 +551,11 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
     }
 
     private fun destroyService() {
+        musicRecognitionBinder?.unlinkToDeathSafely()
         musicRecognitionServiceConnection?.let { activityManager.unbindService(it) }
+        musicRecognitionServiceConnection = null
         musicRecognitionBinder = null
+        lastHealthCheck = 0L
     }
 
     /** Removes remote objects from the bundle.  */
@@ -355,23 +588,27 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
     inner class MusicRecognitionServiceCallback(private val clientCallback: IMusicRecognitionManagerCallback) :
         IMusicRecognitionServiceCallback.Stub() {
 
+        val finished = SearchFinishedSignal()
+
         override fun onRecognitionSucceeded(result: MediaMetadata, extras: Bundle) {
+            finished.onFinished()
             try {
                 sanitizeBundle(extras)
                 clientCallback.onRecognitionSucceeded(result, extras)
             } catch (ignored: RemoteException) {
                 // Ignored.
             }
-            destroyService()
+            onSearchFinished()
         }
 
         override fun onRecognitionFailed(@RecognitionFailureCode failureCode: Int) {
+            finished.onFinished()
             try {
                 clientCallback.onRecognitionFailed(failureCode)
             } catch (ignored: RemoteException) {
                 // Ignored.
             }
-            destroyService()
+            onSearchFinished()
         }
 
     }
@@ -381,6 +618,11 @@ class RootMusicRecognitionManager(private val context: Context, userId: Int) {
         Log.i(TAG, text)
     }
 
+    private inline fun Log_i(text: () -> String) {
+        if(!DEBUG) return
+        Log.i(TAG, text())
+    }
+
     private fun Log_e(text: String) {
         if(!DEBUG) return
         Log.e(TAG, text)
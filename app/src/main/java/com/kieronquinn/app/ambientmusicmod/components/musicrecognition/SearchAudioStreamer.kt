@@ -0,0 +1,91 @@
+package com.kieronquinn.app.ambientmusicmod.components.musicrecognition
+
+import com.kieronquinn.app.ambientmusicmod.components.audio.AudioStreamPipeline
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ *  Source of audio for a search
+ */
+interface SearchCapture: AudioStreamPipeline.AudioSource {
+    val bufferSizeInBytes: Int
+    fun start()
+
+    /**
+     *  Stops capture, unblocking any pending read. Safe to call from any thread.
+     */
+    fun stop()
+    fun release()
+}
+
+/**
+ *  Set by the service callback once a search's result or failure has arrived
+ */
+class SearchFinishedSignal {
+
+    @Volatile
+    var isFinished = false
+        private set
+
+    private var onFinishedListener: (() -> Unit)? = null
+
+    /**
+     *  Sets a listener called once when a result or failure arrives, or immediately if one
+     *  already has.
+     */
+    fun setOnFinishedListener(listener: () -> Unit) {
+        val callNow = synchronized(this) {
+            onFinishedListener = listener
+            isFinished
+        }
+        if(callNow) listener()
+    }
+
+    fun onFinished() {
+        val listener = synchronized(this) {
+            if(isFinished) return
+            isFinished = true
+            onFinishedListener.also { onFinishedListener = null }
+        }
+        listener?.invoke()
+    }
+
+}
+
+/**
+ *  Streams a search's audio from a [SearchCapture] to the recognition service. Capture and
+ *  writing run as separate stages of an [AudioStreamPipeline], so a slow reader of the pipe can't
+ *  stall the microphone. Capture is cancelled as soon as the service returns a result or failure,
+ *  so the caller can release the recording and app op without waiting for the next chunk.
+ */
+class SearchAudioStreamer(chunkSize: Int) {
+
+    private val pipeline = AudioStreamPipeline(chunkSize)
+
+    /**
+     *  Starts [capture] and streams up to [maxBytes] of it into [outputStream], skipping the first
+     *  [ignoreBytes], until [finished] is set or [isBound] returns false. Returns the pipeline's
+     *  stats once all captured audio has been written.
+     */
+    @Throws(IOException::class)
+    fun stream(
+        capture: SearchCapture,
+        outputStream: OutputStream,
+        maxBytes: Int,
+        ignoreBytes: Int,
+        finished: SearchFinishedSignal,
+        isBound: () -> Boolean
+    ): AudioStreamPipeline.Stats {
+        capture.start()
+        finished.setOnFinishedListener {
+            pipeline.cancel()
+            //Unblocks a pending read, rather than waiting for the chunk to fill
+            capture.stop()
+        }
+        pipeline.run(capture, outputStream, maxBytes, ignoreBytes) {
+            isBound() && !finished.isFinished
+        }
+        return pipeline.stats
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.kieronquinn.app.ambientmusicmod.components.musicrecognition
+
+import android.os.Bundle
+import androidx.core.os.bundleOf
+
+/**
+ *  How often searches had to bind the Google App's recognition service, and how often a kept
+ *  warm binding was reused instead. Passed from the Shizuku service to the app as a [Bundle].
+ */
+data class ServiceBindStats(
+    val binds: Int = 0,
+    val totalBindLatency: Long = 0L,
+    val cacheHits: Int = 0,
+    val cacheMisses: Int = 0
+) {
+
+    companion object {
+        private const val KEY_BINDS = "binds"
+        private const val KEY_TOTAL_BIND_LATENCY = "total_bind_latency"
+        private const val KEY_CACHE_HITS = "cache_hits"
+        private const val KEY_CACHE_MISSES = "cache_misses"
+
+        fun fromBundle(bundle: Bundle): ServiceBindStats {
+            return ServiceBindStats(
+                bundle.getInt(KEY_BINDS),
+                bundle.getLong(KEY_TOTAL_BIND_LATENCY),
+                bundle.getInt(KEY_CACHE_HITS),
+                bundle.getInt(KEY_CACHE_MISSES)
+            )
+        }
+    }
+
+    val searches = cacheHits + cacheMisses
+    val averageBindLatency = if(binds > 0) totalBindLatency / binds else 0L
+    val cacheHitRate = if(searches > 0) cacheHits / searches.toFloat() else 0f
+
+    fun toBundle() = bundleOf(
+        KEY_BINDS to binds,
+        KEY_TOTAL_BIND_LATENCY to totalBindLatency,
+        KEY_CACHE_HITS to cacheHits,
+        KEY_CACHE_MISSES to cacheMisses
+    )
+
+}
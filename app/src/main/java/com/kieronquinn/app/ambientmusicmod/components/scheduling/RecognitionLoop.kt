@@ -0,0 +1,296 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.BedtimeRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepository.GateResult
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepository.Origin
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionScheduleRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.RecognitionPeriod
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.autoClearAfterBy
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.firstNotNull
+import com.kieronquinn.app.pixelambientmusic.model.RecognitionFailure
+import com.kieronquinn.app.pixelambientmusic.model.RecognitionFailureReason
+import com.kieronquinn.app.pixelambientmusic.model.RecognitionMetadata
+import com.kieronquinn.app.pixelambientmusic.model.RecognitionSource
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.drop
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.mapLatest
+import kotlinx.coroutines.flow.merge
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.flow.stateIn
+import kotlinx.coroutines.launch
+
+/**
+ *  The foreground service's automatic recognition loop, kept apart from the service so it can be
+ *  run off device against fake repositories and a virtual clock.
+ *
+ *  Each [ticker] emission runs a recognition, unless automatic recognition is disabled, the audio
+ *  context says to skip it or the music presence gate skips it. Every outcome emits the delay
+ *  until the next tick on [nextRecognitionDelay], which the service schedules as an alarm. Screen
+ *  on events run a recognition that may be answered from the recent track instead.
+ *
+ *  @param mainEnabled Whether Now Playing is enabled in PAM
+ *  @param screenOn Emits when the screen turns on
+ *  @param currentTimeMillis The wall clock, used to time out shown results
+ */
+class RecognitionLoop(
+    private val scope: CoroutineScope,
+    private val recognition: RecognitionRepository,
+    private val settings: SettingsRepository,
+    private val bedtime: BedtimeRepository,
+    private val musicPresence: MusicPresenceRepository,
+    private val schedule: RecognitionScheduleRepository,
+    private val audioContext: AudioContextRepository,
+    private val recognitionEvents: RecognitionEventRepository,
+    mainEnabled: Flow<Boolean>,
+    batterySaverEnabled: Flow<Boolean>,
+    screenOn: Flow<Unit>,
+    private val ticker: Flow<Unit>,
+    private val currentTimeMillis: () -> Long = System::currentTimeMillis,
+    private val log: (String) -> Unit = {}
+) {
+
+    private val delayTime = combine(
+        settings.recognitionPeriod.asFlow(),
+        settings.recognitionBuffer.asFlow()
+    ) { time, buffer ->
+        time.period + buffer.time
+    }.stateIn(scope, SharingStarted.Eagerly, null)
+
+    private val bufferTime = settings.recognitionBuffer.asFlow()
+        .stateIn(scope, SharingStarted.Eagerly, null)
+
+    private val isBedtime = bedtime.isBedtime().onEach {
+        log("Bedtime: $it")
+    }.stateIn(scope, SharingStarted.Eagerly, null)
+
+    val enabled = combine(
+        mainEnabled,
+        batterySaverEnabled,
+        isBedtime.filterNotNull(),
+        settings.hasSeenSetup.asFlow(), //Only start after setup
+    ) { main, batterySaver, bedtime, hasSeenSetup ->
+        main && !batterySaver && !bedtime && hasSeenSetup
+    }.distinctUntilChanged()
+
+    //Sequence of the last state published before the loop was created
+    private val startSequence = recognitionEvents.getLatestSequence()
+
+    /**
+     *  States published since the loop started, read from the bus when each collection starts, so
+     *  old results don't reschedule and a late collector still sees the initial trigger
+     */
+    val recognitionState = flow {
+        emitAll(recognitionEvents.getEvents(startSequence))
+    }.filter { it.origin == Origin.SERVICE }.map { it.state }
+
+    /**
+     *  The latest state, including one from before the loop started. A replayed result whose
+     *  display time has already passed is dropped, so it isn't shown again.
+     */
+    val latestRecognitionState = recognitionEvents.getLatestEvent(Origin.SERVICE).map {
+        val state = it?.state
+        val hasEnded = state is RecognitionState.Recognised &&
+                getEndTime(state) <= currentTimeMillis()
+        if(hasEnded) null else state
+    }
+
+    /**
+     *  [latestRecognitionState], cleared to null once a result's display time has passed
+     */
+    val shownRecognitionState = latestRecognitionState.autoClearAfterBy {
+        if(it is RecognitionState.Recognised) {
+            (getEndTime(it) - currentTimeMillis()).coerceAtLeast(0L)
+        }else null
+    }
+
+    private val screenOnTrigger = combine(
+        screenOn,
+        settings.triggerWhenScreenOn.asFlow(),
+        enabled
+    ) { _, enabled, mainEnabled ->
+        if(mainEnabled && enabled) Unit else null
+    }.filterNotNull()
+
+    private val recognitionDelay = recognitionState.mapLatest {
+        if(it == null){
+            //Start immediate recognition when required (eg. on start), but skip if auto is disabled
+            return@mapLatest calculateNextRecognitionTime(null, 0).also {
+                log("Skipping check, using time $it")
+            }
+        }
+        when(it){
+            is RecognitionState.Recognised -> { calculateNextRecognitionTime(it.metadata) }
+            is RecognitionState.Error -> { calculateNextRecognitionTime(null) }
+            is RecognitionState.Failed -> { calculateNextRecognitionTime(null) }
+            else -> null
+        }
+    }.filterNotNull()
+
+    /**
+     *  Emits the delay until the next check when a recognition was skipped, since no recognition
+     *  state is emitted in that case
+     */
+    private val skippedRecognitionDelay = MutableSharedFlow<Long>()
+
+    /**
+     *  Delay until the next [ticker] emission, each replacing the last
+     */
+    val nextRecognitionDelay = merge(recognitionDelay, skippedRecognitionDelay)
+
+    /**
+     *  Starts the loop with an immediate recognition. Anything collecting [nextRecognitionDelay]
+     *  or [recognitionState] should have started first.
+     */
+    fun start() {
+        scope.launch { runRecogniser() }
+        scope.launch { runScreenOn() }
+        scope.launch { runToggle() }
+        scope.launch {
+            //Start the recognition flow
+            publishState(null)
+        }
+    }
+
+    private suspend fun runRecogniser() {
+        ticker.flatMapLatest {
+            if(!enabled.firstNotNull()) return@flatMapLatest MutableStateFlow(null)
+            audioContext.getCaptureSkipReason()?.let { reason ->
+                log("Skipping capture for $reason: ${audioContext.getSkipCounts()}")
+                calculateNextRecognitionTime(null)?.let {
+                    skippedRecognitionDelay.emit(it)
+                }
+                return@flatMapLatest MutableStateFlow(null)
+            }
+            when(musicPresence.checkForMusic()) {
+                GateResult.RECOGNISE -> recognition.requestRecognition().onEach {
+                    musicPresence.onRecognitionResult(it)
+                    schedule.onRecognitionResult(it)
+                }
+                GateResult.AUDIT -> recognition.requestRecognition().onEach {
+                    musicPresence.onAuditResult(it)
+                    schedule.onRecognitionResult(it)
+                }.also {
+                    log("No music detected, auditing: ${musicPresence.getStats()}")
+                }
+                GateResult.SKIP -> {
+                    log("No music detected, skipping: ${musicPresence.getStats()}")
+                    calculateSkippedRecognitionTime(musicPresence.consecutiveSkips)?.let {
+                        skippedRecognitionDelay.emit(it)
+                    }
+                    MutableStateFlow(null)
+                }
+            }
+        }.filterNotNull().collect {
+            log("Recognition state: $it, ${recognition.getSingleFlightStats()}")
+            publishState(it)
+        }
+    }
+
+    private suspend fun runScreenOn() {
+        screenOnTrigger.collect {
+            recognition.requestRecognition(allowCached = true).collect {
+                publishState(it)
+            }
+            log("Screen on recognition: ${recognition.getCacheStats()}")
+        }
+    }
+
+    private suspend fun runToggle() {
+        enabled.drop(1).collect {
+            if(it){
+                //Trigger an immediate recognition
+                publishState(null)
+            } else {
+                //Send a fake no match recognition to clear any previous recognitions
+                publishState(
+                    RecognitionState.Failed(RecognitionFailure(
+                        RecognitionFailureReason.NoMatch, RecognitionSource.NNFP, null)
+                    )
+                )
+            } //Disabled will be caught in the start recognition and not re-scheduled
+        }
+    }
+
+    fun publishState(state: RecognitionState?) {
+        recognitionEvents.publish(Origin.SERVICE, state)
+    }
+
+    suspend fun getDelayTime(metadata: RecognitionMetadata?): Long {
+        return metadata?.remainingTime?.let {
+            it + bufferTime.firstNotNull().time
+        } ?: delayTime.firstNotNull()
+    }
+
+    /**
+     *  Time the result should stop being shown, counted from when it was recognised rather than
+     *  from now, so a result replayed later isn't shown for longer
+     */
+    suspend fun getEndTime(state: RecognitionState.Recognised): Long {
+        val recognitionTime = state.metadata?.recognitionTime ?: currentTimeMillis()
+        return getDelayTime(state.metadata) + recognitionTime
+    }
+
+    private suspend fun calculateNextRecognitionTime(
+        metadata: RecognitionMetadata?,
+        timeOverride: Long? = null
+    ): Long? {
+        val period = settings.recognitionPeriod.get()
+        if(period == RecognitionPeriod.NEVER) return null
+        if(timeOverride != null) return timeOverride
+        val adaptive = settings.recognitionPeriodAdaptive.get()
+        return RecognitionScheduler.getNextRecognitionDelay(
+            period.period,
+            settings.recognitionBuffer.get().time,
+            adaptive,
+            metadata?.remainingTime,
+            getScheduleMultiplier(adaptive && metadata == null)
+        )
+    }
+
+    /**
+     *  Returns the time until the next check after [consecutiveSkips] recognitions have been
+     *  skipped in a row, doubling each time when the adaptive period is enabled
+     */
+    private suspend fun calculateSkippedRecognitionTime(consecutiveSkips: Int): Long? {
+        val period = settings.recognitionPeriod.get()
+        if(period == RecognitionPeriod.NEVER) return null
+        val adaptive = settings.recognitionPeriodAdaptive.get()
+        return RecognitionScheduler.getSkippedRecognitionDelay(
+            period.period,
+            settings.recognitionBuffer.get().time,
+            adaptive,
+            consecutiveSkips,
+            getScheduleMultiplier(adaptive)
+        )
+    }
+
+    /**
+     *  Returns how much to scale the period by for how often music matches at this time of the
+     *  week, only loading the model when it will be [used]
+     */
+    private suspend fun getScheduleMultiplier(used: Boolean): Float {
+        if(!used) return 1f
+        return schedule.getPeriodMultiplier().also {
+            log("Schedule multiplier: $it")
+        }
+    }
+
+}
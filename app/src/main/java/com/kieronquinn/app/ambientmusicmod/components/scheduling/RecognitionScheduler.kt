@@ -0,0 +1,55 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+/**
+ *  The timing decisions behind automatic recognitions, kept free of Android, coroutine and
+ *  wall clock dependencies so they can be run against a virtual clock off device. Times are in
+ *  milliseconds, and the caller supplies everything read from settings or the schedule model.
+ */
+object RecognitionScheduler {
+
+    //Skipped recognitions back off to at most 2^2 = 4x the normal period
+    const val MAX_SKIP_BACKOFF_SHIFT = 2
+
+    /**
+     *  Returns the delay until the next recognition.
+     *
+     *  @param period The recognition period, or null if automatic recognition is disabled
+     *  @param buffer Extra time added to every delay
+     *  @param adaptive Whether the adaptive period is enabled
+     *  @param remainingTime Time left on the track that was just recognised, if any
+     *  @param multiplier Learned multiplier for the current time of the week, only used when
+     *  adaptive and nothing was recognised
+     */
+    fun getNextRecognitionDelay(
+        period: Long?,
+        buffer: Long,
+        adaptive: Boolean,
+        remainingTime: Long?,
+        multiplier: Float = 1f
+    ): Long? {
+        if(period == null) return null
+        return when {
+            !adaptive -> period + buffer
+            remainingTime != null -> remainingTime + buffer
+            else -> (period * multiplier).toLong() + buffer
+        }
+    }
+
+    /**
+     *  Returns the delay until the next check after [consecutiveSkips] recognitions have been
+     *  skipped in a row, doubling each time when the adaptive period is enabled
+     */
+    fun getSkippedRecognitionDelay(
+        period: Long?,
+        buffer: Long,
+        adaptive: Boolean,
+        consecutiveSkips: Int,
+        multiplier: Float = 1f
+    ): Long? {
+        val time = getNextRecognitionDelay(period, buffer, adaptive, null, multiplier)
+            ?: return null
+        if(!adaptive) return time
+        return time shl (consecutiveSkips - 1).coerceIn(0, MAX_SKIP_BACKOFF_SHIFT)
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.kieronquinn.app.ambientmusicmod.components.shards
+
+import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ *  Loads shards [maxConcurrentLoads] at a time with [loadShard], adding each to a
+ *  [ShardTrackMerger] as soon as it arrives rather than waiting for them all. Each load holds a
+ *  cursor open in PAM, so the limit should be kept low.
+ */
+class ShardTrackLoader(
+    private val maxConcurrentLoads: Int,
+    private val loadShard: (name: String, intern: (String) -> String) -> List<ShardTrack>
+) {
+
+    /**
+     *  Loads every shard in [shards], calling [onLoaded] with the number loaded so far and the
+     *  name of each shard as it finishes. [loadShard] blocks, so this should be called on the IO
+     *  dispatcher. Returns the merger with every shard added, ready to build.
+     */
+    suspend fun load(
+        shards: List<String>,
+        onLoaded: suspend (loaded: Int, name: String) -> Unit = { _, _ -> }
+    ): ShardTrackMerger = coroutineScope {
+        val merger = ShardTrackMerger()
+        val semaphore = Semaphore(maxConcurrentLoads)
+        val loaded = AtomicInteger(0)
+        shards.mapIndexed { index, name ->
+            launch {
+                val tracks = semaphore.withPermit {
+                    loadShard(name, merger::intern)
+                }
+                merger.add(index, tracks)
+                onLoaded(loaded.incrementAndGet(), name)
+            }
+        }.joinAll()
+        merger
+    }
+
+}
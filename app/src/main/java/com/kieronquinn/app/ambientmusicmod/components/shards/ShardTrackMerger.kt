@@ -0,0 +1,183 @@
+package com.kieronquinn.app.ambientmusicmod.components.shards
+
+import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
+import com.kieronquinn.app.ambientmusicmod.repositories.ShardsRepository.ShardCountry.Companion.CORE_SHARED_FILENAME
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ *  Merges the tracks of every shard into one list, with one track per track name and artist.
+ *  Shards are folded in with [add] as they arrive, in any order, and the result is the same as
+ *  merging them in their listed order.
+ *
+ *  Tracks are grouped in an open addressing table keyed directly on the name and artist, so no
+ *  key string or object is created per track. Each group keeps only the best track so far rather
+ *  than every track in it, and a group with a single track is returned as-is.
+ *
+ *  Strings repeated across many tracks (artists, albums and shard names) can be deduplicated with
+ *  [intern] while reading, so only one copy of each is kept.
+ */
+class ShardTrackMerger(expectedTracks: Int = DEFAULT_EXPECTED_TRACKS) {
+
+    companion object {
+        private const val DEFAULT_EXPECTED_TRACKS = 16_384
+        private const val MAX_LOAD_FACTOR = 0.5f
+    }
+
+    /**
+     *  Tracks with the same name and artist. The preferred track is the first (by shard and row)
+     *  not from the core shard, or the first if they all are.
+     */
+    private class Group(var firstSeen: Long, var preferred: ShardTrack) {
+        var preferredPosition = firstSeen
+        var linear: ShardTrack? = preferred.takeIf { it.isLinear }
+        var linearPosition = firstSeen
+        //Player URLs of every track after the first, with their positions, null for a single track
+        var players: ArrayList<Pair<Long, Array<String>>>? = null
+    }
+
+    private val pool = ConcurrentHashMap<String, String>()
+
+    private var capacity = tableSizeFor((expectedTracks / MAX_LOAD_FACTOR).toInt())
+    private var names = arrayOfNulls<String>(capacity)
+    private var artists = arrayOfNulls<String>(capacity)
+    private var groups = arrayOfNulls<Group>(capacity)
+    private var size = 0
+
+    /**
+     *  Returns a shared instance equal to [value], thread safe
+     */
+    fun intern(value: String): String {
+        return pool.putIfAbsent(value, value) ?: value
+    }
+
+    fun add(shardIndex: Int, tracks: List<ShardTrack>) = synchronized(this) {
+        tracks.forEachIndexed { row, track ->
+            add((shardIndex.toLong() shl 32) or row.toLong(), track)
+        }
+    }
+
+    fun build(): List<ShardTrack> = synchronized(this) {
+        val result = ArrayList<Group>(size)
+        for(group in groups) {
+            if(group != null) result.add(group)
+        }
+        result.sortBy { it.firstSeen }
+        result.map { it.createBest() }
+    }
+
+    private fun add(position: Long, track: ShardTrack) {
+        val index = findSlot(track.trackName, track.artist)
+        val group = groups[index]
+        if(group == null) {
+            names[index] = track.trackName
+            artists[index] = track.artist
+            groups[index] = Group(position, track)
+            size++
+            if(size > capacity * MAX_LOAD_FACTOR) resize()
+            return
+        }
+        group.add(position, track)
+    }
+
+    private fun Group.add(position: Long, track: ShardTrack) {
+        if(position < firstSeen) firstSeen = position
+        val isCore = track.database == CORE_SHARED_FILENAME
+        val isPreferredCore = preferred.database == CORE_SHARED_FILENAME
+        val isPreferred = if(isCore == isPreferredCore) {
+            position < preferredPosition
+        }else !isCore
+        val players = players ?: ArrayList<Pair<Long, Array<String>>>(2).also {
+            it.add(Pair(preferredPosition, preferred.playerUrls))
+            players = it
+        }
+        players.add(Pair(position, track.playerUrls))
+        if(isPreferred) {
+            preferred = track
+            preferredPosition = position
+        }
+        if(track.isLinear && (linear == null || position < linearPosition)) {
+            linear = track
+            linearPosition = position
+        }
+    }
+
+    private fun Group.createBest(): ShardTrack {
+        val players = players
+        if(players == null) {
+            //Only one track, only copy it if its player URLs contain duplicates
+            val playerUrls = preferred.playerUrls.distinctInPlace()
+            return if(playerUrls === preferred.playerUrls) {
+                preferred
+            }else preferred.copy(playerUrls = playerUrls)
+        }
+        players.sortBy { it.first }
+        val playerUrls = LinkedHashSet<String>()
+        players.forEach { playerUrls.addAll(it.second) }
+        return ShardTrack(
+            linear?.dbId ?: preferred.dbId,
+            preferred.id,
+            preferred.trackName,
+            preferred.artist,
+            preferred.googleId,
+            playerUrls.toTypedArray(),
+            preferred.album,
+            preferred.year,
+            linear != null,
+            preferred.database
+        )
+    }
+
+    /**
+     *  Returns this array if it has no duplicates, otherwise a copy without them. Player lists
+     *  are short, so this does not allocate for the common case.
+     */
+    private fun Array<String>.distinctInPlace(): Array<String> {
+        for(i in 1 until size) {
+            for(j in 0 until i) {
+                if(this[i] == this[j]) return distinct().toTypedArray()
+            }
+        }
+        return this
+    }
+
+    private fun findSlot(name: String, artist: String): Int {
+        val mask = capacity - 1
+        var index = hash(name, artist) and mask
+        while(true) {
+            if(groups[index] == null) return index
+            val slotArtist = artists[index]
+            if((slotArtist === artist || slotArtist == artist) && names[index] == name) return index
+            index = (index + 1) and mask
+        }
+    }
+
+    private fun resize() {
+        val oldNames = names
+        val oldArtists = artists
+        val oldGroups = groups
+        capacity *= 2
+        names = arrayOfNulls(capacity)
+        artists = arrayOfNulls(capacity)
+        groups = arrayOfNulls(capacity)
+        for(i in oldGroups.indices) {
+            val group = oldGroups[i] ?: continue
+            val index = findSlot(oldNames[i]!!, oldArtists[i]!!)
+            names[index] = oldNames[i]
+            artists[index] = oldArtists[i]
+            groups[index] = group
+        }
+    }
+
+    private fun hash(name: String, artist: String): Int {
+        val hash = 31 * name.hashCode() + artist.hashCode()
+        //Spread the high bits down, since the table is indexed by the low bits
+        return hash xor (hash ushr 16)
+    }
+
+    private fun tableSizeFor(size: Int): Int {
+        var capacity = 16
+        while(capacity < size) capacity = capacity shl 1
+        return capacity
+    }
+
+}
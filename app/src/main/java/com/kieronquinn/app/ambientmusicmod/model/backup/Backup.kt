@@ -3,22 +3,29 @@ package com.kieronquinn.app.ambientmusicmod.model.backup
 import com.google.gson.annotations.SerializedName
 
 data class Backup(
-    @SerializedName("version")
+    @SerializedName(FIELD_VERSION)
     val version: Int = VERSION,
-    @SerializedName("history")
+    @SerializedName(FIELD_HISTORY)
     val history: List<HistoryItem>,
-    @SerializedName("linear")
+    @SerializedName(FIELD_LINEAR)
     val linear: List<LinearItem>,
-    @SerializedName("linear_v3")
+    @SerializedName(FIELD_LINEAR_V3)
     val linearv3: List<LinearItem>,
-    @SerializedName("favourites")
+    @SerializedName(FIELD_FAVOURITES)
     val favourites: List<FavouritesItem>,
-    @SerializedName("settings")
+    @SerializedName(FIELD_SETTINGS)
     val settingsBackup: SettingsBackup
 ) {
 
     companion object {
         const val VERSION = 1
+
+        const val FIELD_VERSION = "version"
+        const val FIELD_HISTORY = "history"
+        const val FIELD_LINEAR = "linear"
+        const val FIELD_LINEAR_V3 = "linear_v3"
+        const val FIELD_FAVOURITES = "favourites"
+        const val FIELD_SETTINGS = "settings"
     }
 
 }
@@ -30,7 +30,7 @@ data class HistoryItem(
 ) {
 
     companion object {
-        private const val COLUMN_TIMESTAMP = "timestamp"
+        const val COLUMN_TIMESTAMP = "timestamp"
         private const val COLUMN_HISTORY_ENTRY = "history_entry"
         private const val COLUMN_TRACK_ID = "track_id"
         private const val COLUMN_ARTIST = "artist"
@@ -1,27 +1,176 @@
 package com.kieronquinn.app.ambientmusicmod.model.database
 
 import android.content.Context
+import android.database.Cursor
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
 import androidx.room.TypeConverters
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.kieronquinn.app.ambientmusicmod.model.shards.LinearTrack
+import com.kieronquinn.app.ambientmusicmod.model.shards.LinearTrackFts
 import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
-import com.kieronquinn.app.ambientmusicmod.utils.room.GsonConverter
+import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrackFts
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.toStringArray
+import com.kieronquinn.app.ambientmusicmod.utils.room.StringArrayConverter
+import org.json.JSONArray
 import java.io.File
 
 @Database(entities = [
-    ShardTrack::class
-], version = 1, exportSchema = false)
-@TypeConverters(GsonConverter::class)
+    ShardTrack::class,
+    LinearTrack::class,
+    ShardTrackFts::class,
+    LinearTrackFts::class
+], version = 7, exportSchema = false)
+@TypeConverters(StringArrayConverter::class)
 abstract class ShardTrackCacheDatabase: RoomDatabase() {
 
     companion object {
+
+        /**
+         *  Re-encodes player URLs from JSON to [StringArrayConverter]'s binary format
+         */
+        private val MIGRATION_2_3 = object: Migration(2, 3) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.migratePlayerUrls(
+                    "ShardTrack",
+                    "`db_id` TEXT NOT NULL, `id` TEXT NOT NULL, `track_name` TEXT NOT NULL, " +
+                            "`artist` TEXT NOT NULL, `google_id` TEXT NOT NULL, " +
+                            "`player_urls` BLOB NOT NULL, `album` TEXT, `year` INTEGER, " +
+                            "`is_linear` INTEGER NOT NULL, `database` TEXT, PRIMARY KEY(`db_id`)",
+                    arrayOf(
+                        "db_id", "id", "track_name", "artist", "google_id", "player_urls",
+                        "album", "year", "is_linear", "database"
+                    )
+                )
+                //CachedShardTrack is left as it is, MIGRATION_6_7 drops it
+            }
+        }
+
+        /**
+         *  Adds the on-demand tracks table, filled the next time the tracklist is loaded
+         */
+        private val MIGRATION_3_4 = object: Migration(3, 4) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `LinearTrack` (`db_id` TEXT NOT NULL, " +
+                            "`id` TEXT NOT NULL, `track_name` TEXT NOT NULL, " +
+                            "`artist` TEXT NOT NULL, `google_id` TEXT NOT NULL, " +
+                            "`player_urls` BLOB NOT NULL, `album` TEXT, `year` INTEGER, " +
+                            "`database` TEXT, PRIMARY KEY(`db_id`))"
+                )
+            }
+        }
+
+        /**
+         *  Adds full text indexes of the shard and on-demand tracks, built from the cached rows
+         */
+        private val MIGRATION_4_5 = object: Migration(4, 5) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.createFtsIndex("ShardTrackFts", "ShardTrack")
+                db.createFtsIndex("LinearTrackFts", "LinearTrack")
+            }
+        }
+
+        /**
+         *  Rebuilds the full text indexes, which could be left with stale entries by tracks that
+         *  replaced another with the same db_id
+         */
+        private val MIGRATION_5_6 = object: Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("INSERT INTO `ShardTrackFts`(`ShardTrackFts`) VALUES ('rebuild')")
+                db.execSQL("INSERT INTO `LinearTrackFts`(`LinearTrackFts`) VALUES ('rebuild')")
+            }
+        }
+
+        /**
+         *  Drops the per-shard track cache, since PAM has no per-shard hash to tell which shards
+         *  changed
+         */
+        private val MIGRATION_6_7 = object: Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DROP TABLE IF EXISTS `CachedShardTrack`")
+                db.execSQL("DROP TABLE IF EXISTS `ShardHash`")
+            }
+        }
+
+        /**
+         *  Creates the full text index [table] of [contentTable] as Room does, with the triggers
+         *  that keep it in sync, then indexes the rows already in [contentTable]
+         */
+        private fun SupportSQLiteDatabase.createFtsIndex(table: String, contentTable: String) {
+            execSQL(
+                "CREATE VIRTUAL TABLE IF NOT EXISTS `$table` USING FTS4(`track_name` TEXT NOT " +
+                        "NULL, `artist` TEXT NOT NULL, `album` TEXT, tokenize=unicode61 " +
+                        "`remove_diacritics=1`, content=`$contentTable`)"
+            )
+            val trigger = "room_fts_content_sync_$table"
+            val insert = "INSERT INTO `$table`(`docid`, `track_name`, `artist`, `album`) " +
+                    "VALUES (NEW.`rowid`, NEW.`track_name`, NEW.`artist`, NEW.`album`)"
+            val delete = "DELETE FROM `$table` WHERE `docid`=OLD.`rowid`"
+            execSQL("CREATE TRIGGER IF NOT EXISTS ${trigger}_BEFORE_UPDATE BEFORE UPDATE ON " +
+                    "`$contentTable` BEGIN $delete; END")
+            execSQL("CREATE TRIGGER IF NOT EXISTS ${trigger}_BEFORE_DELETE BEFORE DELETE ON " +
+                    "`$contentTable` BEGIN $delete; END")
+            execSQL("CREATE TRIGGER IF NOT EXISTS ${trigger}_AFTER_UPDATE AFTER UPDATE ON " +
+                    "`$contentTable` BEGIN $insert; END")
+            execSQL("CREATE TRIGGER IF NOT EXISTS ${trigger}_AFTER_INSERT AFTER INSERT ON " +
+                    "`$contentTable` BEGIN $insert; END")
+            execSQL("INSERT INTO `$table`(`$table`) VALUES ('rebuild')")
+        }
+
+        /**
+         *  Recreates [table] with the new [schema], copying every row across and converting the
+         *  player_urls column. SQLite can't change a column's type in place.
+         */
+        private fun SupportSQLiteDatabase.migratePlayerUrls(
+            table: String,
+            schema: String,
+            columns: Array<String>
+        ) {
+            val columnList = columns.joinToString(", ") { "`$it`" }
+            val playerUrls = columns.indexOf("player_urls")
+            execSQL("CREATE TABLE `${table}_new` ($schema)")
+            val insert = compileStatement(
+                "INSERT INTO `${table}_new` ($columnList) " +
+                        "VALUES (${columns.joinToString(", ") { "?" }})"
+            )
+            query("SELECT $columnList FROM `$table`").use { cursor ->
+                while(cursor.moveToNext()) {
+                    insert.clearBindings()
+                    for(i in columns.indices) {
+                        val index = i + 1
+                        when {
+                            i == playerUrls -> insert.bindBlob(
+                                index,
+                                StringArrayConverter.fromArray(
+                                    JSONArray(cursor.getString(i)).toStringArray()
+                                )
+                            )
+                            cursor.isNull(i) -> insert.bindNull(index)
+                            cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER -> {
+                                insert.bindLong(index, cursor.getLong(i))
+                            }
+                            else -> insert.bindString(index, cursor.getString(i))
+                        }
+                    }
+                    insert.executeInsert()
+                }
+            }
+            insert.close()
+            execSQL("DROP TABLE `$table`")
+            execSQL("ALTER TABLE `${table}_new` RENAME TO `$table`")
+        }
+
         fun getDatabase(context: Context): ShardTrackCacheDatabase {
             return Room.databaseBuilder(
                 context,
                 ShardTrackCacheDatabase::class.java,
                 context.getShardsDatabase().absolutePath
-            ).build()
+            ).addMigrations(
+                MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7
+            ).fallbackToDestructiveMigration().build()
         }
 
         fun exists(context: Context): Boolean {
@@ -1,21 +1,101 @@
 package com.kieronquinn.app.ambientmusicmod.model.database
 
+import androidx.paging.PagingSource
 import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import com.kieronquinn.app.ambientmusicmod.model.shards.LinearTrack
+import com.kieronquinn.app.ambientmusicmod.model.shards.ShardArtist
 import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
 
+private const val COLUMNS = "db_id, id, track_name, artist, google_id, player_urls, album, year, " +
+        "is_linear, `database`"
+
+//Merged shard tracks followed by on-demand tracks, as shown in the tracklist
+private const val ALL_TRACKS = "(select $COLUMNS from ShardTrack union all select db_id, id, " +
+        "track_name, artist, google_id, player_urls, album, year, 1 as is_linear, `database` " +
+        "from LinearTrack)"
+
+/**
+ *  Tracks matching the full text query :query, with a title_match column set if the title alone
+ *  matches :titleQuery
+ */
+private const val MATCHING_TRACKS = "(select t.db_id, t.id, t.track_name, t.artist, " +
+        "t.google_id, t.player_urls, t.album, t.year, t.is_linear, t.`database`, " +
+        "t.rowid in (select docid from ShardTrackFts where ShardTrackFts match :titleQuery) " +
+        "as title_match from ShardTrack t join ShardTrackFts f on t.rowid = f.docid " +
+        "where f match :query union all select t.db_id, t.id, t.track_name, " +
+        "t.artist, t.google_id, t.player_urls, t.album, t.year, 1 as is_linear, t.`database`, " +
+        "t.rowid in (select docid from LinearTrackFts where LinearTrackFts match :titleQuery) " +
+        "as title_match from LinearTrack t join LinearTrackFts f on t.rowid = f.docid " +
+        "where f match :query)"
+
+//Artists of the tracks matching the full text query :query
+private const val MATCHING_ARTISTS = "(select t.artist from ShardTrack t join ShardTrackFts f " +
+        "on t.rowid = f.docid where f match :query union all select t.artist " +
+        "from LinearTrack t join LinearTrackFts f on t.rowid = f.docid " +
+        "where f match :query)"
+
 @Dao
 interface ShardTrackDao {
 
-    @Query("select * from ShardTrack")
-    fun getAll(): List<ShardTrack>
+    @Query("select count(*) from ShardTrack")
+    fun getCount(): Int
 
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    /**
+     *  Inserts [shardTracks], which must have unique db_ids. A replaced row would not fire the
+     *  full text index's delete trigger, leaving a stale entry in the index, so a conflicting
+     *  row is ignored instead.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
     fun insert(shardTracks: List<ShardTrack>)
 
     @Query("delete from ShardTrack")
     fun clear()
 
-}
\ No newline at end of file
+    /**
+     *  Inserts [linearTracks], ignoring any conflicting row as [insert]
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    fun insertLinear(linearTracks: List<LinearTrack>)
+
+    @Query("delete from LinearTrack")
+    fun clearLinear()
+
+    /**
+     *  Tracks sorted by name, optionally only on-demand tracks or those by [artist]
+     */
+    @Query("select * from $ALL_TRACKS where (:linearOnly = 0 or is_linear = 1) " +
+            "and (:artist is null or artist = :artist) order by track_name collate nocase")
+    fun getTracks(linearOnly: Boolean, artist: String?): PagingSource<Int, ShardTrack>
+
+    /**
+     *  Tracks matching the full text [query], optionally only those by [artist]. Tracks whose
+     *  title matches [titleQuery] are ranked first, then each group is sorted by name.
+     */
+    @Query("select $COLUMNS from $MATCHING_TRACKS where (:artist is null or artist = :artist) " +
+            "order by title_match desc, track_name collate nocase")
+    fun searchTracks(
+        query: String,
+        titleQuery: String,
+        artist: String?
+    ): PagingSource<Int, ShardTrack>
+
+    /**
+     *  Artists sorted by name with their number of tracks, optionally only counting on-demand
+     *  tracks
+     */
+    @Query("select artist as name, count(*) as track_count from $ALL_TRACKS " +
+            "where (:linearOnly = 0 or is_linear = 1) group by artist order by artist collate nocase")
+    fun getArtists(linearOnly: Boolean): PagingSource<Int, ShardArtist>
+
+    /**
+     *  Artists with tracks matching the full text [query], sorted by name. [query] should only
+     *  match the artist column, so every track by a matching artist is counted.
+     */
+    @Query("select artist as name, count(*) as track_count from $MATCHING_ARTISTS " +
+            "group by artist order by artist collate nocase")
+    fun searchArtists(query: String): PagingSource<Int, ShardArtist>
+
+}
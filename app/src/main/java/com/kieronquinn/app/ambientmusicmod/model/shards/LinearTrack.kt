@@ -0,0 +1,64 @@
+package com.kieronquinn.app.ambientmusicmod.model.shards
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ *  A track from the on-demand (linear) database, cached alongside the merged shard tracks so the
+ *  tracklist can query both together
+ */
+@Entity
+data class LinearTrack(
+    @PrimaryKey
+    @ColumnInfo(name = "db_id")
+    val dbId: String,
+    @ColumnInfo(name = "id")
+    val id: String,
+    @ColumnInfo(name = "track_name")
+    val trackName: String,
+    @ColumnInfo(name = "artist")
+    val artist: String,
+    @ColumnInfo(name = "google_id")
+    val googleId: String,
+    @ColumnInfo(name = "player_urls")
+    val playerUrls: Array<String>,
+    @ColumnInfo(name = "album")
+    val album: String?,
+    @ColumnInfo(name = "year")
+    val year: Int?,
+    @ColumnInfo(name = "database")
+    val database: String?
+) {
+
+    constructor(track: ShardTrack): this(
+        track.dbId,
+        track.id,
+        track.trackName,
+        track.artist,
+        track.googleId,
+        track.playerUrls,
+        track.album,
+        track.year,
+        track.database
+    )
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (javaClass != other?.javaClass) return false
+
+        other as LinearTrack
+
+        if (dbId != other.dbId) return false
+        if (!playerUrls.contentEquals(other.playerUrls)) return false
+
+        return true
+    }
+
+    override fun hashCode(): Int {
+        var result = dbId.hashCode()
+        result = 31 * result + playerUrls.contentHashCode()
+        return result
+    }
+
+}
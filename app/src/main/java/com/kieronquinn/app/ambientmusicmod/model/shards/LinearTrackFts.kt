@@ -0,0 +1,24 @@
+package com.kieronquinn.app.ambientmusicmod.model.shards
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+
+/**
+ *  Full text index of [LinearTrack], as [ShardTrackFts]
+ */
+@Fts4(
+    contentEntity = LinearTrack::class,
+    tokenizer = FtsOptions.TOKENIZER_UNICODE61,
+    tokenizerArgs = ["remove_diacritics=1"]
+)
+@Entity
+data class LinearTrackFts(
+    @ColumnInfo(name = "track_name")
+    val trackName: String,
+    @ColumnInfo(name = "artist")
+    val artist: String,
+    @ColumnInfo(name = "album")
+    val album: String?
+)
@@ -0,0 +1,10 @@
+package com.kieronquinn.app.ambientmusicmod.model.shards
+
+import androidx.room.ColumnInfo
+
+data class ShardArtist(
+    @ColumnInfo(name = "name")
+    val name: String,
+    @ColumnInfo(name = "track_count")
+    val trackCount: Int
+)
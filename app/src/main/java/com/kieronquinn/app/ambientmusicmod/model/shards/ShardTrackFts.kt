@@ -0,0 +1,25 @@
+package com.kieronquinn.app.ambientmusicmod.model.shards
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+
+/**
+ *  Full text index of [ShardTrack], kept in sync by Room. Tokens are matched ignoring case and
+ *  diacritics.
+ */
+@Fts4(
+    contentEntity = ShardTrack::class,
+    tokenizer = FtsOptions.TOKENIZER_UNICODE61,
+    tokenizerArgs = ["remove_diacritics=1"]
+)
+@Entity
+data class ShardTrackFts(
+    @ColumnInfo(name = "track_name")
+    val trackName: String,
+    @ColumnInfo(name = "artist")
+    val artist: String,
+    @ColumnInfo(name = "album")
+    val album: String?
+)
@@ -0,0 +1,214 @@
+package com.kieronquinn.app.ambientmusicmod.repositories
+
+import android.content.Context
+import android.content.pm.PackageManager
+import android.media.AudioAttributes
+import android.media.AudioManager
+import android.media.AudioPlaybackConfiguration
+import android.media.AudioRecordingConfiguration
+import android.media.MediaRecorder
+import android.os.Handler
+import android.os.Looper
+import android.os.Process
+import com.kieronquinn.app.ambientmusicmod.PACKAGE_NAME_PAM
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepository.AudioContext
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepository.SkipReason
+import com.kieronquinn.app.ambientmusicmod.service.ShizukuService
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.PLAYER_STATE_STARTED
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.getClientUid
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.getPlayerState
+import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.stateIn
+
+/**
+ *  Tracks what the device's audio is being used for, so automatic recognitions can be skipped
+ *  when they would only fight another app for the microphone, or listen to the device itself.
+ */
+interface AudioContextRepository {
+
+    enum class SkipReason {
+        /**
+         *  Another app is recording, so the capture would fail or be silenced
+         */
+        OTHER_APP_RECORDING,
+
+        /**
+         *  A phone or VoIP call is in progress
+         */
+        IN_CALL,
+
+        /**
+         *  The device is actively playing media itself, only used when enabled in settings
+         */
+        LOCAL_PLAYBACK
+    }
+
+    data class AudioContext(
+        val isOtherAppRecording: Boolean = false,
+        val isInCall: Boolean = false,
+        val isPlayingMedia: Boolean = false
+    )
+
+    val audioContext: StateFlow<AudioContext>
+
+    /**
+     *  Returns why an automatic capture should be skipped right now, or null if it should run.
+     *  Skips are counted for [getSkipCounts].
+     */
+    suspend fun getCaptureSkipReason(): SkipReason?
+
+    fun getSkipCounts(): Map<SkipReason, Long>
+
+}
+
+class AudioContextRepositoryImpl(
+    private val settings: SettingsRepository,
+    context: Context
+): AudioContextRepository {
+
+    companion object {
+        //Hidden MediaRecorder.AudioSource.HOTWORD, used by this app's and PAM's own captures
+        private const val AUDIO_SOURCE_HOTWORD = 1999
+
+        private val CALL_MODES = arrayOf(
+            AudioManager.MODE_IN_CALL,
+            AudioManager.MODE_IN_COMMUNICATION,
+            AudioManager.MODE_RINGTONE
+        )
+
+        private val MEDIA_USAGES = arrayOf(
+            AudioAttributes.USAGE_MEDIA,
+            AudioAttributes.USAGE_GAME
+        )
+
+        /**
+         *  UIDs whose recordings are our own captures: this app, PAM, and the Shizuku service's
+         *  proxy, pre-roll and shared recordings, which run as shell or root
+         */
+        fun getOwnUids(appUid: Int, pamUid: Int?): Set<Int> {
+            return setOfNotNull(appUid, pamUid, ShizukuService.SHELL_UID, ShizukuService.ROOT_UID)
+        }
+
+        /**
+         *  Compares a recording's [clientUid] against [ownUids]. The UID is hidden from apps
+         *  without the privileged permission (reported as -1), in which case only hotword
+         *  recordings are assumed to be our own.
+         */
+        fun isOtherAppRecording(
+            clientUid: Int?,
+            clientAudioSource: Int,
+            ownUids: Set<Int>
+        ): Boolean {
+            val uid = clientUid?.takeIf { it >= 0 }
+                ?: return clientAudioSource != AUDIO_SOURCE_HOTWORD
+            return !ownUids.contains(uid)
+        }
+    }
+
+    private val audioManager =
+        context.getSystemService(Context.AUDIO_SERVICE) as AudioManager
+
+    //Recordings by either app or the Shizuku service are our own captures, not another app's
+    private val ownUids by lazy {
+        val pamUid = try {
+            context.packageManager.getPackageUid(PACKAGE_NAME_PAM, 0)
+        }catch (e: PackageManager.NameNotFoundException){
+            null
+        }
+        getOwnUids(Process.myUid(), pamUid)
+    }
+
+    private val scope = MainScope()
+    private val skipCounts = LongArray(SkipReason.values().size)
+
+    private val playbackConfigurations = callbackFlow {
+        val callback = object: AudioManager.AudioPlaybackCallback() {
+            override fun onPlaybackConfigChanged(configs: MutableList<AudioPlaybackConfiguration>) {
+                trySend(configs.toList())
+            }
+        }
+        trySend(audioManager.activePlaybackConfigurations)
+        audioManager.registerAudioPlaybackCallback(callback, Handler(Looper.getMainLooper()))
+        awaitClose {
+            audioManager.unregisterAudioPlaybackCallback(callback)
+        }
+    }
+
+    private val recordingConfigurations = callbackFlow {
+        val callback = object: AudioManager.AudioRecordingCallback() {
+            override fun onRecordingConfigChanged(configs: MutableList<AudioRecordingConfiguration>) {
+                trySend(configs.toList())
+            }
+        }
+        trySend(audioManager.activeRecordingConfigurations)
+        audioManager.registerAudioRecordingCallback(callback, Handler(Looper.getMainLooper()))
+        awaitClose {
+            audioManager.unregisterAudioRecordingCallback(callback)
+        }
+    }
+
+    override val audioContext = combine(
+        playbackConfigurations,
+        recordingConfigurations
+    ) { playback, recording ->
+        AudioContext(
+            isOtherAppRecording = recording.any { it.isOtherAppRecording() },
+            //Mode changes have no callback below API 31, but calls always change the configs
+            isInCall = isInCall(playback, recording),
+            isPlayingMedia = playback.any { it.isPlayingMedia() }
+        )
+    }.stateIn(scope, SharingStarted.Eagerly, AudioContext())
+
+    override suspend fun getCaptureSkipReason(): SkipReason? {
+        val audioContext = audioContext.value
+        val reason = when {
+            audioContext.isInCall || CALL_MODES.contains(audioManager.mode) -> SkipReason.IN_CALL
+            audioContext.isOtherAppRecording -> SkipReason.OTHER_APP_RECORDING
+            audioContext.isPlayingMedia && settings.skipRecognitionDuringPlayback.get() -> {
+                SkipReason.LOCAL_PLAYBACK
+            }
+            else -> null
+        } ?: return null
+        synchronized(skipCounts) {
+            skipCounts[reason.ordinal]++
+        }
+        return reason
+    }
+
+    override fun getSkipCounts() = synchronized(skipCounts) {
+        SkipReason.values().associateWith { skipCounts[it.ordinal] }
+    }
+
+    private fun isInCall(
+        playback: List<AudioPlaybackConfiguration>,
+        recording: List<AudioRecordingConfiguration>
+    ): Boolean {
+        if(CALL_MODES.contains(audioManager.mode)) return true
+        if(recording.any { it.clientAudioSource == MediaRecorder.AudioSource.VOICE_COMMUNICATION }) {
+            return true
+        }
+        return playback.any {
+            it.audioAttributes.usage == AudioAttributes.USAGE_VOICE_COMMUNICATION
+        }
+    }
+
+    private fun AudioRecordingConfiguration.isOtherAppRecording(): Boolean {
+        return isOtherAppRecording(getClientUid(), clientAudioSource, ownUids)
+    }
+
+    /**
+     *  Paused and stopped players stay in the active configurations, so only count those that
+     *  are started. If the state can't be read, any media player is assumed to be playing.
+     */
+    private fun AudioPlaybackConfiguration.isPlayingMedia(): Boolean {
+        if(!MEDIA_USAGES.contains(audioAttributes.usage)) return false
+        val state = getPlayerState() ?: return true
+        return state == PLAYER_STATE_STARTED
+    }
+
+}
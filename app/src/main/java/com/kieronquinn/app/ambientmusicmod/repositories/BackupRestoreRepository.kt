@@ -23,6 +23,7 @@ import com.kieronquinn.app.ambientmusicmod.repositories.BackupRestoreRepository.
 import com.kieronquinn.app.ambientmusicmod.repositories.BackupRestoreRepository.RestoreState
 import com.kieronquinn.app.ambientmusicmod.repositories.RemoteSettingsRepository.SettingsState
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.map
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.pagedQuery
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.safeQuery
 import com.kieronquinn.app.pixelambientmusic.model.SettingsStateChange
 import kotlinx.coroutines.Dispatchers
@@ -189,7 +190,7 @@ class BackupRestoreRepositoryImpl(
         emit(BackupState.WritingBackup)
         val success = gson.contentProviderBackedWriter(uri) {
             try {
-                gson.toJson(backup, Backup::class.java, it)
+                gson.writeBackup(it, backup)
                 true
             }catch (e: JsonIOException) {
                 false
@@ -202,13 +203,26 @@ class BackupRestoreRepositoryImpl(
         }))
     }.flowOn(Dispatchers.IO)
 
-    private suspend fun createBackup(flow: FlowCollector<BackupState>): Backup? {
+    /**
+     *  History is read lazily a page at a time while the backup is written, so it is never all
+     *  held in memory. Everything else is small enough to load up front.
+     */
+    private class StreamingBackup(
+        val history: Sequence<HistoryItem>,
+        val linear: List<LinearItem>,
+        val linearv3: List<LinearItem>,
+        val favourites: List<FavouritesItem>,
+        val settingsBackup: SettingsBackup
+    )
+
+    private suspend fun createBackup(flow: FlowCollector<BackupState>): StreamingBackup? {
         flow.emit(BackupState.LoadingHistory)
-        val history = contentProvider.safeQuery(
-            URI_HISTORY, null, null, null, null
-        )?.map {
+        //Only queried while the backup is written, the favourites query checks the provider
+        val history = contentProvider.pagedQuery(
+            URI_HISTORY, null, HistoryItem.COLUMN_TIMESTAMP
+        ) {
             HistoryItem.fromCursor(it)
-        } ?: return null
+        }
         flow.emit(BackupState.LoadingFavourites)
         val favourites = contentProvider.safeQuery(
             URI_FAVOURITES, null, null, null, null
@@ -228,7 +242,7 @@ class BackupRestoreRepositoryImpl(
         } ?: emptyList()
         flow.emit(BackupState.LoadingSettings)
         val settings = loadSettingsBackup() ?: return null
-        return Backup(
+        return StreamingBackup(
             history = history,
             linear = linear,
             linearv3 = linearv3,
@@ -237,6 +251,33 @@ class BackupRestoreRepositoryImpl(
         )
     }
 
+    /**
+     *  Writes [backup] in the same layout as [Backup], streaming the history as it is read
+     */
+    private fun Gson.writeBackup(writer: JsonWriter, backup: StreamingBackup) = with(writer) {
+        beginObject()
+        name(Backup.FIELD_VERSION).value(Backup.VERSION)
+        name(Backup.FIELD_HISTORY)
+        writeArray(this, backup.history, HistoryItem::class.java)
+        name(Backup.FIELD_LINEAR)
+        writeArray(this, backup.linear.asSequence(), LinearItem::class.java)
+        name(Backup.FIELD_LINEAR_V3)
+        writeArray(this, backup.linearv3.asSequence(), LinearItem::class.java)
+        name(Backup.FIELD_FAVOURITES)
+        writeArray(this, backup.favourites.asSequence(), FavouritesItem::class.java)
+        name(Backup.FIELD_SETTINGS)
+        toJson(backup.settingsBackup, SettingsBackup::class.java, this)
+        endObject()
+    }
+
+    private fun <T> Gson.writeArray(writer: JsonWriter, items: Sequence<T>, type: Class<T>) {
+        writer.beginArray()
+        items.forEach {
+            toJson(it, type, writer)
+        }
+        writer.endArray()
+    }
+
     override fun restoreBackup(uri: Uri, restoreOptions: RestoreOptions): Flow<RestoreState> = flow {
         emit(RestoreState.LoadingBackup)
         val file = createDocumentFile(uri)
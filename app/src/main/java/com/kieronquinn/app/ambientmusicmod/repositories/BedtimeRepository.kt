@@ -17,6 +17,12 @@ interface BedtimeRepository {
      */
     suspend fun checkTimeAndSyncWorkers()
 
+    /**
+     *  Update the time to check against without touching the workers, so bedtime can be picked
+     *  up by a wakeup that is happening anyway if the worker is deferred
+     */
+    suspend fun checkTime()
+
     fun isBedtime(): Flow<Boolean>
 
     fun isEnabled(): Flow<Boolean>
@@ -96,7 +102,7 @@ class BedtimeRepositoryImpl(
         checkTime()
     }
 
-    private suspend fun checkTime() {
+    override suspend fun checkTime() {
         time.emit(LocalTime.now())
     }
 
@@ -64,7 +64,7 @@ class ExternalAccessRepositoryImpl(
                 if(isOnDemandEnabled() != true) return@launch
                 recognitionRepository.requestOnDemandRecognition()
             }else{
-                recognitionRepository.requestRecognition()
+                recognitionRepository.requestRecognition(allowCached = true)
             }.collect {
                 if(it is RecognitionState.Recognised){
                     AmbientMusicModForegroundService.sendManualRecognition(it)
@@ -0,0 +1,136 @@
+package com.kieronquinn.app.ambientmusicmod.repositories
+
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepository.GateResult
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepository.GateStats
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
+
+/**
+ *  Cheap pre-check run before automatic recognitions. A short sample of audio is scored by the
+ *  Shizuku service, and if it doesn't look like music the recognition is skipped.
+ *
+ *  Every [AUDIT_INTERVAL]th check that doesn't look like music is allowed through as an audit, so
+ *  the gate's false negative rate (skips where music was actually playing) can be measured. Audits
+ *  are recognised, so they are counted separately from skips and don't add to the skip back off.
+ */
+interface MusicPresenceRepository {
+
+    enum class GateResult {
+        /**
+         *  Music is likely, or the check could not be run. Recognise as normal.
+         */
+        RECOGNISE,
+
+        /**
+         *  Music is unlikely, skip this recognition.
+         */
+        SKIP,
+
+        /**
+         *  Music is unlikely but recognise anyway, passing the result to [onAuditResult]
+         */
+        AUDIT
+    }
+
+    data class GateStats(
+        val checks: Long,
+        val skips: Long,
+        val audits: Long,
+        val falseNegatives: Long
+    ) {
+        val skipRate = if(checks > 0) skips / checks.toFloat() else 0f
+    }
+
+    /**
+     *  Number of skips since music was last detected or recognised
+     */
+    val consecutiveSkips: Int
+
+    fun getStats(): GateStats
+
+    suspend fun checkForMusic(): GateResult
+
+    /**
+     *  Returns whether music is playing right now, or null if the check could not be run. Unlike
+     *  [checkForMusic] this ignores the gate setting and is not counted in the stats.
+     */
+    suspend fun isMusicPresent(): Boolean?
+
+    fun onRecognitionResult(state: RecognitionState)
+
+    fun onAuditResult(state: RecognitionState)
+
+}
+
+class MusicPresenceRepositoryImpl(
+    private val shizuku: ShizukuServiceRepository,
+    private val settings: SettingsRepository
+): MusicPresenceRepository {
+
+    companion object {
+        const val AUDIT_INTERVAL = 10
+        private const val SAMPLE_DURATION = 1500
+        private const val MUSIC_PRESENCE_THRESHOLD = 0.1f
+    }
+
+    @Volatile
+    override var consecutiveSkips = 0
+        private set
+
+    private var checks = 0L
+    //Checks below the threshold, both skips and audits
+    private var belowThreshold = 0L
+    private var skips = 0L
+    private var audits = 0L
+    private var falseNegatives = 0L
+
+    override fun getStats() = synchronized(this) {
+        GateStats(checks, skips, audits, falseNegatives)
+    }
+
+    override suspend fun checkForMusic(): GateResult {
+        if(!settings.musicPresenceGateEnabled.get()) return GateResult.RECOGNISE
+        //A negative score means the check couldn't be run, so don't count it
+        val score = getScore() ?: return GateResult.RECOGNISE
+        synchronized(this) {
+            checks++
+            if(score >= MUSIC_PRESENCE_THRESHOLD) {
+                consecutiveSkips = 0
+                return GateResult.RECOGNISE
+            }
+            belowThreshold++
+            if(belowThreshold % AUDIT_INTERVAL == 0L) {
+                audits++
+                return GateResult.AUDIT
+            }
+            skips++
+            consecutiveSkips++
+            return GateResult.SKIP
+        }
+    }
+
+    override suspend fun isMusicPresent(): Boolean? {
+        return getScore()?.let { it >= MUSIC_PRESENCE_THRESHOLD }
+    }
+
+    private suspend fun getScore(): Float? {
+        val score = shizuku.runWithService {
+            it.getMusicPresenceScore(SAMPLE_DURATION)
+        }.unwrap() ?: -1f
+        return score.takeIf { it >= 0f }
+    }
+
+    override fun onRecognitionResult(state: RecognitionState) {
+        if(state is RecognitionState.Recognised) {
+            consecutiveSkips = 0
+        }
+    }
+
+    override fun onAuditResult(state: RecognitionState) {
+        if(state !is RecognitionState.Recognised) return
+        synchronized(this) {
+            falseNegatives++
+        }
+        onRecognitionResult(state)
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.kieronquinn.app.ambientmusicmod.repositories
+
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepository.Origin
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepository.RecognitionEvent
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.flow
+
+/**
+ *  Single bus for recognition states, shared by the foreground service, widgets, the overlay and
+ *  the recognition screen. Events are numbered and kept in a bounded ring buffer, so subscribers
+ *  that start late (such as a re-created service or widget) can catch up without asking PAM again.
+ *
+ *  Publishing never suspends. Each subscriber keeps its own position in the buffer, and one that
+ *  falls more than [BUFFER_SIZE] events behind skips to the oldest buffered event, so a slow
+ *  consumer never holds back the others.
+ */
+interface RecognitionEventRepository {
+
+    enum class Origin {
+        /**
+         *  Automatic, screen on and manual recognitions run by the foreground service
+         */
+        SERVICE,
+
+        /**
+         *  Recognitions started from a widget
+         */
+        WIDGET,
+
+        /**
+         *  Recognitions started from the recognition screen
+         */
+        APP
+    }
+
+    data class RecognitionEvent(
+        val sequence: Long,
+        val origin: Origin,
+        val state: RecognitionState?
+    )
+
+    /**
+     *  Sequence number of the last published event, or 0 if there have been none
+     */
+    fun getLatestSequence(): Long
+
+    fun publish(origin: Origin, state: RecognitionState?): RecognitionEvent
+
+    /**
+     *  Every event published after [afterSequence], in order, from the buffer and then live
+     */
+    fun getEvents(afterSequence: Long): Flow<RecognitionEvent>
+
+    /**
+     *  The latest event from [origin] (or any origin if null), conflated so a slow subscriber only
+     *  sees the newest. Emits null first if nothing has been published yet.
+     */
+    fun getLatestEvent(origin: Origin? = null): Flow<RecognitionEvent?>
+
+}
+
+class RecognitionEventRepositoryImpl: RecognitionEventRepository {
+
+    companion object {
+        private const val BUFFER_SIZE = 16
+    }
+
+    private val lock = Object()
+    private val buffer = arrayOfNulls<RecognitionEvent>(BUFFER_SIZE)
+    private var sequence = 0L
+
+    //Emits the latest sequence number, wakes subscribers without holding up the publisher
+    private val latestSequence = MutableStateFlow(0L)
+    private val latestEvent = MutableStateFlow<RecognitionEvent?>(null)
+    private val latestEventByOrigin = Origin.values().associateWith {
+        MutableStateFlow<RecognitionEvent?>(null)
+    }
+
+    override fun getLatestSequence() = synchronized(lock) {
+        sequence
+    }
+
+    override fun publish(origin: Origin, state: RecognitionState?) = synchronized(lock) {
+        sequence++
+        RecognitionEvent(sequence, origin, state).also {
+            buffer[(sequence % BUFFER_SIZE).toInt()] = it
+            latestEvent.value = it
+            latestEventByOrigin.getValue(origin).value = it
+            latestSequence.value = sequence
+        }
+    }
+
+    override fun getEvents(afterSequence: Long): Flow<RecognitionEvent> = flow {
+        var next = afterSequence + 1
+        latestSequence.collect { latest ->
+            while(next <= latest) {
+                val event = synchronized(lock) {
+                    //Fell behind and the event has been overwritten, skip to the oldest available
+                    next = next.coerceAtLeast(sequence - BUFFER_SIZE + 1)
+                    buffer[(next % BUFFER_SIZE).toInt()]
+                } ?: break
+                next++
+                emit(event)
+            }
+        }
+    }
+
+    override fun getLatestEvent(origin: Origin?): Flow<RecognitionEvent?> {
+        return if(origin != null) {
+            latestEventByOrigin.getValue(origin)
+        }else{
+            latestEvent
+        }
+    }
+
+}
@@ -1,10 +1,11 @@
 package com.kieronquinn.app.ambientmusicmod.repositories
 
+import android.content.ContentResolver
 import android.content.Context
 import android.database.ContentObserver
 import android.net.Uri
-import android.os.Handler
-import android.os.Looper
+import android.os.RemoteException
+import android.os.SystemClock
 import android.util.Log
 import com.google.audio.ambientmusic.HistoryData
 import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
@@ -15,17 +16,34 @@ import com.kieronquinn.app.ambientmusicmod.utils.extensions.safeRegisterContentO
 import com.kieronquinn.app.pixelambientmusic.IRecognitionCallback
 import com.kieronquinn.app.pixelambientmusic.IRecognitionService
 import com.kieronquinn.app.pixelambientmusic.model.*
-import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.async
 import kotlinx.coroutines.channels.awaitClose
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.catch
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.debounce
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.drop
+import kotlinx.coroutines.flow.emitAll
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.shareIn
+import kotlinx.coroutines.flow.takeWhile
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 
 interface RecognitionRepository {
 
@@ -44,12 +62,43 @@ interface RecognitionRepository {
         }
     }
 
+    /**
+     *  Counts of recognitions started, requests that were attached to one already in flight
+     *  rather than starting another, and in flight recognitions replaced by a higher priority one
+     */
+    data class SingleFlightStats(val started: Long, val coalesced: Long, val preempted: Long)
+
+    /**
+     *  Counts of cacheable requests answered from the recent recognition cache (either directly
+     *  or after a confirmation check), requests that ran a full recognition, and times the cache
+     *  was dropped before the track was expected to end
+     */
+    data class CacheStats(
+        val hits: Long,
+        val confirmedHits: Long,
+        val misses: Long,
+        val invalidations: Long
+    ) {
+        val hitRate = (hits + confirmedHits).let {
+            if(it + misses > 0) it / (it + misses).toFloat() else 0f
+        }
+    }
+
     val recognitionDialogShowing: Flow<Boolean>
     val recogniseFabClick: Flow<Unit>
 
-    fun requestRecognition(includeAudio: Boolean = false): Flow<RecognitionState>
+    /**
+     *  Requests an NNFP recognition. When [allowCached] is set and a recently recognised track is
+     *  still expected to be playing, it is returned instead of running a full recognition.
+     */
+    fun requestRecognition(
+        includeAudio: Boolean = false,
+        allowCached: Boolean = false
+    ): Flow<RecognitionState>
     fun requestOnDemandRecognition(): Flow<RecognitionState>
     fun getLatestRecognition(): Flow<LastRecognisedSong?>
+    fun getSingleFlightStats(): SingleFlightStats
+    fun getCacheStats(): CacheStats
 
     suspend fun onRecogniseFabClicked()
     suspend fun setRecognitionDialogShowing(showing: Boolean)
@@ -63,13 +112,25 @@ class RecognitionRepositoryImpl(
 ): RecognitionRepository, KoinComponent {
 
     companion object {
+        private const val TAG = "RecognitionRepository"
         private const val RECOGNITION_CALLBACK_TIMEOUT = 2500L
-        private val URI_HISTORY = Uri.Builder()
+
+        //Priorities for single flight, a request pre-empts an in flight one of lower priority
+        private const val PRIORITY_NNFP = 0
+        private const val PRIORITY_NNFP_WITH_AUDIO = 1
+        private const val PRIORITY_ON_DEMAND = 2
+
+        //Cached tracks are returned as-is for this long, then need a music presence check
+        private const val CACHE_CONFIRM_AFTER = 30_000L
+
+        //History changes arrive in bursts as PAM writes a recognition, only load once they stop
+        private const val HISTORY_CHANGE_DEBOUNCE = 500L
+        val URI_HISTORY: Uri = Uri.Builder()
             .scheme("content")
             .authority("com.google.android.as.pam.ambientmusic.historyprovider")
             .path("recognizedsongs")
             .build()
-        private const val COLUMN_HISTORY_TIMESTAMP = "timestamp"
+        const val COLUMN_HISTORY_TIMESTAMP = "timestamp"
         private const val COLUMN_HISTORY_HISTORY_ENTRY = "history_entry"
     }
 
@@ -78,10 +139,348 @@ class RecognitionRepositoryImpl(
     private suspend fun getService() = ambientServiceRepository.getService()
 
     private val remoteSettings by inject<RemoteSettingsRepository>()
+    private val musicPresence by inject<MusicPresenceRepository>()
+    private val audioContext by inject<AudioContextRepository>()
+    private val scope = MainScope()
+    private val flightLock = Object()
+    private var inFlight: Flight? = null
+    private var startedRecognitions = 0L
+    private var coalescedRequests = 0L
+    private var preemptedRecognitions = 0L
+    private val cacheLock = Object()
+    private var cachedTrack: CachedTrack? = null
+    private var cacheHits = 0L
+    private var cacheConfirmedHits = 0L
+    private var cacheMisses = 0L
+    private var cacheInvalidations = 0L
+    private val historyLock = Object()
+    private var latestRecognitionSnapshot: LastRecognisedSong? = null
+    private val historyReloadPending = AtomicBoolean(false)
+    private val callbackLock = Mutex()
+    private val requestCount = AtomicLong()
+    //Dispatchers by stream, and the service connection they are registered with
+    private val dispatchers = HashMap<String, CallbackDispatcher>()
+    private var registeredService: IRecognitionService? = null
+
+    /**
+     *  Persistent callback for one stream (source and whether audio is included), registered once
+     *  per service connection rather than once per request. PAM's callbacks don't echo a request
+     *  ID, so events are routed to the request currently attached by its ID. Once a newer request
+     *  attaches or the current one detaches, late events from the remote are dropped.
+     */
+    private class CallbackDispatcher(val stream: String): IRecognitionCallback.Stub() {
+
+        var callbackId: String? = null
+
+        private var requestId: String? = null
+        private var listener: IRecognitionCallback? = null
+
+        fun attach(requestId: String, listener: IRecognitionCallback) = synchronized(this) {
+            this.requestId = requestId
+            this.listener = listener
+        }
+
+        /**
+         *  Stops routing events to [requestId], returning false if another request has attached
+         *  since
+         */
+        fun detach(requestId: String): Boolean = synchronized(this) {
+            if(this.requestId != requestId) return false
+            this.requestId = null
+            listener = null
+            true
+        }
+
+        private fun getListener() = synchronized(this) { listener }
+
+        override fun onRecordingStarted() {
+            getListener()?.onRecordingStarted()
+        }
+
+        override fun onRecognitionStarted() {
+            getListener()?.onRecognitionStarted()
+        }
+
+        override fun onRecognitionSucceeded(
+            result: RecognitionResult,
+            metadata: RecognitionMetadata?
+        ) {
+            getListener()?.onRecognitionSucceeded(result, metadata)
+        }
+
+        override fun onRecognitionFailed(result: RecognitionFailure) {
+            getListener()?.onRecognitionFailed(result)
+        }
+
+    }
+
+    /**
+     *  The last recognised track, which is assumed to be playing until [expiresAt] (elapsed
+     *  realtime)
+     */
+    private class CachedTrack(
+        val state: RecognitionState.Recognised,
+        val metadata: RecognitionMetadata,
+        val recognisedAt: Long,
+        val expiresAt: Long
+    )
+
+    init {
+        //The device itself starting or stopping media may mean the track has changed. Only started
+        //players count, so players sitting paused or being set up don't drop the cache.
+        scope.launch {
+            audioContext.audioContext.map { it.isPlayingMedia }.distinctUntilChanged().drop(1)
+                .collect { invalidateCache() }
+        }
+    }
+
+    /**
+     *  A recognition in progress, shared between every request made while it runs. States are
+     *  replayed so late requests still see the latest state, followed by null when it finishes
+     *  or is replaced. The remote recognition of the flight it is [replacing] is cancelled before
+     *  this one starts, so the two don't compete for the microphone.
+     */
+    private inner class Flight(
+        val source: RecognitionSource,
+        val priority: Int,
+        private val stream: String,
+        private val replacing: Flight?,
+        request: Flow<RecognitionState>
+    ) {
+
+        val states = MutableSharedFlow<RecognitionState?>(replay = 2, extraBufferCapacity = 8)
+
+        @Volatile
+        var isFinished = false
+            private set
+
+        /**
+         *  The recognition that pre-empted this one, which requests should follow
+         */
+        @Volatile
+        var replacedBy: Flight? = null
+            private set
+
+        private val job = scope.launch {
+            replacing?.cancelRemote()
+            request.catch {
+                //Runs on the app's main scope, so must not throw
+                Log.e(TAG, "Recognition failed", it)
+                emit(RecognitionState.Error(ErrorReason.SHIZUKU_ERROR))
+            }.collect {
+                updateCache(it)
+                states.emit(it)
+            }
+        }.apply {
+            invokeOnCompletion {
+                isFinished = true
+                states.tryEmit(null)
+            }
+        }
+
+        suspend fun awaitFinished() {
+            states.takeWhile { it != null }.collect()
+        }
+
+        fun replaceWith(flight: Flight) {
+            replacedBy = flight
+            job.cancel()
+        }
+
+        suspend fun cancelRemote() {
+            try {
+                getService()?.cancelRecognition(stream)
+            }catch (e: RemoteException) {
+                //Remote has gone, or is a version without cancelling
+            }
+        }
+
+    }
+
+    /**
+     *  Attaches to the recognition in flight if it has the same or a higher priority, otherwise
+     *  starts a new one from [request], replacing any lower priority recognition, so On Demand
+     *  pre-empts NNFP. Only one recognition is ever running, so overlapping triggers share a
+     *  single microphone session.
+     *
+     *  Requests never attach to a recognition from another source, as its result would be handled
+     *  differently (On Demand results are not automatic recognitions). A request that can neither
+     *  attach nor pre-empt waits for the recognition in flight to finish, then tries again.
+     */
+    private fun runSingleFlight(
+        source: RecognitionSource,
+        includeAudio: Boolean,
+        priority: Int,
+        request: (requestId: String) -> Flow<RecognitionState>
+    ): Flow<RecognitionState> = flow {
+        var flight: Flight? = getOrStartFlight(source, includeAudio, priority, request)
+        while(flight != null) {
+            if(flight.source != source) {
+                flight.awaitFinished()
+                flight = getOrStartFlight(source, includeAudio, priority, request)
+                continue
+            }
+            flight.states.takeWhile { it != null }.collect { emit(it!!) }
+            flight = flight.replacedBy
+        }
+    }
+
+    private fun getOrStartFlight(
+        source: RecognitionSource,
+        includeAudio: Boolean,
+        priority: Int,
+        request: (requestId: String) -> Flow<RecognitionState>
+    ): Flight = synchronized(flightLock) {
+        val current = inFlight?.takeIf { !it.isFinished }
+        if(current != null && current.priority >= priority) {
+            //A request for another source will wait for this one instead
+            if(current.source == source) coalescedRequests++
+            return current
+        }
+        startedRecognitions++
+        val requestId = "${source.name}:${requestCount.incrementAndGet()}"
+        val stream = getStream(source, includeAudio)
+        Flight(source, priority, stream, current, request(requestId)).also {
+            if(current != null) {
+                preemptedRecognitions++
+                current.replaceWith(it)
+            }
+            inFlight = it
+        }
+    }
+
+    override fun getSingleFlightStats() = synchronized(flightLock) {
+        RecognitionRepository.SingleFlightStats(
+            startedRecognitions, coalescedRequests, preemptedRecognitions
+        )
+    }
+
+    private fun updateCache(state: RecognitionState) {
+        when(state) {
+            is RecognitionState.Recognised -> {
+                val metadata = state.metadata ?: return
+                val now = SystemClock.elapsedRealtime()
+                synchronized(cacheLock) {
+                    cachedTrack = CachedTrack(state, metadata, now, now + metadata.remainingTime)
+                }
+            }
+            is RecognitionState.Failed -> invalidateCache()
+            else -> {
+                //Not a result
+            }
+        }
+    }
+
+    private fun invalidateCache() = synchronized(cacheLock) {
+        val cached = cachedTrack ?: return
+        if(cached.expiresAt > SystemClock.elapsedRealtime()) cacheInvalidations++
+        cachedTrack = null
+    }
+
+    /**
+     *  Returns the cached track if it is still expected to be playing, with its metadata moved on
+     *  to the current position. Its recognition time is set to now, since the overlay times out
+     *  at the recognition time plus the remaining time and would otherwise hide early. Tracks
+     *  older than [CACHE_CONFIRM_AFTER] are only returned if a short music presence check still
+     *  hears music, otherwise the cache is invalidated.
+     */
+    private suspend fun getCachedTrack(): RecognitionState.Recognised? {
+        val cached = synchronized(cacheLock) { cachedTrack } ?: return null
+        val now = SystemClock.elapsedRealtime()
+        if(now >= cached.expiresAt) return null
+        val elapsed = now - cached.recognisedAt
+        if(elapsed >= CACHE_CONFIRM_AFTER) {
+            if(musicPresence.isMusicPresent() != true) {
+                invalidateCache()
+                return null
+            }
+            synchronized(cacheLock) { cacheConfirmedHits++ }
+        }else{
+            synchronized(cacheLock) { cacheHits++ }
+        }
+        val remainingTime = cached.expiresAt - SystemClock.elapsedRealtime()
+        return cached.state.copy(
+            metadata = cached.metadata.copy(
+                recognitionTime = System.currentTimeMillis(),
+                currentPos = cached.metadata.currentPos + elapsed,
+                remainingTime = remainingTime.coerceAtLeast(0L)
+            )
+        )
+    }
+
+    override fun getCacheStats() = synchronized(cacheLock) {
+        RecognitionRepository.CacheStats(
+            cacheHits, cacheConfirmedHits, cacheMisses, cacheInvalidations
+        )
+    }
+
+    /**
+     *  Attaches [listener] to the dispatcher for the stream of [source] and [includeAudio] under
+     *  [requestId], registering the dispatcher with [service] if it isn't already. When the
+     *  service connection has changed, the registrations left on the old connection are removed
+     *  from it, if its remote is still alive, and every stream is registered again on its next
+     *  use.
+     */
+    private suspend fun attachCallback(
+        service: IRecognitionService,
+        source: RecognitionSource,
+        includeAudio: Boolean,
+        requestId: String,
+        listener: IRecognitionCallback
+    ): CallbackDispatcher? = callbackLock.withLock {
+        val previousService = registeredService
+        if(previousService != null && previousService.asBinder() != service.asBinder()) {
+            dispatchers.values.forEach { it.removeFrom(previousService) }
+            dispatchers.clear()
+        }
+        registeredService = service
+        val stream = getStream(source, includeAudio)
+        val dispatcher = dispatchers[stream] ?: CallbackDispatcher(stream).apply {
+            val metadata = RecognitionCallbackMetadata(source, includeAudio, stream)
+            callbackId = try {
+                service.addRecognitionCallback(this, metadata)
+            }catch (e: RemoteException) {
+                null
+            } ?: return@withLock null
+            dispatchers[stream] = this
+        }
+        dispatcher.attach(requestId, listener)
+        dispatcher
+    }
+
+    /**
+     *  Detaches [requestId] from [dispatcher] once its request has finished. The dispatcher stays
+     *  registered until the connection changes, except for streams that include audio, which are
+     *  unregistered once idle so PAM doesn't attach audio to every later recognition.
+     */
+    private suspend fun detachCallback(
+        dispatcher: CallbackDispatcher,
+        requestId: String,
+        includeAudio: Boolean
+    ) = callbackLock.withLock {
+        if(!dispatcher.detach(requestId) || !includeAudio) return@withLock
+        if(dispatchers[dispatcher.stream] !== dispatcher) return@withLock
+        dispatchers.remove(dispatcher.stream)
+        registeredService?.let { dispatcher.removeFrom(it) }
+    }
+
+    private fun CallbackDispatcher.removeFrom(service: IRecognitionService) {
+        val id = callbackId ?: return
+        try {
+            service.removeRecognitionCallback(id)
+        }catch (e: RemoteException) {
+            //Remote has gone
+        }
+    }
+
+    private fun getStream(source: RecognitionSource, includeAudio: Boolean): String {
+        return "${source.name}:$includeAudio"
+    }
 
     private fun runRecognition(
         source: RecognitionSource,
         includeAudio: Boolean,
+        requestId: String,
         requestBlock: (IRecognitionService) -> Unit
     ) = callbackFlow {
         if(!shizukuServiceRepository.assertReady()) {
@@ -109,7 +508,7 @@ class RecognitionRepositoryImpl(
                 close()
             }
         }
-        val callback = object: IRecognitionCallback.Stub() {
+        val callback = object: IRecognitionCallback.Default() {
             override fun onRecordingStarted() {
                 hasStarted = true
                 trySend(RecognitionState.Recording(source))
@@ -135,21 +534,20 @@ class RecognitionRepositoryImpl(
                 close()
             }
         }
-        val metadata = RecognitionCallbackMetadata(source, includeAudio)
-        val service = getService() ?: run {
+        val service = getService()
+        val dispatcher = service?.let {
+            attachCallback(it, source, includeAudio, requestId, callback)
+        }
+        if(service == null || dispatcher == null) {
             hasStarted = true
             trySend(RecognitionState.Error(ErrorReason.API_INCOMPATIBLE))
             close()
             return@callbackFlow
         }
-        val callbackId = service.addRecognitionCallback(callback, metadata)
         requestBlock(service)
         awaitClose {
-            callbackId?.let {
-                //We need to disconnect regardless, even if the flow scope has gone
-                GlobalScope.launch {
-                    getService()?.removeRecognitionCallback(it)
-                }
+            scope.launch {
+                detachCallback(dispatcher, requestId, includeAudio)
             }
         }
     }
@@ -165,44 +563,100 @@ class RecognitionRepositoryImpl(
         recognitionDialogShowing.emit(showing)
     }
 
-    override fun requestRecognition(includeAudio: Boolean) = runRecognition(
-        RecognitionSource.NNFP, includeAudio
-    ) {
-        it.requestRecognition()
+    override fun requestRecognition(
+        includeAudio: Boolean,
+        allowCached: Boolean
+    ): Flow<RecognitionState> {
+        val recognition = runSingleFlight(
+            RecognitionSource.NNFP,
+            includeAudio,
+            if(includeAudio) PRIORITY_NNFP_WITH_AUDIO else PRIORITY_NNFP
+        ) { requestId ->
+            runRecognition(RecognitionSource.NNFP, includeAudio, requestId) {
+                it.requestRecognition()
+            }
+        }
+        //Requests for audio need a real capture
+        if(!allowCached || includeAudio) return recognition
+        return flow {
+            val cached = getCachedTrack()
+            if(cached != null) {
+                emit(cached)
+            }else{
+                synchronized(cacheLock) { cacheMisses++ }
+                emitAll(recognition)
+            }
+        }
     }
 
-    override fun requestOnDemandRecognition() = runRecognition(
-        RecognitionSource.ON_DEMAND, false //ON_DEMAND does not include audio
-    ) {
-        it.requestOnDemandRecognition()
+    override fun requestOnDemandRecognition() = runSingleFlight(
+        RecognitionSource.ON_DEMAND,
+        false, //ON_DEMAND does not include audio
+        PRIORITY_ON_DEMAND
+    ) { requestId ->
+        runRecognition(
+            RecognitionSource.ON_DEMAND, false, requestId //ON_DEMAND does not include audio
+        ) {
+            it.requestOnDemandRecognition()
+        }
     }
 
-    private fun loadLatestRecognition(): LastRecognisedSong? {
+    /**
+     *  Loads the latest recognition into [latestRecognitionSnapshot] and returns it. Unless
+     *  [reload] is set, only rows newer than the snapshot are fetched, and the history entry is
+     *  only parsed when there is one.
+     */
+    private fun loadLatestRecognition(reload: Boolean): LastRecognisedSong? = synchronized(historyLock) {
+        val after = if(reload) 0L else latestRecognitionSnapshot?.timestamp ?: 0L
         val cursor = contentResolver.safeQuery(
             URI_HISTORY,
             arrayOf(COLUMN_HISTORY_TIMESTAMP, COLUMN_HISTORY_HISTORY_ENTRY),
-            null,
-            null,
+            "$COLUMN_HISTORY_TIMESTAMP > ?",
+            arrayOf(after.toString()),
             "$COLUMN_HISTORY_TIMESTAMP DESC"
-        )
-        if(cursor == null || cursor.count == 0 || cursor.isAfterLast) return null
-        cursor.moveToFirst()
-        val timestamp = cursor.getLong(0)
-        val historyEntry = cursor.getBlob(1)
-        if(timestamp == 0L || historyEntry == null) return null
-        val entry = HistoryData.Item.parseFrom(historyEntry)
-        return LastRecognisedSong(
-            entry.track.title,
-            entry.track.artist,
-            timestamp,
-            if(entry.source == "ON_DEMAND") RecognitionSource.ON_DEMAND else RecognitionSource.NNFP
-        )
+        ) ?: return latestRecognitionSnapshot
+        val latest = cursor.use {
+            if(!it.moveToFirst()) return@use null
+            val timestamp = it.getLong(0)
+            if(timestamp <= after) return@use null
+            val historyEntry = it.getBlob(1) ?: return@use null
+            val entry = HistoryData.Item.parseFrom(historyEntry)
+            LastRecognisedSong(
+                entry.track.title,
+                entry.track.artist,
+                timestamp,
+                if(entry.source == "ON_DEMAND") RecognitionSource.ON_DEMAND else RecognitionSource.NNFP
+            )
+        }
+        if(latest != null || reload) {
+            latestRecognitionSnapshot = latest
+        }
+        latestRecognitionSnapshot
     }
 
-    override fun getLatestRecognition(): Flow<LastRecognisedSong?> = callbackFlow {
-        val observer = object: ContentObserver(Handler(Looper.getMainLooper())) {
-            override fun onChange(selfChange: Boolean) {
-                trySend(loadLatestRecognition())
+    /**
+     *  Emits when the history changes in a way that may have changed the latest recognition.
+     *  Notifications that only report updates to existing rows are ignored, and deletions mark
+     *  [historyReloadPending] so the next load starts from scratch.
+     */
+    private val historyChanges = callbackFlow {
+        val observer = object: ContentObserver(null) {
+            override fun onChange(selfChange: Boolean, uri: Uri?) {
+                //No flags before Android 11, so the change may have been a deletion
+                historyReloadPending.set(true)
+                trySend(Unit)
+            }
+
+            override fun onChange(selfChange: Boolean, uri: Uri?, flags: Int) {
+                when {
+                    flags and ContentResolver.NOTIFY_DELETE != 0 -> historyReloadPending.set(true)
+                    flags and ContentResolver.NOTIFY_INSERT != 0 -> {
+                        //Only newer rows need loading
+                    }
+                    flags and ContentResolver.NOTIFY_UPDATE != 0 -> return
+                    else -> historyReloadPending.set(true)
+                }
+                trySend(Unit)
             }
         }
         contentResolver.safeRegisterContentObserver(
@@ -210,10 +664,21 @@ class RecognitionRepositoryImpl(
             true,
             observer
         )
-        trySend(loadLatestRecognition())
         awaitClose {
             contentResolver.unregisterContentObserver(observer)
         }
     }
 
-}
\ No newline at end of file
+    private val latestRecognition = flow {
+        historyReloadPending.set(false)
+        emit(loadLatestRecognition(true))
+        historyChanges.debounce(HISTORY_CHANGE_DEBOUNCE).collect {
+            emit(loadLatestRecognition(historyReloadPending.getAndSet(false)))
+        }
+    }.flowOn(Dispatchers.IO)
+        .distinctUntilChanged()
+        .shareIn(scope, SharingStarted.WhileSubscribed(), replay = 1)
+
+    override fun getLatestRecognition(): Flow<LastRecognisedSong?> = latestRecognition
+
+}
@@ -0,0 +1,213 @@
+package com.kieronquinn.app.ambientmusicmod.repositories
+
+import android.content.Context
+import com.google.gson.annotations.SerializedName
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionScheduleRepository.ScheduleModel
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.pagedQuery
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.sample
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.time.Instant
+import java.time.LocalDateTime
+import java.time.ZoneId
+
+/**
+ *  Learns how often recognitions match for each hour of each day of the week, and scales the
+ *  recognition period by it: longer in slots where music never matches, shorter where matches
+ *  cluster.
+ *
+ *  The model is seeded once from the history provider, and from then on is only updated
+ *  incrementally with each automatic recognition's result. History only records matches and not
+ *  the attempts around them, so it is kept apart as the shape of each slot's prior rather than
+ *  counted as attempts that all matched.
+ */
+interface RecognitionScheduleRepository {
+
+    data class ScheduleModel(
+        @SerializedName("attempts")
+        val attempts: IntArray? = null,
+        @SerializedName("hits")
+        val hits: IntArray? = null,
+        @SerializedName("seeded")
+        val seeded: Boolean = false,
+        @SerializedName("seeded_hits")
+        val seededHits: IntArray? = null
+    )
+
+    /**
+     *  Returns the multiplier to apply to the recognition period at [time]
+     */
+    suspend fun getPeriodMultiplier(time: LocalDateTime = LocalDateTime.now()): Float
+
+    /**
+     *  Updates the model with the result of an automatic recognition
+     */
+    suspend fun onRecognitionResult(
+        state: RecognitionState,
+        time: LocalDateTime = LocalDateTime.now()
+    )
+
+}
+
+class RecognitionScheduleRepositoryImpl(
+    private val settings: SettingsRepository,
+    context: Context
+): RecognitionScheduleRepository {
+
+    companion object {
+        private const val SLOT_COUNT = 7 * 24
+
+        //Slots must have this many attempts in total before the period is changed at all
+        private const val MIN_TOTAL_ATTEMPTS = 48
+
+        //Weight of the overall hit rate in each slot's rate, so sparse slots stay near 1x
+        private const val PRIOR_WEIGHT = 4f
+
+        //Counts in a slot are halved past this, so the model keeps adapting to new habits
+        private const val MAX_SLOT_ATTEMPTS = 100
+
+        private const val MIN_MULTIPLIER = 0.5f
+        private const val MAX_MULTIPLIER = 2f
+
+        //Results are saved at most this often, rather than serialising the model for every one
+        private const val SAVE_INTERVAL = 60_000L
+    }
+
+    private val contentResolver = context.contentResolver
+    private val scope = MainScope()
+    private val lock = Mutex()
+    private val saveRequests = MutableSharedFlow<Unit>(
+        extraBufferCapacity = 1, onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+    private var attempts = IntArray(SLOT_COUNT)
+    private var hits = IntArray(SLOT_COUNT)
+    private var totalAttempts = 0
+    private var totalHits = 0
+    //Matches per slot from the history provider, not counted in attempts or hits
+    private var seededHits = IntArray(SLOT_COUNT)
+    private var meanSeededHits = 0f
+    private var isLoaded = false
+
+    override suspend fun getPeriodMultiplier(time: LocalDateTime) = lock.withLock {
+        loadIfRequired()
+        getMultiplier(time.toSlot())
+    }
+
+    override suspend fun onRecognitionResult(state: RecognitionState, time: LocalDateTime) {
+        val isHit = when(state) {
+            is RecognitionState.Recognised -> true
+            is RecognitionState.Failed -> false
+            else -> return //Not a result, or the recognition didn't run
+        }
+        lock.withLock {
+            loadIfRequired()
+            addResult(time.toSlot(), isHit)
+        }
+        saveRequests.tryEmit(Unit)
+    }
+
+    init {
+        setupSave()
+    }
+
+    private fun getMultiplier(slot: Int): Float {
+        if(totalAttempts < MIN_TOTAL_ATTEMPTS || totalHits == 0) return 1f
+        val overallRate = totalHits / totalAttempts.toFloat()
+        val priorRate = overallRate * getSeededWeight(slot)
+        val slotRate = (hits[slot] + PRIOR_WEIGHT * priorRate) / (attempts[slot] + PRIOR_WEIGHT)
+        if(slotRate <= 0f) return MAX_MULTIPLIER
+        return (overallRate / slotRate).coerceIn(MIN_MULTIPLIER, MAX_MULTIPLIER)
+    }
+
+    /**
+     *  How many times more often history matched in [slot] than in the average slot, 1 without
+     *  any history. Scales the overall rate to give the slot's prior, so history shapes sparse
+     *  slots without outweighing their own attempts.
+     */
+    private fun getSeededWeight(slot: Int): Float {
+        return (seededHits[slot] + 1f) / (meanSeededHits + 1f)
+    }
+
+    private fun addResult(slot: Int, isHit: Boolean) {
+        if(attempts[slot] >= MAX_SLOT_ATTEMPTS) {
+            totalAttempts -= attempts[slot] - attempts[slot] / 2
+            totalHits -= hits[slot] - hits[slot] / 2
+            attempts[slot] /= 2
+            hits[slot] /= 2
+        }
+        attempts[slot]++
+        totalAttempts++
+        if(isHit) {
+            hits[slot]++
+            totalHits++
+        }
+    }
+
+    private suspend fun loadIfRequired() {
+        if(isLoaded) return
+        val model = settings.recognitionScheduleModel.get()
+        val savedAttempts = model.attempts
+        val savedHits = model.hits
+        val savedSeededHits = model.seededHits
+        //Models seeded before history was kept apart have it mixed into their counts, so restart
+        val isCurrent = model.seeded && savedSeededHits?.size == SLOT_COUNT
+        if(isCurrent && savedAttempts?.size == SLOT_COUNT && savedHits?.size == SLOT_COUNT) {
+            attempts = savedAttempts
+            hits = savedHits
+            totalAttempts = attempts.sum()
+            totalHits = hits.sum()
+        }
+        if(isCurrent && savedSeededHits != null) {
+            seededHits = savedSeededHits
+            meanSeededHits = seededHits.sum() / SLOT_COUNT.toFloat()
+        }
+        isLoaded = true
+        if(!isCurrent) {
+            seedFromHistory()
+            save()
+        }
+    }
+
+    /**
+     *  Counts every match in the history provider into [seededHits], only run once
+     */
+    private suspend fun seedFromHistory() = withContext(Dispatchers.IO) {
+        val timestamps = contentResolver.pagedQuery(
+            RecognitionRepositoryImpl.URI_HISTORY,
+            arrayOf(RecognitionRepositoryImpl.COLUMN_HISTORY_TIMESTAMP),
+            RecognitionRepositoryImpl.COLUMN_HISTORY_TIMESTAMP
+        ) {
+            it.getLong(0)
+        }
+        val zone = ZoneId.systemDefault()
+        timestamps.filter { it != 0L }.forEach {
+            val time = LocalDateTime.ofInstant(Instant.ofEpochMilli(it), zone)
+            seededHits[time.toSlot()]++
+        }
+        meanSeededHits = seededHits.sum() / SLOT_COUNT.toFloat()
+    }
+
+    private fun setupSave() = scope.launch {
+        saveRequests.sample(SAVE_INTERVAL).collect {
+            lock.withLock { save() }
+        }
+    }
+
+    private suspend fun save() {
+        settings.recognitionScheduleModel.set(
+            ScheduleModel(attempts.copyOf(), hits.copyOf(), seeded = true, seededHits.copyOf())
+        )
+    }
+
+    private fun LocalDateTime.toSlot(): Int {
+        return (dayOfWeek.value - 1) * 24 + hour
+    }
+
+}
@@ -6,9 +6,11 @@ import androidx.annotation.StringRes
 import com.google.gson.annotations.SerializedName
 import com.kieronquinn.app.ambientmusicmod.BuildConfig
 import com.kieronquinn.app.ambientmusicmod.R
+import com.kieronquinn.app.ambientmusicmod.components.musicrecognition.RootMusicRecognitionManager
 import com.kieronquinn.app.ambientmusicmod.model.lockscreenoverlay.LockscreenOverlayStyle
 import com.kieronquinn.app.ambientmusicmod.repositories.BackupRestoreRepository.BackupResult
 import com.kieronquinn.app.ambientmusicmod.repositories.BaseSettingsRepository.AmbientMusicModSetting
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionScheduleRepository.ScheduleModel
 import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.*
 import java.time.Duration
 
@@ -18,6 +20,13 @@ interface SettingsRepository {
 
     val recognitionPeriod: AmbientMusicModSetting<RecognitionPeriod>
     val recognitionPeriodAdaptive: AmbientMusicModSetting<Boolean>
+
+    //Skips automatic recognitions when a short sample of audio doesn't look like music
+    val musicPresenceGateEnabled: AmbientMusicModSetting<Boolean>
+
+    //Learned per hour of the week hit rates used to scale the recognition period
+    val recognitionScheduleModel: AmbientMusicModSetting<ScheduleModel>
+
     val recognitionBuffer: AmbientMusicModSetting<RecognitionBuffer>
 
     val lockscreenOverlayEnhanced: AmbientMusicModSetting<Boolean>
@@ -34,6 +43,18 @@ interface SettingsRepository {
 
     val onDemandLockscreenEnabled: AmbientMusicModSetting<Boolean>
 
+    //How long the Google App's recognition service stays bound after an On Demand result
+    val recognitionServiceKeepWarmTimeout: AmbientMusicModSetting<Long>
+
+    //Seconds of audio kept from before an On Demand search is started, 0 disables it
+    val onDemandPreRollSeconds: AmbientMusicModSetting<Int>
+
+    //Runs captured audio through DC removal, automatic gain control and a limiter
+    val recordingProcessingEnabled: AmbientMusicModSetting<Boolean>
+
+    //Skips automatic recognitions while the device itself is playing media
+    val skipRecognitionDuringPlayback: AmbientMusicModSetting<Boolean>
+
     val triggerWhenScreenOn: AmbientMusicModSetting<Boolean>
     val bedtimeModeEnabled: AmbientMusicModSetting<Boolean>
     val bedtimeModeStart: AmbientMusicModSetting<Long>
@@ -165,6 +186,11 @@ class SettingsRepositoryImpl(
         private const val RECOGNITION_PERIOD_ADAPTIVE = "recognition_period_adaptive"
         private const val DEFAULT_RECOGNITION_PERIOD_ADAPTIVE = true
 
+        private const val MUSIC_PRESENCE_GATE_ENABLED = "music_presence_gate_enabled"
+        private const val DEFAULT_MUSIC_PRESENCE_GATE_ENABLED = false
+
+        private const val RECOGNITION_SCHEDULE_MODEL = "recognition_schedule_model"
+
         private const val RECOGNITION_BUFFER = "recognition_buffer"
         private val DEFAULT_RECOGNITION_BUFFER = RecognitionBuffer.SECONDS_10
 
@@ -177,6 +203,20 @@ class SettingsRepositoryImpl(
         private const val ON_DEMAND_LOCK_SCREEN_ENABLED = "on_demand_lock_screen_enabled"
         private const val DEFAULT_ON_DEMAND_LOCK_SCREEN_ENABLED = false
 
+        private const val RECOGNITION_SERVICE_KEEP_WARM_TIMEOUT = "recognition_service_keep_warm_timeout"
+        private const val DEFAULT_RECOGNITION_SERVICE_KEEP_WARM_TIMEOUT =
+            RootMusicRecognitionManager.DEFAULT_KEEP_WARM_TIMEOUT
+
+        private const val ON_DEMAND_PRE_ROLL_SECONDS = "on_demand_pre_roll_seconds"
+        private const val DEFAULT_ON_DEMAND_PRE_ROLL_SECONDS = 0
+
+        private const val RECORDING_PROCESSING_ENABLED = "recording_processing_enabled"
+        private const val DEFAULT_RECORDING_PROCESSING_ENABLED = false
+
+
+        private const val SKIP_RECOGNITION_DURING_PLAYBACK = "skip_recognition_during_playback"
+        private const val DEFAULT_SKIP_RECOGNITION_DURING_PLAYBACK = false
+
         private const val LOCK_SCREEN_OVERLAY_ON_TRACK_CLICKED = "lock_screen_overlay_on_track_clicked"
         private val DEFAULT_LOCK_SCREEN_OVERLAY_ON_TRACK_CLICKED = LockscreenOnTrackClicked.ASSISTANT
 
@@ -250,6 +290,14 @@ class SettingsRepositoryImpl(
         RECOGNITION_PERIOD_ADAPTIVE, DEFAULT_RECOGNITION_PERIOD_ADAPTIVE
     )
 
+    override val musicPresenceGateEnabled = boolean(
+        MUSIC_PRESENCE_GATE_ENABLED, DEFAULT_MUSIC_PRESENCE_GATE_ENABLED
+    )
+
+    override val recognitionScheduleModel = gson(
+        RECOGNITION_SCHEDULE_MODEL, ScheduleModel()
+    )
+
     override val recognitionBuffer = enum(RECOGNITION_BUFFER, DEFAULT_RECOGNITION_BUFFER)
 
     override val lockscreenOverlayEnhanced = boolean(
@@ -294,6 +342,22 @@ class SettingsRepositoryImpl(
         ON_DEMAND_LOCK_SCREEN_ENABLED, DEFAULT_ON_DEMAND_LOCK_SCREEN_ENABLED
     )
 
+    override val recognitionServiceKeepWarmTimeout = long(
+        RECOGNITION_SERVICE_KEEP_WARM_TIMEOUT, DEFAULT_RECOGNITION_SERVICE_KEEP_WARM_TIMEOUT
+    )
+
+    override val onDemandPreRollSeconds = int(
+        ON_DEMAND_PRE_ROLL_SECONDS, DEFAULT_ON_DEMAND_PRE_ROLL_SECONDS
+    )
+
+    override val recordingProcessingEnabled = boolean(
+        RECORDING_PROCESSING_ENABLED, DEFAULT_RECORDING_PROCESSING_ENABLED
+    )
+
+    override val skipRecognitionDuringPlayback = boolean(
+        SKIP_RECOGNITION_DURING_PLAYBACK, DEFAULT_SKIP_RECOGNITION_DURING_PLAYBACK
+    )
+
     override val triggerWhenScreenOn = boolean(
         TRIGGER_WHEN_SCREEN_ON, DEFAULT_TRIGGER_WHEN_SCREEN_ON
     )
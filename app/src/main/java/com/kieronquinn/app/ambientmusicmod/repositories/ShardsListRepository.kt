@@ -3,10 +3,13 @@ package com.kieronquinn.app.ambientmusicmod.repositories
 import android.content.ContentValues
 import android.content.Context
 import android.net.Uri
+import androidx.paging.PagingSource
+import com.kieronquinn.app.ambientmusicmod.components.shards.ShardTrackLoader
 import com.kieronquinn.app.ambientmusicmod.model.database.ShardTrackCacheDatabase
+import com.kieronquinn.app.ambientmusicmod.model.shards.LinearTrack
+import com.kieronquinn.app.ambientmusicmod.model.shards.ShardArtist
 import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
 import com.kieronquinn.app.ambientmusicmod.repositories.ShardsListRepository.GetState
-import com.kieronquinn.app.ambientmusicmod.repositories.ShardsRepository.ShardCountry.Companion.CORE_SHARED_FILENAME
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.contentReceiverAsFlow
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.isArmv7
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.map
@@ -14,6 +17,8 @@ import com.kieronquinn.app.ambientmusicmod.utils.extensions.runOnClose
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.safeDelete
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.safeQuery
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.safeUpdate
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.toMatchQuery
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.toSearchTokens
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.toStringArray
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.MainScope
@@ -22,6 +27,7 @@ import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.channelFlow
 import kotlinx.coroutines.flow.collect
 import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.flow
@@ -46,11 +52,36 @@ interface ShardsListRepository {
     ): Boolean
     suspend fun deleteLinearTrack(shardTrack: ShardTrack): Boolean
 
+    /**
+     *  Pages of tracks from the cache, sorted by name. Only valid once [tracks] is
+     *  [GetState.Loaded], and refreshed whenever the cache changes.
+     *
+     *  Each word of [searchTerm] must prefix a word in the title, artist or album, ignoring case
+     *  and diacritics. Tracks whose title matches are ranked first.
+     */
+    fun getTracks(
+        searchTerm: String,
+        linearOnly: Boolean,
+        artist: String? = null
+    ): PagingSource<Int, ShardTrack>
+
+    /**
+     *  Pages of artists from the cache, sorted by name, as [getTracks]. [searchTerm] is only
+     *  matched against the artist.
+     */
+    fun getArtists(searchTerm: String, linearOnly: Boolean): PagingSource<Int, ShardArtist>
+
     sealed class GetState {
         object Querying: GetState()
-        data class Loading(val current: Int, val total: Int): GetState()
+        /**
+         *  [current] of [total] shards have loaded, [shard] being the one that just finished
+         */
+        data class Loading(val current: Int, val total: Int, val shard: String? = null): GetState()
         object Merging: GetState()
-        data class Loaded(val tracks: List<ShardTrack>): GetState()
+        /**
+         *  The cache is up to date and can be read with [getTracks] and [getArtists]
+         */
+        object Loaded: GetState()
     }
 
 }
@@ -81,6 +112,12 @@ class ShardsListRepositoryImpl(
         private const val COLUMN_ALBUM = "album"
         private const val COLUMN_YEAR = "year"
         private const val COLUMN_DATABASE = "database"
+
+        //Shards loaded from the provider at once, each holds a cursor open in PAM
+        private const val MAX_CONCURRENT_SHARD_LOADS = 3
+
+        //Rows passed to each insert, so no single statement binds every track
+        private const val INSERT_BATCH_SIZE = 2_000
     }
 
     private val scope = MainScope()
@@ -114,18 +151,15 @@ class ShardsListRepositoryImpl(
 
     private fun getTracks() = flow {
         if(canUseLocalCache()){
-            val cached = shardsCacheDatabase.shardTrackDao().getAll()
             getLinear().collect {
-                emit(GetState.Loaded(cached + it))
+                emit(GetState.Loaded)
             }
         }else{
             combine(
                 getAndCacheTracks(),
                 getLinear()
-            ) { tracks, linear ->
-                if(tracks is GetState.Loaded) {
-                    emit(GetState.Loaded(tracks.tracks + linear))
-                }else emit(tracks)
+            ) { tracks, _ ->
+                emit(tracks)
             }.collect()
         }
     }.flowOn(Dispatchers.IO)
@@ -134,10 +168,16 @@ class ShardsListRepositoryImpl(
         val localHash = settingsRepository.shardsCacheHash.get()
             .takeIf { it.isNotBlank() }?.toIntOrNull() ?: return false
         if(!ShardTrackCacheDatabase.exists(context)) return false
+        //The database is recreated when its schema changes, which leaves the hash behind
+        if(databaseLock.withLock { shardsTrackDao.getCount() } == 0) return false
         val remoteHash = getRemoteHash() ?: return false
         return localHash == remoteHash
     }
 
+    /**
+     *  Returns the hash of all shards. PAM only serves one hash for them all, so any change to a
+     *  shard means every shard is read again.
+     */
     private fun getRemoteHash(): Int? {
         val uri = Uri.Builder().apply {
             scheme(SCHEME)
@@ -154,28 +194,44 @@ class ShardsListRepositoryImpl(
         return hash
     }
 
-    private fun getAndCacheTracks() = flow {
+    /**
+     *  Loads shards [MAX_CONCURRENT_SHARD_LOADS] at a time, adding each to the merge as soon as it
+     *  arrives rather than waiting for them all
+     */
+    private fun getAndCacheTracks() = channelFlow {
         val shards = getShards()
         val count = shards.size + 1
-        val tracks = shards.mapIndexed { index, name ->
-            emit(GetState.Loading(index + 1, count))
-            getTracksForShard(name)
-        }.toMutableList()
-        emit(GetState.Loading(shards.size, count))
-        emit(GetState.Merging)
-        val mergedTracks = tracks.merge()
+        send(GetState.Loading(0, count))
+        val merger = ShardTrackLoader(MAX_CONCURRENT_SHARD_LOADS, ::getTracksForShard)
+            .load(shards) { loaded, name ->
+                send(GetState.Loading(loaded, count, name))
+            }
+        send(GetState.Merging)
+        val mergedTracks = merger.build()
         val remoteHash = getRemoteHash()
-        //Now Playing may be out of date and not return a hash, in which case do not cache
+        //The tracklist reads from the cache, so it is always written
+        mergedTracks.cacheTracks()
+        //Now Playing may be out of date and not return a hash, in which case reload next time
         if(remoteHash != null) {
-            mergedTracks.cacheTracks()
             settingsRepository.shardsCacheHash.set(remoteHash.toString())
         }
-        emit(GetState.Loaded(mergedTracks))
+        send(GetState.Loaded)
     }.flowOn(Dispatchers.IO)
 
+    /**
+     *  Replaces the cached tracks in a single transaction, since the tracklist pages straight from
+     *  the table and would otherwise see it empty or half written. The hash is cleared until the
+     *  tracks are written, so an interrupted write is never mistaken for a complete cache.
+     */
     private suspend fun List<ShardTrack>.cacheTracks() = databaseLock.withLock {
-        shardsTrackDao.clear()
-        shardsTrackDao.insert(this)
+        settingsRepository.shardsCacheHash.set("")
+        shardsCacheDatabase.runInTransaction {
+            shardsTrackDao.clear()
+            //Merged groups can share a db_id, only the first is kept
+            distinctBy { it.dbId }.chunked(INSERT_BATCH_SIZE).forEach {
+                shardsTrackDao.insert(it)
+            }
+        }
     }
 
     private fun getShards(): List<String> {
@@ -194,14 +250,17 @@ class ShardsListRepositoryImpl(
         return shards
     }
 
-    private fun getTracksForShard(name: String): List<ShardTrack> {
+    private fun getTracksForShard(
+        name: String,
+        intern: (String) -> String
+    ): List<ShardTrack> {
         val uri = Uri.Builder().apply {
             scheme(SCHEME)
             authority(AUTHORITY)
             path(METHOD_GET)
             appendPath(name)
         }.build()
-        return getTracksForUri(uri, false)
+        return getTracksForUri(uri, false, intern)
     }
 
     private fun getLinear() = linearChange.mapLatest {
@@ -216,10 +275,52 @@ class ShardsListRepositoryImpl(
             path(METHOD_LINEAR)
             appendPath(linearName)
         }.build()
-        getTracksForUri(uri, true)
+        getTracksForUri(uri, true).also {
+            it.cacheLinearTracks()
+        }
+    }
+
+    private suspend fun List<ShardTrack>.cacheLinearTracks() = databaseLock.withLock {
+        shardsCacheDatabase.runInTransaction {
+            shardsTrackDao.clearLinear()
+            shardsTrackDao.insertLinear(distinctBy { it.dbId }.map { LinearTrack(it) })
+        }
+    }
+
+    override fun getTracks(
+        searchTerm: String,
+        linearOnly: Boolean,
+        artist: String?
+    ): PagingSource<Int, ShardTrack> {
+        val tokens = searchTerm.toSearchTokens()
+        if(linearOnly || tokens.isEmpty()) {
+            return shardsTrackDao.getTracks(linearOnly, artist)
+        }
+        return shardsTrackDao.searchTracks(
+            tokens.toMatchQuery(), tokens.toMatchQuery(COLUMN_TRACK_NAME), artist
+        )
+    }
+
+    override fun getArtists(
+        searchTerm: String,
+        linearOnly: Boolean
+    ): PagingSource<Int, ShardArtist> {
+        val tokens = searchTerm.toSearchTokens()
+        if(linearOnly || tokens.isEmpty()) {
+            return shardsTrackDao.getArtists(linearOnly)
+        }
+        return shardsTrackDao.searchArtists(tokens.toMatchQuery(COLUMN_ARTIST))
     }
 
-    private fun getTracksForUri(uri: Uri, isLinear: Boolean): List<ShardTrack> {
+    /**
+     *  Reads the tracks at [uri], passing strings repeated across tracks through [intern] so only
+     *  one copy of each is kept in memory
+     */
+    private fun getTracksForUri(
+        uri: Uri,
+        isLinear: Boolean,
+        intern: (String) -> String = { it }
+    ): List<ShardTrack> {
         val cursor = contentResolver.safeQuery(
             uri, null, null, null, null
         ) ?: return emptyList()
@@ -237,14 +338,14 @@ class ShardsListRepositoryImpl(
                 it.getString(columnDbId),
                 it.getString(columnId),
                 it.getString(columnTrackName),
-                it.getString(columnArtist),
+                intern(it.getString(columnArtist)),
                 it.getString(columnGoogleId),
                 it.getString(columnPlayers).parsePlayers(),
-                it.getString(columnAlbum),
+                it.getString(columnAlbum)?.let(intern),
                 it.getInt(columnYear),
                 isLinear,
                 if(columnDatabase != -1){
-                    it.getString(columnDatabase)
+                    it.getString(columnDatabase)?.let(intern)
                 }else null
             )
         }.also {
@@ -257,34 +358,6 @@ class ShardsListRepositoryImpl(
         return JSONArray(this).toStringArray()
     }
 
-    private fun List<List<ShardTrack>>.merge(): List<ShardTrack> {
-        //Merge the lists, then group by the shared ID and create the best track, then filter
-        return flatten().groupBy {
-            "${it.trackName}:${it.artist}"
-        }.map {
-            it.value.createBest()
-        }.distinctBy {
-            it.sharedName()
-        }
-    }
-
-    private fun List<ShardTrack>.createBest(): ShardTrack {
-        val preferred = firstOrNull { it.database != CORE_SHARED_FILENAME } ?: first()
-        val linear = firstOrNull { it.isLinear }
-        return ShardTrack(
-            linear?.dbId ?: preferred.dbId,
-            preferred.id,
-            preferred.trackName,
-            preferred.artist,
-            preferred.googleId,
-            map { it.playerUrls.toList() }.flatten().distinct().toTypedArray(),
-            preferred.album,
-            preferred.year,
-            any { it.isLinear },
-            preferred.database
-        )
-    }
-
     override suspend fun updateLinearTrack(
         shardTrack: ShardTrack,
         trackName: String,
@@ -5,7 +5,6 @@ import android.content.Context
 import android.content.ServiceConnection
 import android.content.pm.PackageManager
 import android.os.Build
-import android.os.Bundle
 import android.os.IBinder
 import android.os.RemoteException
 import com.kieronquinn.app.ambientmusicmod.BuildConfig
@@ -16,6 +15,9 @@ import com.kieronquinn.app.ambientmusicmod.service.ShizukuService
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.suspendCancellableCoroutineWithTimeout
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.drop
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.onEach
@@ -68,6 +70,7 @@ interface ShizukuServiceRepository {
 
 class ShizukuServiceRepositoryImpl(
     private val settingsRepository: SettingsRepository,
+    private val deviceConfigRepository: DeviceConfigRepository,
     context: Context
 ): ShizukuServiceRepository {
 
@@ -105,6 +108,27 @@ class ShizukuServiceRepositoryImpl(
         }
     }
 
+    /**
+     *  Settings sent to the service in its config. When any change while the service is running,
+     *  the config is sent again so they apply straight away rather than on the next start.
+     */
+    private val serviceConfig = combine(
+        settingsRepository.onDemandPreRollSeconds.asFlow(),
+        settingsRepository.recordingProcessingEnabled.asFlow(),
+        deviceConfigRepository.recordingGain.asFlow()
+    ) { it.toList() }
+
+    init {
+        setupServiceConfig()
+    }
+
+    private fun setupServiceConfig() = scope.launch {
+        serviceConfig.distinctUntilChanged().drop(1).collect {
+            if(service == null) return@collect
+            callServiceOnCreate()
+        }
+    }
+
     override suspend fun assertReady(): Boolean {
         val result = runWithService {
             it.ping()
@@ -235,12 +259,14 @@ class ShizukuServiceRepositoryImpl(
     private suspend fun callServiceOnCreate() {
         //Notifications + Accessibility only became an issue on 13+
         val shouldSetPermissions = Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
-        val config = if(shouldSetPermissions){
-            ShizukuService.createConfigBundle(
-                !settingsRepository.hasSetNotificationPermission.get(),
-                !settingsRepository.hasSetAccessibilityPermission.get()
-            )
-        }else Bundle.EMPTY
+        val config = ShizukuService.createConfigBundle(
+            shouldSetPermissions && !settingsRepository.hasSetNotificationPermission.get(),
+            shouldSetPermissions && !settingsRepository.hasSetAccessibilityPermission.get(),
+            settingsRepository.recognitionServiceKeepWarmTimeout.get(),
+            settingsRepository.onDemandPreRollSeconds.get(),
+            settingsRepository.recordingProcessingEnabled.get(),
+            deviceConfigRepository.recordingGain.get()
+        )
         val result = runWithService {
             it.onCreate(config)
         }
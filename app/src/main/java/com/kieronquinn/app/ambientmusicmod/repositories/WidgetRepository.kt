@@ -25,6 +25,7 @@ import com.kieronquinn.app.ambientmusicmod.providers.AmbientMusicModWidget41
 import com.kieronquinn.app.ambientmusicmod.providers.AmbientMusicModWidget42
 import com.kieronquinn.app.ambientmusicmod.providers.AmbientMusicModWidgetDynamic
 import com.kieronquinn.app.ambientmusicmod.providers.AmbientMusicModWidgetMinimal
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepository.Origin
 import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
 import com.kieronquinn.app.ambientmusicmod.repositories.RemoteSettingsRepository.SettingsState
 import com.kieronquinn.app.ambientmusicmod.service.AmbientMusicModForegroundService
@@ -49,7 +50,6 @@ import kotlinx.coroutines.launch
 interface WidgetRepository {
 
     fun notifyChanged()
-    fun notifyRecognitionState(recognitionState: RecognitionState?)
 
 }
 
@@ -57,7 +57,8 @@ class WidgetRepositoryImpl(
     context: Context,
     settings: SettingsRepository,
     remoteSettingsRepository: RemoteSettingsRepository,
-    private val recognitionRepository: RecognitionRepository
+    private val recognitionRepository: RecognitionRepository,
+    private val recognitionEventRepository: RecognitionEventRepository
 ): WidgetRepository {
 
     private val packageManager = context.packageManager
@@ -133,7 +134,7 @@ class WidgetRepositoryImpl(
     }
 
     private val widgetChanged = MutableStateFlow(System.currentTimeMillis())
-    private val recognitionState = MutableStateFlow<RecognitionState?>(null)
+    private val recognitionState = recognitionEventRepository.getLatestEvent().map { it?.state }
     private val enabled = remoteSettingsRepository.getRemoteSettings(scope).filterNotNull().map {
         it is SettingsState.Available && it.mainEnabled
     }
@@ -452,12 +453,6 @@ class WidgetRepositoryImpl(
         }
     }
 
-    override fun notifyRecognitionState(recognitionState: RecognitionState?) {
-        scope.launch {
-            this@WidgetRepositoryImpl.recognitionState.emit(recognitionState)
-        }
-    }
-
     private fun startRecognition(source: RecognitionSource) {
         recognitionJob?.cancel()
         recognitionJob = scope.launch {
@@ -467,7 +462,7 @@ class WidgetRepositoryImpl(
                 recognitionRepository.requestOnDemandRecognition()
             }
             flow.collect {
-                recognitionState.emit(it)
+                recognitionEventRepository.publish(Origin.WIDGET, it)
                 if(it is RecognitionState.Recognised){
                     AmbientMusicModForegroundService.sendManualRecognition(it)
                 }
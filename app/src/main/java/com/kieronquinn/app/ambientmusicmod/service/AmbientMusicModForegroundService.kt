@@ -20,55 +20,50 @@ import com.kieronquinn.app.ambientmusicmod.R
 import com.kieronquinn.app.ambientmusicmod.components.notifications.NotificationChannel
 import com.kieronquinn.app.ambientmusicmod.components.notifications.NotificationId
 import com.kieronquinn.app.ambientmusicmod.components.notifications.createNotification
+import com.kieronquinn.app.ambientmusicmod.components.scheduling.RecognitionLoop
 import com.kieronquinn.app.ambientmusicmod.model.lockscreenoverlay.OverlayState
 import com.kieronquinn.app.ambientmusicmod.model.lockscreenoverlay.stateEquals
 import com.kieronquinn.app.ambientmusicmod.model.recognition.Player
 import com.kieronquinn.app.ambientmusicmod.model.settings.BannerMessage
 import com.kieronquinn.app.ambientmusicmod.repositories.AccessibilityRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.BedtimeRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.DeviceConfigRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
 import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState.ErrorReason
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionScheduleRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.RemoteSettingsRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.RemoteSettingsRepository.SettingsState
 import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.LockscreenOnTrackClicked
-import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.RecognitionPeriod
 import com.kieronquinn.app.ambientmusicmod.repositories.ShizukuServiceRepository
-import com.kieronquinn.app.ambientmusicmod.repositories.WidgetRepository
 import com.kieronquinn.app.ambientmusicmod.ui.activities.MainActivity
 import com.kieronquinn.app.ambientmusicmod.utils.alarm.AlarmTimeout
 import com.kieronquinn.app.ambientmusicmod.utils.alarm.AlarmTimeout.Companion.MODE_RESCHEDULE_IF_SCHEDULED
+import com.kieronquinn.app.ambientmusicmod.utils.alarm.WakeupCounter
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.applySecurity
-import com.kieronquinn.app.ambientmusicmod.utils.extensions.autoClearAfterBy
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.batterySaverEnabled
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.broadcastReceiverAsFlow
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.dismissKeyguard
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.ellipsizeToSize
-import com.kieronquinn.app.ambientmusicmod.utils.extensions.firstNotNull
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.startForeground
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.verifySecurity
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.whenCreated
-import com.kieronquinn.app.pixelambientmusic.model.RecognitionFailure
-import com.kieronquinn.app.pixelambientmusic.model.RecognitionFailureReason
-import com.kieronquinn.app.pixelambientmusic.model.RecognitionMetadata
 import com.kieronquinn.app.pixelambientmusic.model.RecognitionSource
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableSharedFlow
-import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.collectLatest
 import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.drop
 import kotlinx.coroutines.flow.filterNotNull
-import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.map
-import kotlinx.coroutines.flow.mapLatest
 import kotlinx.coroutines.flow.mapNotNull
-import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.flow.stateIn
 import org.koin.android.ext.android.inject
 import java.time.Duration
@@ -83,7 +78,11 @@ class AmbientMusicModForegroundService: LifecycleService() {
     private val remoteSettings by inject<RemoteSettingsRepository>()
     private val accessibility by inject<AccessibilityRepository>()
     private val shizuku by inject<ShizukuServiceRepository>()
-    private val widgetRepository by inject<WidgetRepository>()
+    private val musicPresence by inject<MusicPresenceRepository>()
+    private val schedule by inject<RecognitionScheduleRepository>()
+    private val audioContext by inject<AudioContextRepository>()
+    private val recognitionEvents by inject<RecognitionEventRepository>()
+    private val wakeupCounter by inject<WakeupCounter>()
     private var overlayTimeoutJob: Job? = null
 
     private val notificationManager by lazy {
@@ -127,38 +126,32 @@ class AmbientMusicModForegroundService: LifecycleService() {
     private val loggingEnabled = deviceConfig.enableLogging.asFlow()
         .stateIn(lifecycleScope, SharingStarted.Eagerly, deviceConfig.enableLogging.getSync())
 
-    private val delayTime = combine(
-        settings.recognitionPeriod.asFlow(),
-        settings.recognitionBuffer.asFlow()
-    ) { time, buffer ->
-        time.period + buffer.time
-    }.stateIn(lifecycleScope, SharingStarted.Eagerly, null)
-
     private val remoteSettingsState = remoteSettings.getRemoteSettings(lifecycleScope)
         .filterNotNull()
 
-    private val isBedtime = bedtime.isBedtime().onEach {
-        log("Bedtime: $it")
-    }.stateIn(lifecycleScope, SharingStarted.Eagerly, null)
+    private val tickerFlow = MutableSharedFlow<Unit>()
 
-    private val enabled = combine(
-        remoteSettingsState,
+    private val loop = RecognitionLoop(
+        lifecycleScope,
+        recognition,
+        settings,
+        bedtime,
+        musicPresence,
+        schedule,
+        audioContext,
+        recognitionEvents,
+        remoteSettingsState.map { it is SettingsState.Available && it.mainEnabled },
         batterySaverEnabled(),
-        isBedtime.filterNotNull(),
-        settings.hasSeenSetup.asFlow(), //Only start after setup
-    ) { remote, batterySaver, bedtime, hasSeenSetup ->
-        remote is SettingsState.Available && remote.mainEnabled && !batterySaver && !bedtime && hasSeenSetup
-    }.distinctUntilChanged()
-
-    private val recognitionState = MutableSharedFlow<RecognitionState?>()
+        broadcastReceiverAsFlow(Intent.ACTION_SCREEN_ON).map { },
+        tickerFlow,
+        log = ::log
+    )
 
     private val ownerInfoState = combine(
         settings.lockscreenOwnerInfo.asFlow(),
         settings.lockscreenOwnerInfoFallback.asFlow(),
         settings.lockscreenOwnerInfoShowNote.asFlow(),
-        recognitionState.autoClearAfterBy {
-            if(it is RecognitionState.Recognised) it.metadata.getDelayTime() else null
-        }
+        loop.shownRecognitionState
     ) { enabled, fallback, showNote, state ->
         if(!enabled) return@combine null
         if(state !is RecognitionState.Recognised) return@combine fallback
@@ -195,16 +188,8 @@ class AmbientMusicModForegroundService: LifecycleService() {
         it.verifySecurity()
     }
 
-    private val screenOnTrigger = combine(
-        broadcastReceiverAsFlow(Intent.ACTION_SCREEN_ON),
-        settings.triggerWhenScreenOn.asFlow(),
-        enabled
-    ) { _, enabled, mainEnabled ->
-        if(mainEnabled && enabled) Unit else null
-    }.filterNotNull()
-
     private val overlayState = combine(
-        recognitionState,
+        loop.latestRecognitionState,
         accessibility.enabled,
         settings.lockscreenOverlayStyle.asFlow(),
         settings.lockscreenOverlayYPos.asFlow(),
@@ -246,8 +231,7 @@ class AmbientMusicModForegroundService: LifecycleService() {
                 }else null //Don't clear during recognising for screen on's sake
             }
             is RecognitionState.Recognised -> {
-                val recognitionTime = state.metadata?.recognitionTime ?: System.currentTimeMillis()
-                val endTime = state.metadata.getDelayTime() + recognitionTime
+                val endTime = loop.getEndTime(state)
                 OverlayState.Shown(
                     style,
                     yPos,
@@ -279,32 +263,10 @@ class AmbientMusicModForegroundService: LifecycleService() {
         }
     }.filterNotNull().distinctUntilChanged { old, new -> old.stateEquals(new) }
 
-    private val recognitionDelay = recognitionState.mapLatest {
-        if(it == null){
-            //Start immediate recognition when required (eg. on start), but skip if auto is disabled
-            return@mapLatest calculateNextRecognitionTime(null, 0).also {
-                log("Skipping check, using time $it")
-            }
-        }
-        when(it){
-            is RecognitionState.Recognised -> { calculateNextRecognitionTime(it.metadata) }
-            is RecognitionState.Error -> { calculateNextRecognitionTime(null) }
-            is RecognitionState.Failed -> { calculateNextRecognitionTime(null) }
-            else -> null
-        }
-    }.filterNotNull().onEach {
-        log("Recognition delay: $it, next trigger time ${LocalDateTime.now().plusNanos(Duration.ofMillis(it).toNanos())}")
-    }
-
-    private val bufferTime = settings.recognitionBuffer.asFlow()
-        .stateIn(lifecycleScope, SharingStarted.Eagerly, null)
-
     private val minuteTicker by lazy {
-        AlarmTimeout(alarmManager, alarmListener, ALARM_ID, handler)
+        AlarmTimeout(alarmManager, alarmListener, ALARM_ID, handler, wakeupCounter)
     }
 
-    private val tickerFlow = MutableSharedFlow<Unit>()
-
     private val alarmManager by lazy {
         getSystemService(Context.ALARM_SERVICE) as AlarmManager
     }
@@ -313,6 +275,8 @@ class AmbientMusicModForegroundService: LifecycleService() {
 
     private val alarmListener = AlarmManager.OnAlarmListener {
         whenCreated {
+            //The device is awake anyway, so pick up a deferred bedtime start or end now
+            bedtime.checkTime()
             tickerFlow.emit(Unit)
         }
     }
@@ -324,11 +288,11 @@ class AmbientMusicModForegroundService: LifecycleService() {
                 when(MessageType.values().firstOrNull { it.ordinal == msg.what }) {
                     MessageType.RECOGNITION -> {
                         val state = msg.obj as RecognitionState.Recognised
-                        recognitionState.emit(state)
+                        loop.publishState(state)
                     }
                     MessageType.TRIGGER_IMMEDIATE -> {
                         log("Triggering, delay = ${settings.recognitionPeriod.get()}")
-                        recognitionState.emit(null)
+                        loop.publishState(null)
                     }
                     else -> {
                         //No-op
@@ -342,21 +306,14 @@ class AmbientMusicModForegroundService: LifecycleService() {
         super.onCreate()
         MESSAGE_HANDLER = messageHandler
         startForeground(NotificationId.FOREGROUND_SERVICE, showNotification())
-        setupRecogniser()
         setupOverlay()
-        setupScreenOn()
-        setupToggle()
         setupBedtime()
-        setupWidget()
         setupOwnerInfo()
         setupErrorNotification()
         setupErrorNotificationRetry()
         setupOnDemandNotification()
         setupAlarm()
-        whenCreated {
-            //Start the recognition flow
-            recognitionState.emit(null)
-        }
+        loop.start()
     }
 
     override fun onDestroy() {
@@ -364,16 +321,6 @@ class AmbientMusicModForegroundService: LifecycleService() {
         super.onDestroy()
     }
 
-    private fun setupRecogniser() = whenCreated {
-        tickerFlow.flatMapLatest {
-            if(!enabled.firstNotNull()) return@flatMapLatest MutableStateFlow(null)
-            recognition.requestRecognition()
-        }.filterNotNull().collect {
-            log("Recognition state: $it")
-            recognitionState.emit(it)
-        }
-    }
-
     private fun showNotification(): Notification {
         val notificationIntent = Intent(Settings.ACTION_CHANNEL_NOTIFICATION_SETTINGS).apply {
             addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
@@ -417,36 +364,6 @@ class AmbientMusicModForegroundService: LifecycleService() {
         }
     }
 
-    private fun setupScreenOn() = whenCreated {
-        screenOnTrigger.collect {
-            recognition.requestRecognition().collect {
-                recognitionState.emit(it)
-            }
-        }
-    }
-
-    private fun setupToggle() = whenCreated {
-        enabled.drop(1).collect {
-            if(it){
-                //Trigger an immediate recognition
-                recognitionState.emit(null)
-            } else {
-                //Send a fake no match recognition to clear any previous recognitions
-                recognitionState.emit(
-                    RecognitionState.Failed(RecognitionFailure(
-                        RecognitionFailureReason.NoMatch, RecognitionSource.NNFP, null)
-                    )
-                )
-            } //Disabled will be caught in the start recognition and not re-scheduled
-        }
-    }
-
-    private fun setupWidget() = whenCreated {
-        recognitionState.collect {
-            widgetRepository.notifyRecognitionState(it)
-        }
-    }
-
     private fun setupBedtime() = whenCreated {
         bedtime.checkTimeAndSyncWorkers()
     }
@@ -458,14 +375,15 @@ class AmbientMusicModForegroundService: LifecycleService() {
     }
 
     private fun setupAlarm() = whenCreated {
-        recognitionDelay.collect {
+        loop.nextRecognitionDelay.collect {
+            log("Recognition delay: $it, next trigger time ${LocalDateTime.now().plusNanos(Duration.ofMillis(it).toNanos())}")
             alarmManager.cancel(alarmListener)
             minuteTicker.schedule(it, MODE_RESCHEDULE_IF_SCHEDULED)
         }
     }
 
     private fun setupErrorNotification() = whenCreated {
-        recognitionState.collect {
+        loop.recognitionState.collect {
             if(it is RecognitionState.Error){
                 showErrorNotification(it)
             }else if(it is RecognitionState.Recognised || it is RecognitionState.Failed){
@@ -555,12 +473,6 @@ class AmbientMusicModForegroundService: LifecycleService() {
         notificationManager.notify(NotificationId.WARNINGS.ordinal, notification)
     }
 
-    private suspend fun RecognitionMetadata?.getDelayTime(): Long {
-        return this?.remainingTime?.let {
-            it + bufferTime.firstNotNull().time
-        } ?: delayTime.firstNotNull()
-    }
-
     private fun onOverlayTrackClicked(state: RecognitionState.Recognised) = whenCreated {
         when(settings.lockscreenOverlayClicked.get()) {
             LockscreenOnTrackClicked.ASSISTANT -> {
@@ -597,23 +509,7 @@ class AmbientMusicModForegroundService: LifecycleService() {
 
     private fun onOverlayOnDemandClicked() = whenCreated {
         recognition.requestOnDemandRecognition().collect {
-            recognitionState.emit(it)
-        }
-    }
-
-    private suspend fun calculateNextRecognitionTime(
-        metadata: RecognitionMetadata?,
-        timeOverride: Long? = null
-    ): Long? {
-        val period = settings.recognitionPeriod.get()
-        if(period == RecognitionPeriod.NEVER) return null
-        if(timeOverride != null) return timeOverride
-        val buffer = settings.recognitionBuffer.get()
-        val adaptive = settings.recognitionPeriodAdaptive.get()
-        return when {
-            !adaptive -> period.period + buffer.time
-            metadata != null -> metadata.remainingTime + buffer.time
-            else -> period.period + buffer.time
+            loop.publishState(it)
         }
     }
 
@@ -7,6 +7,7 @@ import android.media.AudioFormat
 import android.media.musicrecognition.RecognitionRequest
 import android.os.Bundle
 import android.os.IBinder
+import android.os.SharedMemory
 import com.kieronquinn.app.ambientmusicmod.IMicrophoneDisabledStateCallback
 import com.kieronquinn.app.ambientmusicmod.IRecognitionCallback
 import com.kieronquinn.app.ambientmusicmod.IShellProxy
@@ -80,6 +81,18 @@ class ShellProxyService: Service() {
             }
         }
 
+        override fun AudioRecord_createSharedBuffer(sizeInBytes: Int): SharedMemory {
+            return runWithService {
+                it.AudioRecord_createSharedBuffer(sizeInBytes)
+            }
+        }
+
+        override fun AudioRecord_readShared(sizeInShorts: Int): Long {
+            return runWithService {
+                it.AudioRecord_readShared(sizeInShorts)
+            }
+        }
+
         override fun AudioRecord_getFormat(): AudioFormat {
             return runWithService {
                 it.AudioRecord_getFormat()
@@ -183,6 +196,10 @@ class ShellProxyService: Service() {
             throw SecurityException("Not exposed to external access")
         }
 
+        override fun getMusicPresenceScore(durationMs: Int): Float {
+            throw SecurityException("Not exposed to external access")
+        }
+
     }
 
 }
\ No newline at end of file
@@ -9,17 +9,28 @@ import android.hardware.SensorPrivacyManagerHidden
 import android.hardware.SensorPrivacyManagerHidden.OnSensorPrivacyChangedListener
 import android.media.AudioAttributes
 import android.media.AudioFormat
+import android.media.AudioManager
 import android.media.AudioRecord
 import android.media.MediaMetadata
 import android.media.musicrecognition.IMusicRecognitionManagerCallback
 import android.media.musicrecognition.MusicRecognitionManager
 import android.media.musicrecognition.RecognitionRequest
 import android.os.*
+import android.util.Log
 import android.view.IWindowManager
 import androidx.core.os.bundleOf
 import com.android.internal.policy.IKeyguardDismissCallback
 import com.android.internal.widget.ILockSettings
 import com.kieronquinn.app.ambientmusicmod.*
+import com.kieronquinn.app.ambientmusicmod.components.audio.CaptureBroker
+import com.kieronquinn.app.ambientmusicmod.components.audio.CaptureBufferPool
+import com.kieronquinn.app.ambientmusicmod.components.audio.MusicPresenceDetector
+import com.kieronquinn.app.ambientmusicmod.components.audio.SharedAudioRingBuffer
+import com.kieronquinn.app.ambientmusicmod.components.audio.processing.AudioProcessor
+import com.kieronquinn.app.ambientmusicmod.components.audio.processing.AudioProcessorChain
+import com.kieronquinn.app.ambientmusicmod.components.audio.processing.AutomaticGainProcessor
+import com.kieronquinn.app.ambientmusicmod.components.audio.processing.DcRemovalProcessor
+import com.kieronquinn.app.ambientmusicmod.components.audio.processing.SoftLimiterProcessor
 import com.kieronquinn.app.ambientmusicmod.components.musicrecognition.RootMusicRecognitionManager
 import com.kieronquinn.app.ambientmusicmod.utils.context.ShellContext
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.*
@@ -41,15 +52,40 @@ class ShizukuService: IShellProxy.Stub() {
         const val ROOT_PACKAGE = "android"
         const val SHELL_PACKAGE = "com.android.shell"
 
+        private const val DEBUG = false
+        private const val TAG = "ShizukuService"
+
         private const val KEY_SET_NOTIFICATION_PERMISSION = "set_notification_permission"
         private const val KEY_SET_ACCESSIBILITY_PERMISSION = "set_accessibility_permission"
+        private const val KEY_RECOGNITION_SERVICE_KEEP_WARM_TIMEOUT =
+            "recognition_service_keep_warm_timeout"
+        private const val KEY_ON_DEMAND_PRE_ROLL_SECONDS = "on_demand_pre_roll_seconds"
+        private const val KEY_RECORDING_PROCESSING_ENABLED = "recording_processing_enabled"
+        private const val KEY_RECORDING_GAIN = "recording_gain"
+
+        private const val MUSIC_PRESENCE_MAX_DURATION = 5000
+
+        //Format of the shared hotword recording, matching what PAM and the Google App request
+        private val HOTWORD_AUDIO_FORMAT = AudioFormat.Builder()
+            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+            .setSampleRate(16000)
+            .setChannelMask(AudioFormat.CHANNEL_IN_MONO)
+            .build()
 
         fun createConfigBundle(
             setNotificationPermission: Boolean,
-            setAccessibilityPermission: Boolean
+            setAccessibilityPermission: Boolean,
+            recognitionServiceKeepWarmTimeout: Long,
+            onDemandPreRollSeconds: Int,
+            recordingProcessingEnabled: Boolean,
+            recordingGain: Float
         ) = bundleOf(
             KEY_SET_NOTIFICATION_PERMISSION to setNotificationPermission,
-            KEY_SET_ACCESSIBILITY_PERMISSION to setAccessibilityPermission
+            KEY_SET_ACCESSIBILITY_PERMISSION to setAccessibilityPermission,
+            KEY_RECOGNITION_SERVICE_KEEP_WARM_TIMEOUT to recognitionServiceKeepWarmTimeout,
+            KEY_ON_DEMAND_PRE_ROLL_SECONDS to onDemandPreRollSeconds,
+            KEY_RECORDING_PROCESSING_ENABLED to recordingProcessingEnabled,
+            KEY_RECORDING_GAIN to recordingGain
         )
     }
 
@@ -67,18 +103,62 @@ class ShizukuService: IShellProxy.Stub() {
     private val audioRecord
         get() = _audioRecord ?: throw RuntimeException("Accessing an invalid AudioRecord")
 
+    //Set instead of _audioRecord when the proxied recording shares the capture broker
+    @Volatile
+    private var isBrokerRecording = false
+    @Volatile
+    private var brokerSubscription: CaptureBroker.Subscription? = null
+    private var brokerBufferSizeInBytes = 0
+
+    //Held while writing into or closing the shared buffer, so it can't be unmapped mid write
+    private val sharedAudioBufferLock = Object()
+    private var _sharedAudioBuffer: SharedAudioRingBuffer? = null
+    private val sharedAudioBuffer
+        get() = _sharedAudioBuffer ?: throw RuntimeException("Accessing an invalid shared buffer")
+    private val captureBufferPool = CaptureBufferPool()
+    private val musicPresenceDetector = MusicPresenceDetector()
+    private var musicPresenceBuffer = ShortArray(0)
+
+    //Applied to audio read by the AudioRecord proxy, null when processing is disabled
+    @Volatile
+    private var audioProcessor: AudioProcessor? = null
+
     private val scope = MainScope()
 
     private val recordingLock = Object()
     private val musicRecognitionManagerExecutor = Executors.newSingleThreadExecutor()
     private val sensorPrivacyListeners = HashMap<String, OnSensorPrivacyChangedListener>()
+    private var preRollSensorPrivacyListener: OnSensorPrivacyChangedListener? = null
+    private var isPreRollPausedForRecording = false
 
     private val rootMusicRecognitionManager by lazy {
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.S){
-            RootMusicRecognitionManager(context, getUserId())
+            RootMusicRecognitionManager(context, getUserId(), captureBroker)
         }else null
     }
 
+    /**
+     *  Shares one hotword recording between the proxied recording, On Demand searches and music
+     *  presence checks when they overlap, rather than each opening the mic in turn
+     */
+    private val captureBroker by lazy {
+        CaptureBroker(HOTWORD_AUDIO_FORMAT, onCaptureStateChanged = { isCapturing ->
+            //The pre-roll buffer has its own recording, so must give up the mic
+            if(isCapturing) {
+                rootMusicRecognitionManager?.pausePreRoll()
+            }else{
+                rootMusicRecognitionManager?.resumePreRoll()
+            }
+        }) { format, bufferSizeInBytes ->
+            createAudioRecord(
+                createHotwordAttributes(),
+                format,
+                AudioManager.AUDIO_SESSION_ID_GENERATE,
+                bufferSizeInBytes
+            )
+        }
+    }
+
     private val defaultAudioFormat by lazy {
         AudioFormat.Builder().build()
     }
@@ -124,6 +204,11 @@ class ShizukuService: IShellProxy.Stub() {
         }
     }
 
+    /**
+     *  Creates the proxied recording. If [audioFormat] matches the capture broker's, the
+     *  recording shares the broker's hotword mic instead, which always uses hotword attributes
+     *  and its own session, so [attributes] and [sessionId] are ignored in that case.
+     */
     override fun AudioRecord_create(
         attributes: AudioAttributes,
         audioFormat: AudioFormat,
@@ -132,38 +217,155 @@ class ShizukuService: IShellProxy.Stub() {
     ) = runWithClearedIdentity {
         //The service can only handle one recording at once, so is locked while recording until release is called
         synchronized(recordingLock){
-            _audioRecord = createAudioRecord(attributes, audioFormat, sessionId, bufferSizeInBytes)
+            if(captureBroker.matches(audioFormat)) {
+                //Share the hotword mic with anything else recording, the subscription is started with the recording
+                //The broker's own attributes and session are used, not the caller's
+                isBrokerRecording = true
+                brokerBufferSizeInBytes = bufferSizeInBytes
+            }else{
+                isBrokerRecording = false
+                //The pre-roll buffer can't share the hotword mic with this recording
+                if(!isPreRollPausedForRecording) {
+                    rootMusicRecognitionManager?.pausePreRoll()
+                    isPreRollPausedForRecording = true
+                }
+                _audioRecord = createAudioRecord(attributes, audioFormat, sessionId, bufferSizeInBytes)
+            }
+            audioProcessor?.reset()
         }
     }
 
     override fun AudioRecord_read(audioData: ByteArray, offsetInShorts: Int, sizeInShorts: Int): Int {
-        val outShorts = ShortArray(sizeInShorts)
-        val result = audioRecord.read(outShorts, offsetInShorts, sizeInShorts).also {
-            outShorts.toByteArray().copyInto(audioData)
+        val outShorts = captureBufferPool.getShorts(
+            getProxyBufferKey(), offsetInShorts + sizeInShorts
+        )
+        //Callers are told the whole buffer was filled, so this must not return a partial read
+        val result = readProxyRecording(outShorts, offsetInShorts, sizeInShorts, true).also {
+            if(it > 0) {
+                audioProcessor?.process(outShorts, offsetInShorts, it)
+                outShorts.copyIntoByteArray(audioData, offsetInShorts, it)
+            }
         }
         val bufferSize = AudioRecord_getBufferSizeInFrames()
         if(result <= 0) return result //Error or empty, don't process
         return bufferSize
     }
 
+    override fun AudioRecord_createSharedBuffer(sizeInBytes: Int): SharedMemory {
+        synchronized(sharedAudioBufferLock) {
+            _sharedAudioBuffer?.close()
+            return SharedAudioRingBuffer.create(sizeInBytes).also {
+                _sharedAudioBuffer = it
+            }.sharedMemory
+        }
+    }
+
+    /**
+     *  Reads up to [sizeInShorts] samples into the shared ring buffer, returning the new write
+     *  cursor, or the error code from [AudioRecord.read] if it failed. If the buffer is released
+     *  or replaced while the read blocks, the audio is dropped rather than written into it.
+     */
+    override fun AudioRecord_readShared(sizeInShorts: Int): Long {
+        val ringBuffer = sharedAudioBuffer
+        val size = sizeInShorts.coerceAtMost(ringBuffer.capacityInShorts)
+        val outShorts = captureBufferPool.getShorts(getProxyBufferKey(), size)
+        val result = readProxyRecording(outShorts, 0, size)
+        if(result < 0) return result.toLong() //Error, don't process
+        audioProcessor?.process(outShorts, 0, result)
+        synchronized(sharedAudioBufferLock) {
+            //Released while the read blocked
+            if(_sharedAudioBuffer !== ringBuffer) {
+                return AudioRecord.ERROR_INVALID_OPERATION.toLong()
+            }
+            return ringBuffer.write(outShorts, 0, result)
+        }
+    }
+
+    /**
+     *  Reads from the proxied recording, which is either a subscription to the capture broker or
+     *  a dedicated [AudioRecord] if the requested format didn't match the broker's.
+     *
+     *  A subscription returns only what has been captured so far, so if [readFully] is set this
+     *  keeps reading until [sizeInShorts] samples have been read, as a blocking [AudioRecord]
+     *  read would. If the recording ends before then, the error is returned instead.
+     */
+    private fun readProxyRecording(
+        audioData: ShortArray,
+        offsetInShorts: Int,
+        sizeInShorts: Int,
+        readFully: Boolean = false
+    ): Int {
+        if(isBrokerRecording) {
+            val subscription = brokerSubscription ?: return AudioRecord.ERROR_INVALID_OPERATION
+            if(!readFully) return subscription.read(audioData, offsetInShorts, sizeInShorts)
+            var read = 0
+            while(read < sizeInShorts) {
+                val result = subscription.read(
+                    audioData, offsetInShorts + read, sizeInShorts - read
+                )
+                if(result <= 0) return result
+                read += result
+            }
+            return read
+        }
+        return audioRecord.read(audioData, offsetInShorts, sizeInShorts)
+    }
+
+    private fun getProxyBufferKey(): Int {
+        return if(isBrokerRecording) {
+            brokerSubscription?.id ?: 0
+        }else audioRecord.audioSessionId
+    }
+
     override fun AudioRecord_startRecording() {
-        audioRecord.startRecording()
+        if(isBrokerRecording) {
+            brokerSubscription?.close()
+            brokerSubscription = captureBroker.subscribe()
+                ?: throw IllegalStateException("Failed to start shared recording")
+        }else{
+            audioRecord.startRecording()
+        }
     }
 
     override fun AudioRecord_release() {
+        synchronized(sharedAudioBufferLock) {
+            _sharedAudioBuffer?.close()
+            _sharedAudioBuffer = null
+        }
+        brokerSubscription?.let {
+            captureBufferPool.release(it.id)
+            it.close()
+            if(DEBUG) Log.d(TAG, "Closed broker subscription, overruns ${it.overruns}")
+        }
+        brokerSubscription = null
+        if(isBrokerRecording) {
+            isBrokerRecording = false
+            return
+        }
+        _audioRecord?.let {
+            captureBufferPool.release(it.audioSessionId)
+            if(DEBUG) Log.d(TAG, "Released capture buffers, $captureBufferPool")
+        }
         try {
             audioRecord.release()
             recordingLock.notify()
         }catch (e: IllegalMonitorStateException){
             //Already released
         }
+        if(isPreRollPausedForRecording) {
+            rootMusicRecognitionManager?.resumePreRoll()
+            isPreRollPausedForRecording = false
+        }
     }
 
     override fun AudioRecord_getFormat(): AudioFormat {
+        if(isBrokerRecording) return captureBroker.audioFormat
         return _audioRecord?.format ?: defaultAudioFormat
     }
 
     override fun AudioRecord_getBufferSizeInFrames(): Int {
+        //The broker's format is always mono PCM16, so each frame is two bytes
+        if(isBrokerRecording) return brokerBufferSizeInBytes / 2
         return try {
             audioRecord.bufferSizeInFrames
         }catch (e: Exception){
@@ -173,9 +375,58 @@ class ShizukuService: IShellProxy.Stub() {
     }
 
     override fun AudioRecord_getSampleRate(): Int {
+        if(isBrokerRecording) return captureBroker.audioFormat.sampleRate
         return audioRecord.sampleRate
     }
 
+    /**
+     *  Records [durationMs] of audio from the hotword mic and scores it with
+     *  [MusicPresenceDetector]. Returns -1 if the mic is busy or disabled, or recording failed, in
+     *  which case the caller should recognise as normal.
+     */
+    override fun getMusicPresenceScore(durationMs: Int): Float = runWithClearedIdentity {
+        //A dedicated recording holds the mic, and will answer the question anyway
+        if(_audioRecord?.recordingState == AudioRecord.RECORDSTATE_RECORDING) {
+            return@runWithClearedIdentity -1f
+        }
+        if(isMicrophoneDisabled()) return@runWithClearedIdentity -1f
+        val size = HOTWORD_AUDIO_FORMAT.sampleRate *
+                durationMs.coerceIn(0, MUSIC_PRESENCE_MAX_DURATION) / 1000
+        synchronized(musicPresenceDetector) {
+            if(musicPresenceBuffer.size < size) {
+                musicPresenceBuffer = ShortArray(size)
+            }
+            val samples = musicPresenceBuffer
+            //Shares the mic with any recording that's already running
+            val subscription = captureBroker.subscribe() ?: return@runWithClearedIdentity -1f
+            try {
+                var read = 0
+                while(read < size) {
+                    val result = subscription.read(samples, read, size - read)
+                    if(result <= 0) break
+                    read += result
+                }
+                if(read < size) return@runWithClearedIdentity -1f
+                musicPresenceDetector.analyse(samples, size).also {
+                    if(DEBUG) Log.d(TAG, "Music presence: $it, score ${it.score}")
+                }.score
+            }catch (e: Exception){
+                Log.e(TAG, "Failed to check for music presence", e)
+                -1f
+            }finally {
+                subscription.close()
+            }
+        }
+    }
+
+    private fun createHotwordAttributes(): AudioAttributes {
+        return AudioAttributes.Builder().apply {
+            AudioAttributes.Builder::class.java
+                .getMethod("setInternalCapturePreset", Integer.TYPE)
+                .invoke(this, 0x7CF)
+        }.build()
+    }
+
     @SuppressLint("NewApi", "MissingPermission", "UnsafeOptInUsageError")
     private fun createAudioRecord(
         audioAttributes: AudioAttributes,
@@ -353,6 +604,10 @@ class ShizukuService: IShellProxy.Stub() {
         }
     }
 
+    override fun getMusicRecognitionBindStats(): Bundle? {
+        return rootMusicRecognitionManager?.bindStats?.toBundle()
+    }
+
     override fun ping(): Boolean {
         return true
     }
@@ -452,6 +707,56 @@ class ShizukuService: IShellProxy.Stub() {
         if(config.getBoolean(KEY_SET_NOTIFICATION_PERMISSION, false)) {
             grantNotificationPermission()
         }
+        if(config.containsKey(KEY_RECOGNITION_SERVICE_KEEP_WARM_TIMEOUT)) {
+            rootMusicRecognitionManager?.keepWarmTimeout =
+                config.getLong(KEY_RECOGNITION_SERVICE_KEEP_WARM_TIMEOUT)
+        }
+        if(config.containsKey(KEY_ON_DEMAND_PRE_ROLL_SECONDS)) {
+            setupPreRoll(config.getInt(KEY_ON_DEMAND_PRE_ROLL_SECONDS))
+        }
+        setupAudioProcessor(
+            config.getBoolean(KEY_RECORDING_PROCESSING_ENABLED, false),
+            config.getFloat(KEY_RECORDING_GAIN, 1f)
+        )
+    }
+
+    /**
+     *  Sets up the processing applied to proxied recordings. PAM applies the recording gain itself
+     *  after reading, so rather than gaining again here the limiter's ceiling is lowered by the
+     *  gain, leaving PAM enough headroom that its gain doesn't clip.
+     */
+    private fun setupAudioProcessor(enabled: Boolean, recordingGain: Float) {
+        audioProcessor = if(enabled) {
+            AudioProcessorChain(
+                DcRemovalProcessor(),
+                AutomaticGainProcessor(),
+                SoftLimiterProcessor(Short.MAX_VALUE / recordingGain.coerceAtLeast(1f))
+            )
+        }else null
+    }
+
+    /**
+     *  Starts or stops the On Demand pre-roll buffer, which follows the microphone sensor privacy
+     *  toggle so it never records while the microphone is disabled.
+     */
+    private fun setupPreRoll(seconds: Int) = runWithClearedIdentity {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.S) return@runWithClearedIdentity
+        val manager = rootMusicRecognitionManager ?: return@runWithClearedIdentity
+        preRollSensorPrivacyListener?.let {
+            sensorPrivacyManager.removeSensorPrivacyListener(Sensors.MICROPHONE, it)
+        }
+        preRollSensorPrivacyListener = null
+        if(seconds > 0) {
+            val listener = OnSensorPrivacyChangedListener { sensor: Int, enabled: Boolean ->
+                if (sensor == Sensors.MICROPHONE) {
+                    manager.setMicrophoneDisabled(enabled)
+                }
+            }
+            sensorPrivacyManager.addSensorPrivacyListener(Sensors.MICROPHONE, listener)
+            preRollSensorPrivacyListener = listener
+            manager.setMicrophoneDisabled(isMicrophoneDisabled())
+        }
+        manager.setPreRollSeconds(seconds)
     }
 
     override fun expediteJobs(jobs: IntArray, force: Boolean) {
@@ -19,8 +19,9 @@ import com.kieronquinn.app.ambientmusicmod.model.recognition.Player
 import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
 import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState.ErrorReason
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepository.Origin
 import com.kieronquinn.app.ambientmusicmod.repositories.RemoteSettingsRepository
-import com.kieronquinn.app.ambientmusicmod.repositories.WidgetRepository
 import com.kieronquinn.app.ambientmusicmod.service.AmbientMusicModForegroundService
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.toByteArray
 import com.kieronquinn.app.pixelambientmusic.model.RecognitionFailure
@@ -183,7 +184,7 @@ abstract class RecognitionViewModel: ViewModel() {
 class RecognitionViewModelImpl(
     private val recognitionRepository: RecognitionRepository,
     private val navigation: RootNavigation,
-    private val widgetRepository: WidgetRepository,
+    private val recognitionEventRepository: RecognitionEventRepository,
     private val remoteSettingsRepository: RemoteSettingsRepository,
     context: Context
 ): RecognitionViewModel(), AudioTrack.OnPlaybackPositionUpdateListener {
@@ -237,7 +238,7 @@ class RecognitionViewModelImpl(
         state: RecognitionState,
         source: RecognitionSource
     ): Boolean {
-        widgetRepository.notifyRecognitionState(state)
+        recognitionEventRepository.publish(Origin.APP, state)
         return when(state){
             is RecognitionState.Recording -> {
                 if(this.state.value !is State.StartRecognising) {
@@ -3,16 +3,21 @@ package com.kieronquinn.app.ambientmusicmod.ui.screens.settings.advanced
 import android.os.Bundle
 import android.view.View
 import androidx.annotation.StringRes
+import androidx.core.content.ContextCompat
 import androidx.core.view.isVisible
 import com.kieronquinn.app.ambientmusicmod.R
+import com.kieronquinn.app.ambientmusicmod.components.musicrecognition.ServiceBindStats
 import com.kieronquinn.app.ambientmusicmod.model.settings.BaseSettingsItem
 import com.kieronquinn.app.ambientmusicmod.model.settings.GenericSettingsItem
 import com.kieronquinn.app.ambientmusicmod.ui.base.BackAvailable
 import com.kieronquinn.app.ambientmusicmod.ui.base.settings.BaseSettingsFragment
+import com.kieronquinn.app.ambientmusicmod.ui.screens.settings.advanced.SettingsAdvancedViewModel.PreRollSeconds
 import com.kieronquinn.app.ambientmusicmod.ui.screens.settings.advanced.SettingsAdvancedViewModel.State
+import com.kieronquinn.app.ambientmusicmod.utils.alarm.WakeupCounter.WakeupCounts
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.isArmv7
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.whenResumed
 import org.koin.androidx.viewmodel.ext.android.viewModel
+import kotlin.math.roundToInt
 
 class SettingsAdvancedFragment: BaseSettingsFragment(), BackAvailable {
 
@@ -101,6 +106,41 @@ class SettingsAdvancedFragment: BaseSettingsFragment(), BackAvailable {
             R.drawable.ic_settings_external_access,
             onClick = viewModel::onExternalAccessClicked
         ),
+        GenericSettingsItem.Header(getString(R.string.settings_advanced_recognition)),
+        GenericSettingsItem.SwitchSetting(
+            state.recognition.musicPresenceGate,
+            getString(R.string.settings_advanced_music_presence_gate),
+            getString(R.string.settings_advanced_music_presence_gate_content),
+            R.drawable.ic_settings_recognition_period,
+            onChanged = viewModel::onMusicPresenceGateChanged
+        ),
+        GenericSettingsItem.SwitchSetting(
+            state.recognition.recordingProcessing,
+            getString(R.string.settings_advanced_recording_processing),
+            getString(R.string.settings_advanced_recording_processing_content),
+            R.drawable.ic_settings_advanced_gain,
+            onChanged = viewModel::onRecordingProcessingChanged
+        ),
+        GenericSettingsItem.SwitchSetting(
+            state.recognition.skipDuringPlayback,
+            getString(R.string.settings_advanced_skip_during_playback),
+            getString(R.string.settings_advanced_skip_during_playback_content),
+            R.drawable.ic_ambient_music,
+            onChanged = viewModel::onSkipDuringPlaybackChanged
+        ),
+        GenericSettingsItem.Dropdown(
+            getString(R.string.settings_advanced_pre_roll),
+            getString(
+                R.string.settings_advanced_pre_roll_content,
+                getString(state.recognition.preRollSeconds.label)
+            ),
+            ContextCompat.getDrawable(requireContext(), R.drawable.ic_settings_recognition_buffer),
+            state.recognition.preRollSeconds,
+            viewModel::onPreRollChanged,
+            PreRollSeconds.values().toList()
+        ){
+            it.label
+        },
         GenericSettingsItem.Setting(
             getString(R.string.settings_advanced_clear_album_art_cache),
             getString(R.string.settings_advanced_clear_album_art_cache_content),
@@ -119,9 +159,47 @@ class SettingsAdvancedFragment: BaseSettingsFragment(), BackAvailable {
             ) {
                 viewModel.onPokeJobSchedulerClicked(requireContext())
             }
+        }else null,
+        if(state.enableLogging) {
+            GenericSettingsItem.Setting(
+                getString(R.string.settings_advanced_wakeups),
+                getWakeupsContent(state.debug.wakeupCounts),
+                R.drawable.ic_settings_battery_optimisation
+            ) {
+                //No-op
+            }
+        }else null,
+        if(state.enableLogging && state.debug.bindStats != null) {
+            GenericSettingsItem.Setting(
+                getString(R.string.settings_advanced_bind_stats),
+                getBindStatsContent(state.debug.bindStats),
+                R.drawable.ic_settings_advanced_logging,
+                onClick = viewModel::onBindStatsClicked
+            )
         }else null
     )
 
+    private fun getWakeupsContent(counts: WakeupCounts): CharSequence {
+        val busiestHour = counts.busiestHour
+            ?: return getString(R.string.settings_advanced_wakeups_content_empty)
+        return getString(
+            R.string.settings_advanced_wakeups_content,
+            counts.total,
+            busiestHour,
+            counts.hourly[busiestHour]
+        )
+    }
+
+    private fun getBindStatsContent(stats: ServiceBindStats): CharSequence {
+        return getString(
+            R.string.settings_advanced_bind_stats_content,
+            stats.searches,
+            (stats.cacheHitRate * 100).roundToInt(),
+            stats.binds,
+            stats.averageBindLatency
+        )
+    }
+
     private fun getStringOrUnsupported(isEnabled: Boolean, @StringRes resource: Int): CharSequence {
         return if(isEnabled){
             getText(resource)
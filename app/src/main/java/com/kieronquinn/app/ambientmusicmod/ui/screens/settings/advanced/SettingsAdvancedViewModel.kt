@@ -2,16 +2,24 @@ package com.kieronquinn.app.ambientmusicmod.ui.screens.settings.advanced
 
 import android.content.Context
 import android.widget.Toast
+import androidx.annotation.StringRes
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 import com.kieronquinn.app.ambientmusicmod.R
+import com.kieronquinn.app.ambientmusicmod.components.musicrecognition.ServiceBindStats
 import com.kieronquinn.app.ambientmusicmod.components.navigation.ContainerNavigation
 import com.kieronquinn.app.ambientmusicmod.repositories.AmbientServiceRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.DeviceConfigRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.JobsRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.ShizukuServiceRepository
+import com.kieronquinn.app.ambientmusicmod.utils.alarm.WakeupCounter
+import com.kieronquinn.app.ambientmusicmod.utils.alarm.WakeupCounter.WakeupCounts
+import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.mapLatest
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 
@@ -28,6 +36,11 @@ abstract class SettingsAdvancedViewModel: ViewModel() {
     abstract fun onEnableLoggingChanged(enabled: Boolean)
     abstract fun onExternalAccessClicked()
     abstract fun onPokeJobSchedulerClicked(context: Context)
+    abstract fun onPreRollChanged(preRoll: PreRollSeconds)
+    abstract fun onMusicPresenceGateChanged(enabled: Boolean)
+    abstract fun onRecordingProcessingChanged(enabled: Boolean)
+    abstract fun onSkipDuringPlaybackChanged(enabled: Boolean)
+    abstract fun onBindStatsClicked()
 
     sealed class State {
         object Loading: State()
@@ -36,17 +49,50 @@ abstract class SettingsAdvancedViewModel: ViewModel() {
             val runOnSmallCores: Boolean,
             val superpacksRequireWifi: Boolean,
             val superpacksRequireCharging: Boolean,
-            val enableLogging: Boolean
+            val enableLogging: Boolean,
+            val recognition: RecognitionOptions,
+            val debug: DebugOptions
         ): State()
     }
 
+    data class RecognitionOptions(
+        val preRollSeconds: PreRollSeconds,
+        val musicPresenceGate: Boolean,
+        val recordingProcessing: Boolean,
+        val skipDuringPlayback: Boolean
+    )
+
+    /**
+     *  @param bindStats Null if the Shizuku service is unavailable or below Android 12
+     */
+    data class DebugOptions(
+        val wakeupCounts: WakeupCounts,
+        val bindStats: ServiceBindStats?
+    )
+
+    enum class PreRollSeconds(val seconds: Int, @StringRes val label: Int) {
+        OFF(0, R.string.settings_advanced_pre_roll_off),
+        FOUR_SECONDS(4, R.string.settings_advanced_pre_roll_4_seconds),
+        EIGHT_SECONDS(8, R.string.settings_advanced_pre_roll_8_seconds),
+        SIXTEEN_SECONDS(16, R.string.settings_advanced_pre_roll_16_seconds);
+
+        companion object {
+            internal fun forSeconds(seconds: Int): PreRollSeconds {
+                return values().lastOrNull { it.seconds <= seconds } ?: OFF
+            }
+        }
+    }
+
 }
 
 class SettingsAdvancedViewModelImpl(
     private val deviceConfigRepository: DeviceConfigRepository,
+    settingsRepository: SettingsRepository,
     private val serviceRepository: AmbientServiceRepository,
     private val jobsRepository: JobsRepository,
-    private val navigation: ContainerNavigation
+    private val navigation: ContainerNavigation,
+    shizukuServiceRepository: ShizukuServiceRepository,
+    wakeupCounter: WakeupCounter
 ): SettingsAdvancedViewModel() {
 
     private val runOnSmallCores = deviceConfigRepository.runOnSmallCores
@@ -54,6 +100,10 @@ class SettingsAdvancedViewModelImpl(
     private val superpacksRequireCharging = deviceConfigRepository.superpacksRequireCharging
     private val enableLogging = deviceConfigRepository.enableLogging
     private val alternativeEncoding = deviceConfigRepository.alternativeEncoding
+    private val preRollSeconds = settingsRepository.onDemandPreRollSeconds
+    private val musicPresenceGate = settingsRepository.musicPresenceGateEnabled
+    private val recordingProcessing = settingsRepository.recordingProcessingEnabled
+    private val skipDuringPlayback = settingsRepository.skipRecognitionDuringPlayback
 
     private val superpacksConfig = combine(
         superpacksRequireWifi.asFlow(),
@@ -62,13 +112,47 @@ class SettingsAdvancedViewModelImpl(
         Pair(wifi, charging)
     }
 
+    private val bindStatsRefresh = MutableStateFlow(System.currentTimeMillis())
+
+    private val bindStats = bindStatsRefresh.mapLatest {
+        shizukuServiceRepository.runWithService {
+            it.musicRecognitionBindStats
+        }.unwrap()?.let { ServiceBindStats.fromBundle(it) }
+    }
+
+    private val debugOptions = combine(
+        enableLogging.asFlow(),
+        wakeupCounter.counts,
+        bindStats
+    ) { logging, wakeups, bindStats ->
+        Pair(logging, DebugOptions(wakeups, bindStats))
+    }
+
+    private val recognitionOptions = combine(
+        preRollSeconds.asFlow(),
+        musicPresenceGate.asFlow(),
+        recordingProcessing.asFlow(),
+        skipDuringPlayback.asFlow()
+    ) { preRoll, gate, processing, skipPlayback ->
+        RecognitionOptions(PreRollSeconds.forSeconds(preRoll), gate, processing, skipPlayback)
+    }
+
     override val state = combine(
         runOnSmallCores.asFlow(),
         superpacksConfig,
-        enableLogging.asFlow(),
+        debugOptions,
         alternativeEncoding.asFlow(),
-    ) { small, superpacks, logging, alternative ->
-        State.Loaded(alternative, small, superpacks.first, superpacks.second, logging)
+        recognitionOptions
+    ) { small, superpacks, debug, alternative, recognition ->
+        State.Loaded(
+            alternative,
+            small,
+            superpacks.first,
+            superpacks.second,
+            debug.first,
+            recognition,
+            debug.second
+        )
     }.stateIn(viewModelScope, SharingStarted.Eagerly, State.Loading)
 
     override fun onGainClicked() {
@@ -113,6 +197,36 @@ class SettingsAdvancedViewModelImpl(
         }
     }
 
+    override fun onPreRollChanged(preRoll: PreRollSeconds) {
+        viewModelScope.launch {
+            preRollSeconds.set(preRoll.seconds)
+        }
+    }
+
+    override fun onMusicPresenceGateChanged(enabled: Boolean) {
+        viewModelScope.launch {
+            musicPresenceGate.set(enabled)
+        }
+    }
+
+    override fun onRecordingProcessingChanged(enabled: Boolean) {
+        viewModelScope.launch {
+            recordingProcessing.set(enabled)
+        }
+    }
+
+    override fun onSkipDuringPlaybackChanged(enabled: Boolean) {
+        viewModelScope.launch {
+            skipDuringPlayback.set(enabled)
+        }
+    }
+
+    override fun onBindStatsClicked() {
+        viewModelScope.launch {
+            bindStatsRefresh.emit(System.currentTimeMillis())
+        }
+    }
+
     override fun onClearAlbumArtClicked(context: Context) {
         viewModelScope.launch {
             serviceRepository.getService()?.clearAlbumArtCache()
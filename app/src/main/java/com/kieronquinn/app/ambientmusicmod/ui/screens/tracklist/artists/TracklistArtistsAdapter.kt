@@ -1,8 +1,9 @@
 package com.kieronquinn.app.ambientmusicmod.ui.screens.tracklist.artists
 
+import androidx.recyclerview.widget.DiffUtil
 import com.kieronquinn.app.ambientmusicmod.R
 import com.kieronquinn.app.ambientmusicmod.databinding.ItemTracklistBinding
-import com.kieronquinn.app.ambientmusicmod.ui.screens.tracklist.artists.TracklistArtistsViewModel.ShardArtist
+import com.kieronquinn.app.ambientmusicmod.model.shards.ShardArtist
 import com.kieronquinn.app.ambientmusicmod.ui.screens.tracklist.generic.GenericTracklistAdapter
 import com.kieronquinn.app.ambientmusicmod.ui.views.LifecycleAwareRecyclerView
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.onClicked
@@ -10,9 +11,20 @@ import com.kieronquinn.app.ambientmusicmod.utils.extensions.whenResumed
 
 class TracklistArtistsAdapter(
     recyclerView: LifecycleAwareRecyclerView,
-    private val onArtistClicked: (String) -> Unit,
-    override var items: List<ShardArtist>
-): GenericTracklistAdapter<ShardArtist>(recyclerView, null, null, items) {
+    private val onArtistClicked: (String) -> Unit
+): GenericTracklistAdapter<ShardArtist>(recyclerView, null, null, DIFF_CALLBACK) {
+
+    companion object {
+        private val DIFF_CALLBACK = object: DiffUtil.ItemCallback<ShardArtist>() {
+            override fun areItemsTheSame(oldItem: ShardArtist, newItem: ShardArtist): Boolean {
+                return oldItem.name == newItem.name
+            }
+
+            override fun areContentsTheSame(oldItem: ShardArtist, newItem: ShardArtist): Boolean {
+                return oldItem == newItem
+            }
+        }
+    }
 
     override fun setupView(
         item: ShardArtist,
@@ -21,7 +33,7 @@ class TracklistArtistsAdapter(
     ) = with(binding) {
         itemTracklistTitle.text = item.name
         itemTracklistContent.text = root.context.resources.getQuantityString(
-            R.plurals.tracklist_item_artist_content, item.tracks.size, item.tracks.size
+            R.plurals.tracklist_item_artist_content, item.trackCount, item.trackCount
         )
         itemTracklistIcon.setImageResource(R.drawable.ic_nav_tracklist_artists)
         holder.whenResumed {
@@ -12,9 +12,13 @@ import com.kieronquinn.app.ambientmusicmod.utils.extensions.whenResumed
 class TracklistArtistTracksAdapter(
     recyclerView: LifecycleAwareRecyclerView,
     override val onOnDemandClicked: (() -> Unit)?,
-    override val onTrackClicked: ((ShardTrack) -> Unit)?,
-    override var items: List<ShardTrack>
-): GenericTracklistAdapter<ShardTrack>(recyclerView, onOnDemandClicked, onTrackClicked, items) {
+    override val onTrackClicked: ((ShardTrack) -> Unit)?
+): GenericTracklistAdapter<ShardTrack>(
+    recyclerView,
+    onOnDemandClicked,
+    onTrackClicked,
+    GenericTracklistAdapter.SHARD_TRACK_DIFF_CALLBACK
+) {
 
     override fun setupView(
         item: ShardTrack,
@@ -16,8 +16,7 @@ class TracklistArtistTracksFragment: GenericTracklistFragment<ShardTrack>(), Bac
         TracklistArtistTracksAdapter(
             binding.tracklistGenericRecyclerview,
             ::onOnDemandClicked,
-            viewModel::onTrackClicked,
-            emptyList()
+            viewModel::onTrackClicked
         )
     }
 
@@ -2,14 +2,12 @@ package com.kieronquinn.app.ambientmusicmod.ui.screens.tracklist.artists.artistt
 
 import androidx.core.os.bundleOf
 import androidx.lifecycle.viewModelScope
+import androidx.paging.PagingSource
 import com.kieronquinn.app.ambientmusicmod.R
 import com.kieronquinn.app.ambientmusicmod.components.navigation.TracklistNavigation
 import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
 import com.kieronquinn.app.ambientmusicmod.repositories.ShardsListRepository
 import com.kieronquinn.app.ambientmusicmod.ui.screens.tracklist.generic.GenericTracklistViewModelImpl
-import kotlinx.coroutines.flow.MutableStateFlow
-import kotlinx.coroutines.flow.filterNotNull
-import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
 
 abstract class TracklistArtistTracksViewModel(
@@ -23,7 +21,7 @@ abstract class TracklistArtistTracksViewModel(
 }
 
 class TracklistArtistTracksViewModelImpl(
-    shardsListRepository: ShardsListRepository,
+    private val shardsListRepository: ShardsListRepository,
     private val navigation: TracklistNavigation
 ): TracklistArtistTracksViewModel(shardsListRepository) {
 
@@ -31,30 +29,18 @@ class TracklistArtistTracksViewModelImpl(
         private const val SEARCH_TERM_ONDEMAND = "ondemand"
     }
 
-    private val artist = MutableStateFlow<String?>(null)
+    //Set by the fragment before pages are first collected
+    private lateinit var artist: String
 
     override fun setArtist(artist: String) {
-        viewModelScope.launch {
-            this@TracklistArtistTracksViewModelImpl.artist.emit(artist)
-        }
+        this.artist = artist
     }
 
-    override suspend fun createList(tracks: List<ShardTrack>): List<ShardTrack> {
-        val artist = artist.filterNotNull().first()
-        return tracks.filter { it.artist == artist }.sortedBy { it.trackName.lowercase() }
-    }
-
-    override fun filterList(items: List<ShardTrack>, searchTerm: String): List<ShardTrack> {
-        if(searchTerm.isBlank()) return items
+    override fun createPagingSource(searchTerm: String): PagingSource<Int, ShardTrack> {
         val linearOnly = searchTerm.equals(SEARCH_TERM_ONDEMAND, true)
-        return if(linearOnly) {
-            items.filter { it.isLinear }
-        }else{
-            items.filter {
-                it.trackName.lowercase().trim().contains(searchTerm.lowercase().trim())
-                        || it.album?.lowercase()?.contains(searchTerm.lowercase().trim()) ?: false
-            }
-        }
+        return shardsListRepository.getTracks(
+            if(linearOnly) "" else searchTerm, linearOnly, artist
+        )
     }
 
     override fun onBackPressed() {
@@ -3,19 +3,37 @@ package com.kieronquinn.app.ambientmusicmod.ui.screens.tracklist.generic
 import android.content.res.ColorStateList
 import android.view.LayoutInflater
 import android.view.ViewGroup
+import androidx.paging.AsyncPagingDataDiffer
+import androidx.paging.CombinedLoadStates
+import androidx.paging.PagingData
+import androidx.recyclerview.widget.AdapterListUpdateCallback
+import androidx.recyclerview.widget.DiffUtil
 import com.kieronquinn.app.ambientmusicmod.databinding.ItemTracklistBinding
 import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
 import com.kieronquinn.app.ambientmusicmod.ui.views.LifecycleAwareRecyclerView
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.isDarkMode
 import com.kieronquinn.monetcompat.core.MonetCompat
+import kotlinx.coroutines.flow.Flow
 
-abstract class GenericTracklistAdapter<T>(
+abstract class GenericTracklistAdapter<T: Any>(
     recyclerView: LifecycleAwareRecyclerView,
     protected open val onOnDemandClicked: (() -> Unit)?,
     protected open val onTrackClicked: ((ShardTrack) -> Unit)?,
-    open var items: List<T>
+    diffCallback: DiffUtil.ItemCallback<T>
 ): LifecycleAwareRecyclerView.Adapter<GenericTracklistAdapter.ViewHolder>(recyclerView) {
 
+    companion object {
+        val SHARD_TRACK_DIFF_CALLBACK = object: DiffUtil.ItemCallback<ShardTrack>() {
+            override fun areItemsTheSame(oldItem: ShardTrack, newItem: ShardTrack): Boolean {
+                return oldItem.dbId == newItem.dbId && oldItem.isLinear == newItem.isLinear
+            }
+
+            override fun areContentsTheSame(oldItem: ShardTrack, newItem: ShardTrack): Boolean {
+                return oldItem == newItem
+            }
+        }
+    }
+
     init {
         setHasStableIds(true)
     }
@@ -26,10 +44,19 @@ abstract class GenericTracklistAdapter<T>(
         MonetCompat.getInstance()
     }
 
-    override fun getItemCount() = items.size
+    //Loads pages as they're scrolled to, so only the visible part of the list is held in memory
+    private val differ = AsyncPagingDataDiffer(diffCallback, AdapterListUpdateCallback(this))
+
+    val loadStateFlow: Flow<CombinedLoadStates> = differ.loadStateFlow
+
+    suspend fun submitData(data: PagingData<T>) {
+        differ.submitData(data)
+    }
+
+    override fun getItemCount() = differ.itemCount
 
     override fun getItemId(position: Int): Long {
-        return items[position].hashCode().toLong()
+        return differ.peek(position).hashCode().toLong()
     }
 
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): ViewHolder {
@@ -37,7 +64,9 @@ abstract class GenericTracklistAdapter<T>(
     }
 
     override fun onBindViewHolder(holder: ViewHolder, position: Int) {
-        setupView(items[position], holder.binding, holder)
+        //Placeholders are disabled, so loaded positions always have an item
+        val item = differ.getItem(position) ?: return
+        setupView(item, holder.binding, holder)
         with(holder.binding){
             itemTracklistIcon.backgroundTintList = ColorStateList.valueOf(
                 monet.getPrimaryColor(root.context, !root.context.isDarkMode)
@@ -57,4 +86,4 @@ abstract class GenericTracklistAdapter<T>(
     data class ViewHolder(val binding: ItemTracklistBinding):
         LifecycleAwareRecyclerView.ViewHolder(binding.root)
 
-}
\ No newline at end of file
+}
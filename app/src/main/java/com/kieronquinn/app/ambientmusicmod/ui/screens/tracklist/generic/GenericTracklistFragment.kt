@@ -6,6 +6,7 @@ import android.view.View
 import android.view.inputmethod.EditorInfo
 import androidx.core.content.res.ResourcesCompat
 import androidx.core.view.isVisible
+import androidx.paging.LoadState
 import androidx.recyclerview.widget.LinearLayoutManager
 import com.google.android.material.snackbar.Snackbar
 import com.kieronquinn.app.ambientmusicmod.R
@@ -24,11 +25,13 @@ import com.kieronquinn.app.ambientmusicmod.utils.extensions.setTypeface
 import com.kieronquinn.app.ambientmusicmod.utils.extensions.whenResumed
 import com.kieronquinn.monetcompat.extensions.applyMonet
 import com.kieronquinn.monetcompat.extensions.views.applyMonet
+import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.debounce
 import kotlinx.coroutines.launch
 import org.koin.core.component.KoinScopeComponent
 
-abstract class GenericTracklistFragment<T>: BoundFragment<FragmentTracklistGenericBinding>(FragmentTracklistGenericBinding::inflate), KoinScopeComponent {
+abstract class GenericTracklistFragment<T: Any>: BoundFragment<FragmentTracklistGenericBinding>(FragmentTracklistGenericBinding::inflate), KoinScopeComponent {
 
     override val scope by lazy {
         getKoin().getOrCreateScope<TracklistViewModel>(Scopes.TRACK_LIST.name)
@@ -43,6 +46,7 @@ abstract class GenericTracklistFragment<T>: BoundFragment<FragmentTracklistGener
         setupSearch()
         setupSearchClear()
         setupState()
+        setupPages()
         setupMonet()
     }
 
@@ -71,7 +75,23 @@ abstract class GenericTracklistFragment<T>: BoundFragment<FragmentTracklistGener
         }
     }
 
-    private fun handleState(state: State<T>) {
+    private fun setupPages() {
+        whenResumed {
+            viewModel.pages.collectLatest {
+                adapter.submitData(it)
+            }
+        }
+        whenResumed {
+            combine(viewModel.state, adapter.loadStateFlow) { state, loadStates ->
+                state is State.Loaded && loadStates.refresh is LoadState.NotLoading
+                        && adapter.itemCount == 0
+            }.collect {
+                binding.tracklistGenericEmpty.isVisible = it
+            }
+        }
+    }
+
+    private fun handleState(state: State) {
         when(state){
             is State.Loading -> {
                 binding.tracklistGenericLoading.isVisible = true
@@ -87,9 +107,7 @@ abstract class GenericTracklistFragment<T>: BoundFragment<FragmentTracklistGener
             is State.Loaded -> {
                 binding.tracklistGenericLoading.isVisible = false
                 binding.tracklistGenericRecyclerview.isVisible = true
-                binding.tracklistGenericEmpty.isVisible = state.list.isEmpty()
-                adapter.items = state.list
-                adapter.notifyDataSetChanged()
+                //Pages are loaded and the empty state shown by setupPages
             }
         }
     }
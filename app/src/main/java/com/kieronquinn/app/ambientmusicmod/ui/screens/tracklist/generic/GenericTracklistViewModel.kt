@@ -2,7 +2,11 @@ package com.kieronquinn.app.ambientmusicmod.ui.screens.tracklist.generic
 
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
-import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
+import androidx.paging.Pager
+import androidx.paging.PagingConfig
+import androidx.paging.PagingData
+import androidx.paging.PagingSource
+import androidx.paging.cachedIn
 import com.kieronquinn.app.ambientmusicmod.repositories.ShardsListRepository
 import com.kieronquinn.app.ambientmusicmod.repositories.ShardsListRepository.GetState
 import kotlinx.coroutines.Dispatchers
@@ -10,17 +14,20 @@ import kotlinx.coroutines.flow.*
 import kotlinx.coroutines.launch
 import kotlin.math.roundToInt
 
-abstract class GenericTracklistViewModel<T>: ViewModel() {
+abstract class GenericTracklistViewModel<T: Any>: ViewModel() {
 
-    abstract val state: StateFlow<State<T>>
+    abstract val state: StateFlow<State>
 
-    sealed class State<T> {
-        data class Loading<T>(val progress: Int, val indeterminate: Boolean): State<T>()
-        data class Loaded<T>(val list: List<T>): State<T>()
-    }
+    /**
+     *  Pages of items for the current search, read from the cache once [state] is
+     *  [State.Loaded]
+     */
+    abstract val pages: Flow<PagingData<T>>
 
-    abstract suspend fun createList(tracks: List<ShardTrack>): List<T>
-    abstract fun filterList(items: List<T>, searchTerm: String): List<T>
+    sealed class State {
+        data class Loading(val progress: Int, val indeterminate: Boolean): State()
+        object Loaded: State()
+    }
 
     abstract val searchText: StateFlow<String>
     abstract val searchShowClear: StateFlow<Boolean>
@@ -28,29 +35,34 @@ abstract class GenericTracklistViewModel<T>: ViewModel() {
 
 }
 
-abstract class GenericTracklistViewModelImpl<T>(
+abstract class GenericTracklistViewModelImpl<T: Any>(
     shardsListRepository: ShardsListRepository
 ): GenericTracklistViewModel<T>() {
 
+    companion object {
+        private const val PAGE_SIZE = 50
+    }
+
     override val searchText = MutableStateFlow("")
 
-    private val tracks = shardsListRepository.tracks.mapLatest {
+    abstract fun createPagingSource(searchTerm: String): PagingSource<Int, T>
+
+    override val state = shardsListRepository.tracks.map {
         when(it){
             is GetState.Querying -> State.Loading(0, true)
             is GetState.Loading -> State.Loading(it.getProgress(), false)
             is GetState.Merging -> State.Loading(100, true)
-            is GetState.Loaded -> State.Loaded(createList(it.tracks))
+            is GetState.Loaded -> State.Loaded
         }
     }.flowOn(Dispatchers.IO)
+        .stateIn(viewModelScope, SharingStarted.Eagerly, State.Loading(0, true))
 
-    override val state by lazy {
-        combine(tracks, searchText) { tracks, searchText ->
-            when(tracks){
-                is State.Loaded -> State.Loaded(filterList(tracks.list, searchText))
-                else -> tracks
-            }
-        }.flowOn(Dispatchers.IO)
-            .stateIn(viewModelScope, SharingStarted.Eagerly, State.Loading(0, true))
+    override val pages by lazy {
+        searchText.flatMapLatest { searchTerm ->
+            Pager(PagingConfig(PAGE_SIZE, enablePlaceholders = false)) {
+                createPagingSource(searchTerm)
+            }.flow
+        }.cachedIn(viewModelScope)
     }
 
     override val searchShowClear = searchText.map { it.isNotBlank() }
@@ -66,4 +78,4 @@ abstract class GenericTracklistViewModelImpl<T>(
         }
     }
 
-}
\ No newline at end of file
+}
@@ -10,8 +10,7 @@ class TracklistTracksFragment: GenericTracklistFragment<ShardTrack>() {
         TracklistTracksAdapter(
             binding.tracklistGenericRecyclerview,
             ::onOnDemandClicked,
-            viewModel::onTrackClicked,
-            emptyList()
+            viewModel::onTrackClicked
         )
     }
 
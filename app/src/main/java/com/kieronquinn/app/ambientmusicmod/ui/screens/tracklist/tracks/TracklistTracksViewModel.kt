@@ -2,6 +2,7 @@ package com.kieronquinn.app.ambientmusicmod.ui.screens.tracklist.tracks
 
 import androidx.core.os.bundleOf
 import androidx.lifecycle.viewModelScope
+import androidx.paging.PagingSource
 import com.kieronquinn.app.ambientmusicmod.R
 import com.kieronquinn.app.ambientmusicmod.components.navigation.TracklistNavigation
 import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
@@ -19,28 +20,16 @@ abstract class TracklistTracksViewModel(
 
 class TracklistTracksViewModelImpl(
     private val tracklistNavigation: TracklistNavigation,
-    shardsListRepository: ShardsListRepository
+    private val shardsListRepository: ShardsListRepository
 ): TracklistTracksViewModel(shardsListRepository) {
 
     companion object {
         private const val SEARCH_TERM_ONDEMAND = "ondemand"
     }
 
-    override suspend fun createList(tracks: List<ShardTrack>): List<ShardTrack> {
-        return tracks.sortedBy { it.trackName.lowercase() }
-    }
-
-    override fun filterList(items: List<ShardTrack>, searchTerm: String): List<ShardTrack> {
-        if(searchTerm.isBlank()) return items
+    override fun createPagingSource(searchTerm: String): PagingSource<Int, ShardTrack> {
         val linearOnly = searchTerm.equals(SEARCH_TERM_ONDEMAND, true)
-        return if(linearOnly) {
-            items.filter { it.isLinear }
-        }else{
-            items.filter {
-                it.trackName.lowercase().trim().contains(searchTerm.lowercase().trim())
-                        || it.album?.lowercase()?.contains(searchTerm.lowercase().trim()) ?: false
-            }
-        }
+        return shardsListRepository.getTracks(if(linearOnly) "" else searchTerm, linearOnly)
     }
 
     override fun onTrackClicked(track: ShardTrack) {
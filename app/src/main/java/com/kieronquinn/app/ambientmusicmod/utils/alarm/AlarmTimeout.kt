@@ -23,9 +23,11 @@ import android.os.SystemClock
 /**
  * Schedules a timeout through AlarmManager. Ensures that the timeout is called even when
  * the device is asleep.
+ * Wakeups are recorded in [mWakeupCounter] if set.
  */
 class AlarmTimeout(private val mAlarmManager: AlarmManager, private val mListener: OnAlarmListener,
-                   private val mTag: String, private val mHandler: Handler) : OnAlarmListener {
+                   private val mTag: String, private val mHandler: Handler,
+                   private val mWakeupCounter: WakeupCounter? = null) : OnAlarmListener {
     private var isScheduled = false
 
     /**
@@ -74,6 +76,7 @@ class AlarmTimeout(private val mAlarmManager: AlarmManager, private val mListene
             return
         }
         isScheduled = false
+        mWakeupCounter?.onWakeup()
         mListener.onAlarm()
     }
 
@@ -0,0 +1,43 @@
+package com.kieronquinn.app.ambientmusicmod.utils.alarm
+
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import java.time.LocalTime
+
+/**
+ *  Counts recognition alarm wakeups for each hour of the day since the process started, so their
+ *  battery impact can be checked from the debug section of the advanced settings.
+ */
+class WakeupCounter {
+
+    data class WakeupCounts(val hourly: List<Int> = List(24) { 0 }) {
+
+        val total
+            get() = hourly.sum()
+
+        /**
+         *  The hour of the day with the most wakeups, or null if there have been none
+         */
+        val busiestHour
+            get() = hourly.indices.maxByOrNull { hourly[it] }?.takeIf { hourly[it] > 0 }
+
+        override fun toString(): String {
+            return "WakeupCounts(total=$total, hourly=$hourly)"
+        }
+
+    }
+
+    private val _counts = MutableStateFlow(WakeupCounts())
+    val counts: StateFlow<WakeupCounts> = _counts.asStateFlow()
+
+    fun onWakeup(hour: Int = LocalTime.now().hour) {
+        _counts.update { current ->
+            WakeupCounts(current.hourly.mapIndexed { index, count ->
+                if(index == hour) count + 1 else count
+            })
+        }
+    }
+
+}
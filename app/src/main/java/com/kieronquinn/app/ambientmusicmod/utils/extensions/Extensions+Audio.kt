@@ -1,5 +1,6 @@
 package com.kieronquinn.app.ambientmusicmod.utils.extensions
 
+import com.kieronquinn.app.ambientmusicmod.components.audio.processing.GainProcessor
 import java.nio.ByteBuffer
 
 fun ShortArray.toByteArray(): ByteArray {
@@ -9,10 +10,22 @@ fun ShortArray.toByteArray(): ByteArray {
 }
 
 fun ShortArray.applyGain(gain: Float): ShortArray {
-    if (isNotEmpty()) {
-        for (i in indices) {
-            this[i] = (this[i] * gain).toInt().coerceAtMost(Short.MAX_VALUE.toInt()).toShort()
-        }
-    }
+    GainProcessor(gain).process(this, 0, size)
     return this
-}
\ No newline at end of file
+}
+
+/**
+ *  Writes [size] samples starting at [offset] into [destination] as big endian bytes, the same
+ *  layout as [toByteArray], without allocating an intermediate buffer.
+ */
+fun ShortArray.copyIntoByteArray(
+    destination: ByteArray,
+    offset: Int = 0,
+    size: Int = this.size - offset
+) {
+    for (i in offset until offset + size) {
+        val sample = this[i].toInt()
+        destination[i * 2] = (sample shr 8).toByte()
+        destination[i * 2 + 1] = sample.toByte()
+    }
+}
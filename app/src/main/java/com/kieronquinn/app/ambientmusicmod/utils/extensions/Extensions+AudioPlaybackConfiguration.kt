@@ -9,4 +9,21 @@ fun AudioPlaybackConfiguration.getClientUid(): Int? {
         //Don't have the permission for some reason, absorb
         null
     }
-}
\ No newline at end of file
+}
+
+/**
+ *  Returns the hidden player state, such as [PLAYER_STATE_STARTED], or null if it can't be read
+ */
+fun AudioPlaybackConfiguration.getPlayerState(): Int? {
+    return try {
+        AudioPlaybackConfiguration::class.java.getMethod("getPlayerState").invoke(this) as Int
+    }catch (e: ReflectiveOperationException){
+        //Hidden API is unavailable on this build, absorb
+        null
+    }catch (e: SecurityException){
+        null
+    }
+}
+
+//Hidden AudioPlaybackConfiguration.PLAYER_STATE_STARTED
+const val PLAYER_STATE_STARTED = 2
@@ -24,6 +24,80 @@ fun ContentResolver.safeQuery(
     }
 }
 
+private const val DEFAULT_PAGE_SIZE = 250
+
+/**
+ *  Reads [uri] newest first a page at a time, using keyset pagination on the long [keyColumn]
+ *  rather than one cursor over every row, so large tables don't overflow the cursor window or
+ *  have to be held in memory. Each page's cursor is closed before its rows are yielded.
+ *
+ *  Reading stops at a page shorter than its limit, or at one that yields no new rows, so a
+ *  provider that ignores the selection can't loop forever or yield rows twice.
+ *
+ *  Nothing is queried until the sequence is iterated, so a sequence that is dropped unread never
+ *  leaves a cursor open. It yields nothing if the provider could not be queried, callers which
+ *  must tell that apart from an empty table should check the provider with [safeQuery] first.
+ *  [projection] must include [keyColumn].
+ */
+fun <T> ContentResolver.pagedQuery(
+    uri: Uri,
+    projection: Array<String?>?,
+    keyColumn: String,
+    pageSize: Int = DEFAULT_PAGE_SIZE,
+    row: (Cursor) -> T
+): Sequence<T> {
+    val queryPage = { lastKey: Long?, limit: Int ->
+        //Rows sharing the last key are fetched again and skipped, so ties are never lost
+        safeQuery(
+            uri,
+            projection,
+            lastKey?.let { "$keyColumn <= ?" },
+            lastKey?.let { arrayOf(it.toString()) },
+            "$keyColumn DESC LIMIT $limit"
+        )
+    }
+    return sequence {
+        var cursor = queryPage(null, pageSize)
+        var limit = pageSize
+        var lastKey: Long? = null
+        var seenAtLastKey = 0
+        while(cursor != null) {
+            val rows = ArrayList<T>(pageSize)
+            var rowsRead = 0
+            val pageStartKey = lastKey
+            cursor.use {
+                val keyIndex = it.getColumnIndexOrThrow(keyColumn)
+                var toSkip = seenAtLastKey
+                //Stop at the limit even if the provider ignored it
+                while(rowsRead < limit && it.moveToNext()) {
+                    rowsRead++
+                    val key = it.getLong(keyIndex)
+                    //Only possible if the selection was ignored, these rows were already read
+                    if(pageStartKey != null && key > pageStartKey) continue
+                    if(key == lastKey && toSkip > 0) {
+                        toSkip--
+                        continue
+                    }
+                    if(key == lastKey) {
+                        seenAtLastKey++
+                    }else{
+                        lastKey = key
+                        seenAtLastKey = 1
+                    }
+                    rows.add(row(it))
+                }
+            }
+            yieldAll(rows)
+            cursor = if(rowsRead < limit || rows.isEmpty()) {
+                null
+            }else{
+                limit = pageSize + seenAtLastKey
+                queryPage(lastKey, limit)
+            }
+        }
+    }
+}
+
 fun ContentResolver.safeUpdate(
     uri: Uri,
     values: ContentValues,
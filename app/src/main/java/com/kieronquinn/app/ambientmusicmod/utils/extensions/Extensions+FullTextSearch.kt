@@ -0,0 +1,20 @@
+package com.kieronquinn.app.ambientmusicmod.utils.extensions
+
+private val REGEX_SEARCH_SEPARATOR = "[^\\p{L}\\p{M}\\p{N}]+".toRegex()
+
+/**
+ *  Splits a search into words, dropping anything that isn't a letter or digit so the user
+ *  can't write full text query syntax
+ */
+fun String.toSearchTokens(): List<String> {
+    return lowercase().split(REGEX_SEARCH_SEPARATOR).filter { it.isNotEmpty() }
+}
+
+/**
+ *  Creates a full text query matching rows where every token prefixes a word, in [column] if
+ *  specified, otherwise in any column
+ */
+fun List<String>.toMatchQuery(column: String? = null): String {
+    val prefix = column?.let { "$it:" } ?: ""
+    return joinToString(" ") { "$prefix$it*" }
+}
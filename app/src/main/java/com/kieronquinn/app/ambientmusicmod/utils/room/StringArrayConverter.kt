@@ -0,0 +1,70 @@
+package com.kieronquinn.app.ambientmusicmod.utils.room
+
+import androidx.room.TypeConverter
+
+/**
+ *  Stores string arrays as a compact blob: a varint count, then each string as a varint byte
+ *  length followed by its UTF-8 bytes. Unlike JSON this needs no escaping, parsing or reflection,
+ *  which matters when loading 100k+ rows at once.
+ */
+object StringArrayConverter {
+
+    @TypeConverter
+    fun fromBytes(value: ByteArray): Array<String> {
+        if(value.isEmpty()) return emptyArray()
+        var position = 0
+        fun readVarInt(): Int {
+            var result = 0
+            var shift = 0
+            while(true) {
+                val byte = value[position++].toInt()
+                result = result or ((byte and 0x7F) shl shift)
+                if(byte and 0x80 == 0) return result
+                shift += 7
+            }
+        }
+        val count = readVarInt()
+        return Array(count) {
+            val length = readVarInt()
+            String(value, position, length, Charsets.UTF_8).also {
+                position += length
+            }
+        }
+    }
+
+    @TypeConverter
+    fun fromArray(array: Array<String>): ByteArray {
+        val encoded = Array(array.size) { array[it].toByteArray(Charsets.UTF_8) }
+        val size = encoded.fold(getVarIntSize(array.size)) { size, bytes ->
+            size + getVarIntSize(bytes.size) + bytes.size
+        }
+        val result = ByteArray(size)
+        var position = 0
+        fun writeVarInt(value: Int) {
+            var remaining = value
+            while(remaining and 0x7F.inv() != 0) {
+                result[position++] = ((remaining and 0x7F) or 0x80).toByte()
+                remaining = remaining ushr 7
+            }
+            result[position++] = remaining.toByte()
+        }
+        writeVarInt(array.size)
+        encoded.forEach {
+            writeVarInt(it.size)
+            it.copyInto(result, position)
+            position += it.size
+        }
+        return result
+    }
+
+    private fun getVarIntSize(value: Int): Int {
+        var size = 1
+        var remaining = value ushr 7
+        while(remaining != 0) {
+            size++
+            remaining = remaining ushr 7
+        }
+        return size
+    }
+
+}
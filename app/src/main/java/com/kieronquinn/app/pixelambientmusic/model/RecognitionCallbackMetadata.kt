@@ -6,5 +6,11 @@ import kotlinx.parcelize.Parcelize
 @Parcelize
 data class RecognitionCallbackMetadata(
     val recognitionSource: RecognitionSource,
-    val includeAudio: Boolean
+    val includeAudio: Boolean,
+    /**
+     *  ID of the stream (source and whether audio is included) this callback stays registered
+     *  for, as passed to `cancelRecognition`. Individual requests on the stream are told apart by
+     *  the app. Appended last so older readers that only read the first two fields are unaffected.
+     */
+    val requestId: String? = null
 ): Parcelable
\ No newline at end of file
@@ -0,0 +1,111 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+
+class AudioStreamPipelineTest {
+
+    companion object {
+        private const val CHUNK_SIZE = 64
+    }
+
+    /**
+     *  Fake source returning [chunks] full chunks, each filled with its index, then an error
+     */
+    private class FakeSource(private val chunks: Int): AudioStreamPipeline.AudioSource {
+
+        var reads = 0
+            private set
+
+        override fun read(buffer: ByteArray, size: Int): Int {
+            if(reads >= chunks) return -1
+            buffer.fill(reads.toByte(), 0, size)
+            reads++
+            return size
+        }
+
+    }
+
+    private class SlowOutputStream(private val delay: Long): OutputStream() {
+
+        val bytes = ByteArrayOutputStream()
+
+        override fun write(b: Int) {
+            bytes.write(b)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            Thread.sleep(delay)
+            bytes.write(b, off, len)
+        }
+
+    }
+
+    private fun expectedBytes(chunks: IntRange): ByteArray {
+        return chunks.flatMap { chunk -> List(CHUNK_SIZE) { chunk.toByte() } }.toByteArray()
+    }
+
+    @Test
+    fun writesAllCapturedAudioInOrder() {
+        val pipeline = AudioStreamPipeline(CHUNK_SIZE)
+        val outputStream = ByteArrayOutputStream()
+        pipeline.run(FakeSource(20), outputStream, Int.MAX_VALUE, 0) { true }
+        assertArrayEquals(expectedBytes(0 until 20), outputStream.toByteArray())
+        assertEquals(20L, pipeline.stats.capturedChunks)
+        assertEquals(20L, pipeline.stats.writtenChunks)
+    }
+
+    @Test
+    fun slowConsumerStallsCaptureWithoutDroppingAudio() {
+        val pipeline = AudioStreamPipeline(CHUNK_SIZE, chunkCount = 2)
+        val outputStream = SlowOutputStream(5)
+        pipeline.run(FakeSource(20), outputStream, Int.MAX_VALUE, 0) { true }
+        assertArrayEquals(expectedBytes(0 until 20), outputStream.bytes.toByteArray())
+        assertEquals(20L, pipeline.stats.writtenChunks)
+        assertTrue(pipeline.stats.stalledReads > 0)
+    }
+
+    @Test
+    fun ignoredBytesAreSkipped() {
+        val pipeline = AudioStreamPipeline(CHUNK_SIZE)
+        val outputStream = ByteArrayOutputStream()
+        pipeline.run(FakeSource(4), outputStream, Int.MAX_VALUE, CHUNK_SIZE + 16) { true }
+        val expected = expectedBytes(1 until 4).copyOfRange(16, CHUNK_SIZE * 3)
+        assertArrayEquals(expected, outputStream.toByteArray())
+    }
+
+    @Test
+    fun captureStopsAtMaxBytes() {
+        val pipeline = AudioStreamPipeline(CHUNK_SIZE)
+        val source = FakeSource(20)
+        val outputStream = ByteArrayOutputStream()
+        pipeline.run(source, outputStream, CHUNK_SIZE * 5, 0) { true }
+        assertEquals(5, source.reads)
+        assertArrayEquals(expectedBytes(0 until 5), outputStream.toByteArray())
+    }
+
+    @Test
+    fun captureStopsWhenShouldContinueReturnsFalse() {
+        val pipeline = AudioStreamPipeline(CHUNK_SIZE)
+        val source = FakeSource(20)
+        pipeline.run(source, ByteArrayOutputStream(), Int.MAX_VALUE, 0) { source.reads < 3 }
+        assertEquals(3, source.reads)
+    }
+
+    @Test(expected = IOException::class)
+    fun writeFailureStopsCapture() {
+        val pipeline = AudioStreamPipeline(CHUNK_SIZE)
+        val outputStream = object: OutputStream() {
+            override fun write(b: Int) {
+                throw IOException("Pipe closed")
+            }
+        }
+        pipeline.run(FakeSource(Int.MAX_VALUE), outputStream, Int.MAX_VALUE, 0) { true }
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class CaptureBufferPoolTest {
+
+    @Test
+    fun buffersAreReusedPerSession() {
+        val pool = CaptureBufferPool()
+        val shorts = pool.getShorts(1, 128)
+        val bytes = pool.getBytes(1, 256)
+        assertSame(shorts, pool.getShorts(1, 128))
+        assertSame(shorts, pool.getShorts(1, 64))
+        assertSame(bytes, pool.getBytes(1, 256))
+        assertNotSame(shorts, pool.getShorts(2, 128))
+        assertEquals(3L, pool.allocations)
+        assertEquals(3L, pool.reuses)
+    }
+
+    @Test
+    fun largerSizeReallocates() {
+        val pool = CaptureBufferPool()
+        val shorts = pool.getShorts(1, 128)
+        val larger = pool.getShorts(1, 256)
+        assertNotSame(shorts, larger)
+        assertSame(larger, pool.getShorts(1, 128))
+    }
+
+    @Test
+    fun releaseDropsOnlyThatSession() {
+        val pool = CaptureBufferPool()
+        val first = pool.getShorts(1, 128)
+        val second = pool.getShorts(2, 128)
+        pool.release(1)
+        assertNotSame(first, pool.getShorts(1, 128))
+        assertSame(second, pool.getShorts(2, 128))
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.PI
+import kotlin.math.sin
+import kotlin.random.Random
+
+class MusicPresenceDetectorTest {
+
+    companion object {
+        private const val SAMPLE_RATE = 16000
+        //Samples in the 1.5s window the Shizuku service checks
+        private const val WINDOW_SIZE = SAMPLE_RATE * 3 / 2
+        private const val MUSIC_PRESENCE_THRESHOLD = 0.1f
+
+        //A major scale, one note every 125ms
+        private val MELODY = floatArrayOf(261.6f, 293.7f, 329.6f, 349.2f, 392f, 440f, 493.9f, 523.3f)
+        private const val NOTE_SAMPLES = SAMPLE_RATE / 8
+    }
+
+    private val detector = MusicPresenceDetector()
+
+    private fun createSamples(sample: (Int) -> Float): ShortArray {
+        return ShortArray(WINDOW_SIZE) { (sample(it).coerceIn(-1f, 1f) * 32767).toInt().toShort() }
+    }
+
+    private fun tone(frequency: Float, index: Int, amplitude: Float = 0.3f): Float {
+        return (amplitude * sin(2 * PI * frequency * index / SAMPLE_RATE)).toFloat()
+    }
+
+    private fun melody(): ShortArray {
+        return createSamples {
+            val note = MELODY[(it / NOTE_SAMPLES) % MELODY.size]
+            //Root and fifth, so each note has more than one partial
+            tone(note, it) + tone(note * 1.5f, it, 0.15f)
+        }
+    }
+
+    @Test
+    fun silenceScoresZero() {
+        val result = detector.analyse(ShortArray(WINDOW_SIZE), WINDOW_SIZE)
+        assertEquals(0f, result.activeFrameRatio)
+        assertEquals(0f, result.score)
+    }
+
+    @Test
+    fun windowShorterThanAFrameScoresZero() {
+        val result = detector.analyse(melody(), MusicPresenceDetector.DEFAULT_FRAME_SIZE - 1)
+        assertEquals(0f, result.score)
+    }
+
+    @Test
+    fun whiteNoiseIsNotMusic() {
+        val random = Random(0)
+        val result = detector.analyse(createSamples { random.nextFloat() * 0.6f - 0.3f }, WINDOW_SIZE)
+        assertEquals(1f, result.activeFrameRatio)
+        assertTrue("Tonality ${result.tonality}", result.tonality < 0.5f)
+        assertTrue("Score ${result.score}", result.score < MUSIC_PRESENCE_THRESHOLD)
+    }
+
+    @Test
+    fun constantHumIsNotMusic() {
+        val result = detector.analyse(createSamples { tone(50f, it) }, WINDOW_SIZE)
+        assertEquals(1f, result.activeFrameRatio)
+        assertTrue("Score ${result.score}", result.score < MUSIC_PRESENCE_THRESHOLD)
+    }
+
+    @Test
+    fun constantToneIsNotMusic() {
+        val result = detector.analyse(createSamples { tone(440f, it) }, WINDOW_SIZE)
+        assertTrue("Tonality ${result.tonality}", result.tonality > 0.9f)
+        assertTrue("Score ${result.score}", result.score < MUSIC_PRESENCE_THRESHOLD)
+    }
+
+    @Test
+    fun melodyIsMusic() {
+        val result = detector.analyse(melody(), WINDOW_SIZE)
+        assertEquals(1f, result.activeFrameRatio)
+        assertTrue("Score ${result.score}", result.score >= MUSIC_PRESENCE_THRESHOLD)
+    }
+
+    @Test
+    fun melodyOverNoiseIsMusic() {
+        val random = Random(0)
+        val samples = melody()
+        for(i in samples.indices) {
+            samples[i] = (samples[i] + (random.nextFloat() * 0.2f - 0.1f) * 32767).toInt().toShort()
+        }
+        val result = detector.analyse(samples, WINDOW_SIZE)
+        assertTrue("Score ${result.score}", result.score >= MUSIC_PRESENCE_THRESHOLD)
+    }
+
+    @Test
+    fun quietMelodyIsPartlySilence() {
+        //Half of the window is silent, so only half the frames count as active
+        val samples = melody().also { it.fill(0, 0, WINDOW_SIZE / 2) }
+        val result = detector.analyse(samples, WINDOW_SIZE)
+        assertEquals(0.5f, result.activeFrameRatio, 0.05f)
+    }
+
+    @Test
+    fun resultsDoNotDependOnPreviousCalls() {
+        val samples = melody()
+        val first = detector.analyse(samples, WINDOW_SIZE)
+        detector.analyse(createSamples { tone(50f, it) }, WINDOW_SIZE)
+        assertEquals(first, detector.analyse(samples, WINDOW_SIZE))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun frameSizeMustBeAPowerOfTwo() {
+        MusicPresenceDetector(500)
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+import com.kieronquinn.app.ambientmusicmod.components.audio.SharedAudioRingBufferTest.Companion.createSamples
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.toByteArray
+import com.sun.management.ThreadMXBean
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+
+/**
+ *  Compares moving audio through [SharedAudioRingBuffer] against the legacy `AudioRecord_read`
+ *  path, which allocated a new short array for every read and converted it to a new byte array
+ *  before copying it out. Copying from a fixed chunk of samples stands in for the recording's
+ *  read on both sides. Prints the throughput and bytes allocated by both rather than asserting
+ *  on them, which vary too much between machines. Only run with `-Pbenchmark`.
+ */
+class SharedAudioRingBufferBenchmark {
+
+    companion object {
+        private const val CHUNK_SAMPLES = 1_024
+        private const val CHUNKS = 20_000
+    }
+
+    private data class Result(val megabytesPerSecond: Double, val allocatedBytes: Long) {
+        override fun toString(): String {
+            return "${"%.1f".format(megabytesPerSecond)}MB/s, " +
+                    "${"%.1f".format(allocatedBytes / 1_000_000.0)}MB allocated"
+        }
+    }
+
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as ThreadMXBean
+    private val samples = createSamples(CHUNK_SAMPLES)
+    private var checksum = 0L
+
+    @Test
+    fun benchmarkAgainstLegacyPath() {
+        //Warm up both paths first
+        ringPath(SharedAudioRingBuffer(ByteBuffer.allocate(CHUNK_SAMPLES * 2 * 8)))
+        legacyPath()
+        val ring = SharedAudioRingBuffer(ByteBuffer.allocate(CHUNK_SAMPLES * 2 * 8))
+        var readCursor = 0L
+        val ringResult = measure { readCursor = ringPath(ring) }
+        assertEquals(CHUNKS * CHUNK_SAMPLES * 2L, readCursor)
+        val legacyResult = measure { legacyPath() }
+        println("Ring buffer: $ringResult, legacy: $legacyResult ($checksum)")
+    }
+
+    /**
+     *  Reads into a reused short array, as the capture buffer pool does, then writes it into the
+     *  ring and reads it back out as the app does. Returns the final read cursor.
+     */
+    private fun ringPath(ring: SharedAudioRingBuffer): Long {
+        val outShorts = ShortArray(CHUNK_SAMPLES)
+        val audioData = ByteArray(CHUNK_SAMPLES * 2)
+        var readCursor = 0L
+        repeat(CHUNKS) {
+            samples.copyInto(outShorts)
+            val writeCursor = ring.write(outShorts, 0, outShorts.size)
+            readCursor += ring.read(readCursor, writeCursor, audioData, 0, audioData.size)
+            checksum += audioData[it % audioData.size]
+        }
+        assertArrayEquals(samples.toByteArray(), audioData)
+        return readCursor
+    }
+
+    private fun legacyPath() {
+        val audioData = ByteArray(CHUNK_SAMPLES * 2)
+        repeat(CHUNKS) {
+            val outShorts = ShortArray(CHUNK_SAMPLES)
+            samples.copyInto(outShorts)
+            outShorts.toByteArray().copyInto(audioData)
+            checksum += audioData[it % audioData.size]
+        }
+        assertArrayEquals(samples.toByteArray(), audioData)
+    }
+
+    /**
+     *  Times [block] and counts the bytes it allocates, which it must do on the calling thread
+     */
+    private fun measure(block: () -> Unit): Result {
+        val threadId = Thread.currentThread().id
+        val startBytes = threadMXBean.getThreadAllocatedBytes(threadId)
+        val start = System.nanoTime()
+        block()
+        val seconds = (System.nanoTime() - start) / 1_000_000_000.0
+        val megabytes = CHUNKS * CHUNK_SAMPLES * 2 / 1_000_000.0
+        return Result(
+            megabytes / seconds, threadMXBean.getThreadAllocatedBytes(threadId) - startBytes
+        )
+    }
+
+}
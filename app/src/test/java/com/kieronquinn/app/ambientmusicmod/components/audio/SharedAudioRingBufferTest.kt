@@ -0,0 +1,75 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio
+
+import com.kieronquinn.app.ambientmusicmod.utils.extensions.toByteArray
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class SharedAudioRingBufferTest {
+
+    companion object {
+        fun createSamples(size: Int, start: Int = 0): ShortArray {
+            return ShortArray(size) { ((start + it) * 257).toShort() }
+        }
+    }
+
+    @Test
+    fun readMatchesLegacyLayout() {
+        val ring = SharedAudioRingBuffer(ByteBuffer.allocate(64))
+        val samples = createSamples(16)
+        val writeCursor = ring.write(samples, 0, samples.size)
+        val audioData = ByteArray(32)
+        val read = ring.read(0, writeCursor, audioData, 0, audioData.size)
+        assertEquals(32, read)
+        assertArrayEquals(samples.toByteArray(), audioData)
+    }
+
+    @Test
+    fun readWrapsAroundTheEndOfTheRing() {
+        val ring = SharedAudioRingBuffer(ByteBuffer.allocate(16))
+        ring.write(createSamples(6), 0, 6)
+        val samples = createSamples(6, 6)
+        val writeCursor = ring.write(samples, 0, samples.size)
+        assertEquals(24L, writeCursor)
+        val audioData = ByteArray(12)
+        val read = ring.read(12, writeCursor, audioData, 0, audioData.size)
+        assertEquals(12, read)
+        assertArrayEquals(samples.toByteArray(), audioData)
+    }
+
+    @Test
+    fun readIsLimitedToSize() {
+        val ring = SharedAudioRingBuffer(ByteBuffer.allocate(64))
+        val samples = createSamples(16)
+        val writeCursor = ring.write(samples, 0, samples.size)
+        val audioData = ByteArray(8)
+        assertEquals(8, ring.read(0, writeCursor, audioData, 0, audioData.size))
+        assertArrayEquals(samples.copyOfRange(0, 4).toByteArray(), audioData)
+        assertEquals(8, ring.read(8, writeCursor, audioData, 0, audioData.size))
+        assertArrayEquals(samples.copyOfRange(4, 8).toByteArray(), audioData)
+    }
+
+    @Test
+    fun readSkipsDataOverwrittenByTheWriter() {
+        val ring = SharedAudioRingBuffer(ByteBuffer.allocate(16))
+        val samples = createSamples(12)
+        val writeCursor = ring.write(samples, 0, samples.size)
+        val audioData = ByteArray(24)
+        //The reader is at 0, but only the last 16 bytes are still in the ring
+        val read = ring.read(0, writeCursor, audioData, 0, audioData.size)
+        assertEquals(24, read)
+        assertArrayEquals(
+            samples.copyOfRange(4, 12).toByteArray(),
+            audioData.copyOfRange(0, 16)
+        )
+    }
+
+    @Test
+    fun readWithNothingAvailableReturnsZero() {
+        val ring = SharedAudioRingBuffer(ByteBuffer.allocate(16))
+        val writeCursor = ring.write(createSamples(4), 0, 4)
+        assertEquals(0, ring.read(writeCursor, writeCursor, ByteArray(8), 0, 8))
+    }
+
+}
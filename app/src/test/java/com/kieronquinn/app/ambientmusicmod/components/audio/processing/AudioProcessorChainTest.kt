@@ -0,0 +1,84 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.PI
+import kotlin.math.sin
+
+class AudioProcessorChainTest {
+
+    companion object {
+        private const val SAMPLE_RATE = 16000
+        //Size of a half second read, as used by the Shizuku service
+        private const val READ_SIZE = SAMPLE_RATE / 2
+        private const val BENCHMARK_SECONDS = 600
+        private const val MIN_REALTIME_FACTOR = 100
+    }
+
+    private class RecordingProcessor(
+        private val name: String,
+        private val calls: MutableList<String>
+    ): AudioProcessor {
+
+        override fun process(samples: ShortArray, offset: Int, size: Int) {
+            calls.add(name)
+        }
+
+        override fun reset() {
+            calls.add("reset $name")
+        }
+
+    }
+
+    @Test
+    fun processorsRunInOrder() {
+        val calls = ArrayList<String>()
+        val chain = AudioProcessorChain(
+            RecordingProcessor("first", calls), RecordingProcessor("second", calls)
+        )
+        chain.process(ShortArray(4), 0, 4)
+        chain.reset()
+        assertEquals(listOf("first", "second", "reset first", "reset second"), calls)
+    }
+
+    @Test
+    fun stagesAreAppliedInTurn() {
+        val samples = shortArrayOf(100, -100)
+        AudioProcessorChain(GainProcessor(2f), GainProcessor(3f)).process(samples, 0, 2)
+        assertArrayEquals(shortArrayOf(600, -600), samples)
+    }
+
+    /**
+     *  Runs the chain used by the Shizuku service over ten minutes of audio, which must process
+     *  at least [MIN_REALTIME_FACTOR] times faster than real time.
+     */
+    @Test
+    fun benchmarkProcessingChain() {
+        val chain = AudioProcessorChain(
+            DcRemovalProcessor(), AutomaticGainProcessor(), SoftLimiterProcessor()
+        )
+        val source = ShortArray(READ_SIZE) {
+            (2000 + 6000 * sin(2 * PI * 440 * it / SAMPLE_RATE)).toInt().toShort()
+        }
+        val samples = ShortArray(READ_SIZE)
+        val reads = BENCHMARK_SECONDS * SAMPLE_RATE / READ_SIZE
+        //Warm up the JIT first
+        repeat(reads / 10) {
+            source.copyInto(samples)
+            chain.process(samples, 0, samples.size)
+        }
+        val start = System.nanoTime()
+        repeat(reads) {
+            source.copyInto(samples)
+            chain.process(samples, 0, samples.size)
+        }
+        val seconds = (System.nanoTime() - start) / 1_000_000_000.0
+        val realtimeFactor = BENCHMARK_SECONDS / seconds
+        println("Processed ${BENCHMARK_SECONDS}s of audio in ${"%.3f".format(seconds)}s, " +
+                "${realtimeFactor.toInt()}x real time")
+        assertTrue("Only ${realtimeFactor.toInt()}x real time", realtimeFactor >= MIN_REALTIME_FACTOR)
+    }
+
+}
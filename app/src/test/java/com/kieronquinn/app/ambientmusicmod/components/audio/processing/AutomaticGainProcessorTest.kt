@@ -0,0 +1,105 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.PI
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+class AutomaticGainProcessorTest {
+
+    companion object {
+        private const val SAMPLE_RATE = 16000
+        private const val BLOCK_SIZE = 1600
+        private const val TARGET_LEVEL = 0.1f
+    }
+
+    private fun sine(amplitude: Float, size: Int = BLOCK_SIZE): ShortArray {
+        return ShortArray(size) {
+            (amplitude * 32767 * sin(2 * PI * 440 * it / SAMPLE_RATE)).toInt().toShort()
+        }
+    }
+
+    //Below the noise floor
+    private fun createNoise(): ShortArray {
+        return ShortArray(BLOCK_SIZE) { if(it % 2 == 0) 10 else -10 }
+    }
+
+    private fun ShortArray.level(): Float {
+        var energy = 0.0
+        forEach { energy += (it / 32768.0) * (it / 32768.0) }
+        return sqrt(energy / size).toFloat()
+    }
+
+    private fun AutomaticGainProcessor.processBlocks(amplitude: Float, blocks: Int): ShortArray {
+        var block = sine(amplitude)
+        repeat(blocks) {
+            block = sine(amplitude)
+            process(block, 0, block.size)
+        }
+        return block
+    }
+
+    @Test
+    fun quietAudioIsRaisedToTheTarget() {
+        val block = AutomaticGainProcessor().processBlocks(0.03f, 40)
+        assertEquals(TARGET_LEVEL, block.level(), 0.005f)
+    }
+
+    @Test
+    fun loudAudioIsLoweredToTheTarget() {
+        val block = AutomaticGainProcessor().processBlocks(0.2f, 40)
+        assertEquals(TARGET_LEVEL, block.level(), 0.005f)
+    }
+
+    @Test
+    fun gainIsLimitedToMinGain() {
+        val input = sine(0.8f)
+        val block = AutomaticGainProcessor(minGain = 0.5f).processBlocks(0.8f, 40)
+        assertEquals(input.level() * 0.5f, block.level(), 0.005f)
+    }
+
+    @Test
+    fun gainIsLimitedToMaxGain() {
+        val input = sine(0.002f)
+        val block = AutomaticGainProcessor(maxGain = 4f).processBlocks(0.002f, 40)
+        assertEquals(input.level() * 4f, block.level(), 0.0005f)
+    }
+
+    @Test
+    fun gainChangesGradually() {
+        val processor = AutomaticGainProcessor()
+        val block = sine(0.03f)
+        processor.process(block, 0, block.size)
+        //The first block only moves part of the way to the target
+        assertTrue(block.level() < TARGET_LEVEL / 2)
+    }
+
+    @Test
+    fun silenceIsNotBoosted() {
+        val processor = AutomaticGainProcessor()
+        processor.processBlocks(0.03f, 40)
+        val first = createNoise()
+        processor.process(first, 0, first.size)
+        var noise = first
+        repeat(40) {
+            noise = createNoise()
+            processor.process(noise, 0, noise.size)
+        }
+        //Gain is held at the level reached for the audio before, rather than raised further
+        assertArrayEquals(first, noise)
+    }
+
+    @Test
+    fun resetRestoresUnityGain() {
+        val processor = AutomaticGainProcessor()
+        processor.processBlocks(0.03f, 40)
+        processor.reset()
+        val noise = createNoise()
+        processor.process(noise, 0, noise.size)
+        assertArrayEquals(createNoise(), noise)
+    }
+
+}
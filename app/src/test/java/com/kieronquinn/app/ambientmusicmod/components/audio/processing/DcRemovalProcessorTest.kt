@@ -0,0 +1,65 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.sin
+
+class DcRemovalProcessorTest {
+
+    companion object {
+        private const val SAMPLE_RATE = 16000
+    }
+
+    private fun sine(frequency: Float, amplitude: Float, offset: Int = 0): ShortArray {
+        return ShortArray(SAMPLE_RATE) {
+            (offset + amplitude * sin(2 * PI * frequency * it / SAMPLE_RATE)).toInt().toShort()
+        }
+    }
+
+    @Test
+    fun offsetIsRemoved() {
+        val samples = ShortArray(SAMPLE_RATE) { 5000 }
+        DcRemovalProcessor().process(samples, 0, samples.size)
+        //Settled after the first fifth of a second
+        for(i in SAMPLE_RATE / 5 until SAMPLE_RATE) {
+            assertTrue("Sample $i is ${samples[i]}", abs(samples[i].toInt()) <= 1)
+        }
+    }
+
+    @Test
+    fun audioIsKeptWhenTheOffsetIsRemoved() {
+        val samples = sine(440f, 8000f, offset = 4000)
+        DcRemovalProcessor().process(samples, 0, samples.size)
+        val settled = samples.copyOfRange(SAMPLE_RATE / 2, SAMPLE_RATE)
+        assertEquals(8000f, settled.max().toFloat(), 200f)
+        assertEquals(-8000f, settled.min().toFloat(), 200f)
+    }
+
+    @Test
+    fun stateIsCarriedBetweenReads() {
+        val whole = sine(440f, 8000f, offset = 4000)
+        val split = whole.copyOf()
+        DcRemovalProcessor().process(whole, 0, whole.size)
+        DcRemovalProcessor().apply {
+            process(split, 0, 1000)
+            process(split, 1000, split.size - 1000)
+        }
+        assertArrayEquals(whole, split)
+    }
+
+    @Test
+    fun resetClearsState() {
+        val first = sine(440f, 8000f, offset = 4000)
+        val second = first.copyOf()
+        val processor = DcRemovalProcessor()
+        processor.process(first, 0, first.size)
+        processor.reset()
+        processor.process(second, 0, second.size)
+        assertArrayEquals(first, second)
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+
+class GainProcessorTest {
+
+    @Test
+    fun gainIsApplied() {
+        val samples = shortArrayOf(0, 100, -100, 1000)
+        GainProcessor(2f).process(samples, 0, samples.size)
+        assertArrayEquals(shortArrayOf(0, 200, -200, 2000), samples)
+    }
+
+    @Test
+    fun gainSaturatesAtBothEnds() {
+        val samples = shortArrayOf(20000, -20000, Short.MAX_VALUE, Short.MIN_VALUE)
+        GainProcessor(4f).process(samples, 0, samples.size)
+        assertArrayEquals(
+            shortArrayOf(Short.MAX_VALUE, Short.MIN_VALUE, Short.MAX_VALUE, Short.MIN_VALUE),
+            samples
+        )
+    }
+
+    @Test
+    fun onlyTheGivenRangeIsProcessed() {
+        val samples = shortArrayOf(100, 100, 100, 100)
+        GainProcessor(0.5f).process(samples, 1, 2)
+        assertArrayEquals(shortArrayOf(100, 50, 50, 100), samples)
+    }
+
+    @Test
+    fun unityGainDoesNothing() {
+        val samples = shortArrayOf(1, -1, Short.MAX_VALUE, Short.MIN_VALUE)
+        GainProcessor(1f).process(samples, 0, samples.size)
+        assertArrayEquals(shortArrayOf(1, -1, Short.MAX_VALUE, Short.MIN_VALUE), samples)
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.kieronquinn.app.ambientmusicmod.components.audio.processing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class SoftLimiterProcessorTest {
+
+    @Test
+    fun samplesBelowTheKneeAreUntouched() {
+        val samples = shortArrayOf(0, 1000, -1000, 26000, -26000)
+        SoftLimiterProcessor().process(samples, 0, samples.size)
+        assertArrayEquals(shortArrayOf(0, 1000, -1000, 26000, -26000), samples)
+    }
+
+    @Test
+    fun samplesAreLimitedToTheCeiling() {
+        val ceiling = 16000f
+        val samples = ShortArray(65536) { (it - 32768).toShort() }
+        SoftLimiterProcessor(ceiling).process(samples, 0, samples.size)
+        samples.forEach {
+            assertTrue("$it is over the ceiling", it in -16000..16000)
+        }
+    }
+
+    @Test
+    fun limitingIsSmoothAndSymmetric() {
+        val samples = ShortArray(65536) { (it - 32768).toShort() }
+        SoftLimiterProcessor().process(samples, 0, samples.size)
+        //Louder input is never quieter after limiting
+        for(i in 1 until samples.size) {
+            assertTrue(samples[i] >= samples[i - 1])
+        }
+        for(i in 1 until 32768) {
+            assertEquals(-samples[32768 + i].toFloat(), samples[32768 - i].toFloat(), 1f)
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.kieronquinn.app.ambientmusicmod.components.musicrecognition
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class SearchAudioStreamerTest {
+
+    companion object {
+        private const val CHUNK_SIZE = 64
+
+        //How long the capture takes to fill a chunk, like a half second AudioRecord read
+        private const val CHUNK_DURATION = 500L
+
+        //How long the fake recognition service takes to return a result once audio arrives
+        private const val RECOGNITION_DELAY = 3000L
+    }
+
+    /**
+     *  Fake capture which, like an `AudioRecord`, blocks until a chunk has been recorded, unless
+     *  it is stopped first, in which case the pending read returns straight away.
+     */
+    private class BlockingCapture: SearchCapture {
+
+        private val stopped = CountDownLatch(1)
+
+        override val bufferSizeInBytes = Int.MAX_VALUE
+
+        @Volatile
+        var isStarted = false
+            private set
+
+        @Volatile
+        var readsAfterStop = 0
+            private set
+
+        override fun start() {
+            isStarted = true
+        }
+
+        override fun read(buffer: ByteArray, size: Int): Int {
+            if(stopped.count == 0L) readsAfterStop++
+            if(stopped.await(CHUNK_DURATION, TimeUnit.MILLISECONDS)) return 0
+            return size
+        }
+
+        override fun stop() {
+            stopped.countDown()
+        }
+
+        override fun release() {
+            stop()
+        }
+
+    }
+
+    /**
+     *  Fake recognition service reading the stream. Once the first audio arrives, it returns a
+     *  result after [RECOGNITION_DELAY], which sets [finished] as the service callback does.
+     */
+    private class FakeRecognitionService(
+        private val finished: SearchFinishedSignal
+    ): OutputStream() {
+
+        @Volatile
+        var resultAt = 0L
+            private set
+
+        @Volatile
+        var bytes = 0
+            private set
+
+        @Volatile
+        var bytesAfterResult = 0
+            private set
+
+        private var hasStarted = false
+
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            bytes += len
+            if(resultAt != 0L) bytesAfterResult += len
+            if(hasStarted) return
+            hasStarted = true
+            Thread {
+                Thread.sleep(RECOGNITION_DELAY)
+                resultAt = System.nanoTime()
+                finished.onFinished()
+            }.start()
+        }
+
+    }
+
+    @Test
+    fun captureStopsAsSoonAsTheResultArrives() {
+        val capture = BlockingCapture()
+        val finished = SearchFinishedSignal()
+        val service = FakeRecognitionService(finished)
+        val stats = SearchAudioStreamer(CHUNK_SIZE)
+            .stream(capture, service, Int.MAX_VALUE, 0, finished) { true }
+        val stoppedAfter = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - service.resultAt)
+        assertTrue(capture.isStarted)
+        //Audio streamed for the whole recognition, until the result
+        assertTrue("$stats", stats.capturedChunks >= RECOGNITION_DELAY / CHUNK_DURATION - 1)
+        assertEquals(stats.writtenChunks * CHUNK_SIZE, service.bytes.toLong())
+        //Without cancelling, capture would carry on until the pending read had filled
+        assertTrue("Stopped ${stoppedAfter}ms after the result", stoppedAfter < CHUNK_DURATION / 2)
+        assertEquals(0, capture.readsAfterStop)
+        assertEquals(0, service.bytesAfterResult)
+        assertTrue(stats.isCancelled)
+    }
+
+    @Test
+    fun resultBeforeStreamingStartsCapturesNothing() {
+        val capture = BlockingCapture()
+        val finished = SearchFinishedSignal()
+        finished.onFinished()
+        val outputStream = ByteArrayOutputStream()
+        val stats = SearchAudioStreamer(CHUNK_SIZE)
+            .stream(capture, outputStream, Int.MAX_VALUE, 0, finished) { true }
+        assertEquals(0L, stats.capturedChunks)
+        assertEquals(0, outputStream.size())
+        assertEquals(0, capture.readsAfterStop)
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepository.AudioContext
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepository.SkipReason
+import kotlinx.coroutines.flow.MutableStateFlow
+
+/**
+ *  Stands in for the audio context repository, reporting a call in progress during any of
+ *  [calls] on the [clock]
+ */
+class FakeAudioContextRepository(
+    private val clock: VirtualClock,
+    private val calls: List<LongRange> = emptyList()
+): AudioContextRepository {
+
+    private val skipCounts = HashMap<SkipReason, Long>()
+
+    override val audioContext = MutableStateFlow(AudioContext())
+
+    override suspend fun getCaptureSkipReason(): SkipReason? {
+        val inCall = calls.any { clock.now in it }
+        audioContext.value = AudioContext(isInCall = inCall)
+        if(!inCall) return null
+        skipCounts[SkipReason.IN_CALL] = (skipCounts[SkipReason.IN_CALL] ?: 0L) + 1
+        return SkipReason.IN_CALL
+    }
+
+    override fun getSkipCounts(): Map<SkipReason, Long> = skipCounts
+
+}
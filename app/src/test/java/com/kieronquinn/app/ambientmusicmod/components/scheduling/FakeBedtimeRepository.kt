@@ -0,0 +1,74 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+import com.kieronquinn.app.ambientmusicmod.repositories.BedtimeRepository
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOf
+import java.time.LocalTime
+
+/**
+ *  Stands in for the bedtime repository, reporting bedtime from the [clock] at each start and end
+ *  time, where the real one waits on workers. Bedtime may run over midnight.
+ */
+class FakeBedtimeRepository(
+    private val clock: VirtualClock,
+    enabled: Boolean = true,
+    private var startTime: LocalTime = LocalTime.of(23, 0),
+    private var endTime: LocalTime = LocalTime.of(7, 0)
+): BedtimeRepository {
+
+    private val enabled = MutableStateFlow(enabled)
+
+    override suspend fun checkTimeAndSyncWorkers() {
+        //No-op, the bedtime flow follows the clock
+    }
+
+    override suspend fun checkTime() {
+        //No-op, the bedtime flow follows the clock
+    }
+
+    override fun isBedtime(): Flow<Boolean> = enabled.flatMapLatest {
+        if(!it) return@flatMapLatest flowOf(false)
+        flow {
+            while(true) {
+                emit(isBedtimeNow())
+                //Wait for the next start or end worker
+                delay(minOf(clock.getNext(startTime), clock.getNext(endTime)) - clock.now + 1)
+            }
+        }
+    }.distinctUntilChanged()
+
+    private fun isBedtimeNow(): Boolean {
+        val time = clock.getTimeOfDay()
+        return if(startTime <= endTime) {
+            time >= startTime && time < endTime
+        }else{
+            time >= startTime || time < endTime
+        }
+    }
+
+    override fun isEnabled() = enabled
+
+    override fun getStartTime() = flowOf(startTime)
+
+    override fun getEndTime() = flowOf(endTime)
+
+    override fun getFormattedTime(time: LocalTime) = time.toString()
+
+    override suspend fun setEnabled(enabled: Boolean) {
+        this.enabled.value = enabled
+    }
+
+    override suspend fun setStartTime(time: Long) {
+        startTime = LocalTime.MIN.plusMinutes(time)
+    }
+
+    override suspend fun setEndTime(time: Long) {
+        endTime = LocalTime.MIN.plusMinutes(time)
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+import com.kieronquinn.app.ambientmusicmod.components.scheduling.FakeRecognitionRepository.Track
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepository.GateResult
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepository.GateStats
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepositoryImpl
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository
+
+/**
+ *  Stands in for the music presence gate, with the real gate's skips and audits but hearing
+ *  music whenever one of [tracks] is playing on the [clock] rather than sampling the microphone
+ */
+class FakeMusicPresenceRepository(
+    private val clock: VirtualClock,
+    private val tracks: List<Track>,
+    private val settings: SettingsRepository
+): MusicPresenceRepository {
+
+    override var consecutiveSkips = 0
+        private set
+
+    private var checks = 0L
+    private var belowThreshold = 0L
+    private var skips = 0L
+    private var audits = 0L
+    private var falseNegatives = 0L
+
+    override fun getStats() = GateStats(checks, skips, audits, falseNegatives)
+
+    override suspend fun checkForMusic(): GateResult {
+        if(!settings.musicPresenceGateEnabled.get()) return GateResult.RECOGNISE
+        checks++
+        if(isPlaying()) {
+            consecutiveSkips = 0
+            return GateResult.RECOGNISE
+        }
+        belowThreshold++
+        if(belowThreshold % MusicPresenceRepositoryImpl.AUDIT_INTERVAL == 0L) {
+            audits++
+            return GateResult.AUDIT
+        }
+        skips++
+        consecutiveSkips++
+        return GateResult.SKIP
+    }
+
+    override suspend fun isMusicPresent() = isPlaying()
+
+    private fun isPlaying(): Boolean {
+        return tracks.any { clock.now in it.start until it.end }
+    }
+
+    override fun onRecognitionResult(state: RecognitionState) {
+        if(state is RecognitionState.Recognised) {
+            consecutiveSkips = 0
+        }
+    }
+
+    override fun onAuditResult(state: RecognitionState) {
+        if(state !is RecognitionState.Recognised) return
+        falseNegatives++
+        onRecognitionResult(state)
+    }
+
+}
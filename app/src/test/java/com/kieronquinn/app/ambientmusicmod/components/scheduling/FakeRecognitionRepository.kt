@@ -0,0 +1,113 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.CacheStats
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.SingleFlightStats
+import com.kieronquinn.app.pixelambientmusic.model.LastRecognisedSong
+import com.kieronquinn.app.pixelambientmusic.model.RecognitionFailure
+import com.kieronquinn.app.pixelambientmusic.model.RecognitionFailureReason
+import com.kieronquinn.app.pixelambientmusic.model.RecognitionMetadata
+import com.kieronquinn.app.pixelambientmusic.model.RecognitionResult
+import com.kieronquinn.app.pixelambientmusic.model.RecognitionSource
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.emptyFlow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOf
+
+/**
+ *  Stands in for the recognition repository, replaying a fixed [tracks] timeline. A recognition
+ *  records for [recordingTime] of the [clock], and matches if one track plays for the whole
+ *  recording. Cacheable requests are answered without recording while the last recognised track
+ *  is still playing.
+ */
+class FakeRecognitionRepository(
+    private val clock: VirtualClock,
+    private val tracks: List<Track>,
+    private val recordingTime: Long = RECORDING_TIME
+): RecognitionRepository {
+
+    companion object {
+        //How long an automatic recognition records for
+        const val RECORDING_TIME = 8_000L
+
+        fun RecognitionState.Recognised.getTrackId(): Int {
+            return recognitionResult.googleId!!.toInt()
+        }
+    }
+
+    data class Track(val id: Int, val start: Long, val end: Long)
+
+    /**
+     *  Recordings run, which is every recognition not answered from the cache
+     */
+    var recordings = 0
+        private set
+
+    private var lastTrack: Track? = null
+    private var cacheHits = 0L
+    private var cacheMisses = 0L
+
+    override val recognitionDialogShowing = flowOf(false)
+    override val recogniseFabClick = emptyFlow<Unit>()
+
+    override fun requestRecognition(
+        includeAudio: Boolean,
+        allowCached: Boolean
+    ): Flow<RecognitionState> = flow {
+        if(allowCached) {
+            val cached = lastTrack?.takeIf { it.end > clock.now }
+            if(cached != null) {
+                cacheHits++
+                emit(cached.toRecognised(RecognitionSource.NNFP))
+                return@flow
+            }
+            cacheMisses++
+        }
+        emitAll(record(RecognitionSource.NNFP))
+    }
+
+    override fun requestOnDemandRecognition() = record(RecognitionSource.ON_DEMAND)
+
+    private fun record(source: RecognitionSource) = flow {
+        recordings++
+        emit(RecognitionState.Recording(source))
+        val start = clock.now
+        delay(recordingTime)
+        val end = clock.now
+        val track = tracks.firstOrNull { it.start <= start && it.end >= end }
+        if(track != null) {
+            lastTrack = track
+            emit(track.toRecognised(source))
+        }else{
+            lastTrack = null
+            val failure = RecognitionFailure(RecognitionFailureReason.NoMatch, source, null)
+            emit(RecognitionState.Failed(failure))
+        }
+    }
+
+    private fun Track.toRecognised(source: RecognitionSource): RecognitionState.Recognised {
+        val result = RecognitionResult(
+            "Track $id", "Artist", source, emptyArray(), id.toString(), null
+        )
+        val metadata = RecognitionMetadata(clock.now, clock.now - start, end - clock.now)
+        return RecognitionState.Recognised(result, metadata)
+    }
+
+    override fun getLatestRecognition() = flowOf<LastRecognisedSong?>(null)
+
+    override fun getSingleFlightStats() = SingleFlightStats(recordings.toLong(), 0L, 0L)
+
+    override fun getCacheStats() = CacheStats(cacheHits, 0L, cacheMisses, 0L)
+
+    override suspend fun onRecogniseFabClicked() {
+        //No-op
+    }
+
+    override suspend fun setRecognitionDialogShowing(showing: Boolean) {
+        //No-op
+    }
+
+}
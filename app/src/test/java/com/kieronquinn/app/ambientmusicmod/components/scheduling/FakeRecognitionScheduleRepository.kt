@@ -0,0 +1,27 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionScheduleRepository
+import java.time.LocalDateTime
+
+/**
+ *  Stands in for the learned schedule, returning a fixed multiplier for the [clock]'s time of the
+ *  week. The time passed in is ignored, since the loop defaults it to the real time.
+ */
+class FakeRecognitionScheduleRepository(
+    private val clock: VirtualClock,
+    private val getMultiplier: (LocalDateTime) -> Float = { 1f }
+): RecognitionScheduleRepository {
+
+    var results = 0
+        private set
+
+    override suspend fun getPeriodMultiplier(time: LocalDateTime): Float {
+        return getMultiplier(clock.getDateTime())
+    }
+
+    override suspend fun onRecognitionResult(state: RecognitionState, time: LocalDateTime) {
+        results++
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+import com.kieronquinn.app.ambientmusicmod.model.lockscreenoverlay.LockscreenOverlayStyle
+import com.kieronquinn.app.ambientmusicmod.repositories.BaseSettingsRepository.AmbientMusicModSetting
+import com.kieronquinn.app.ambientmusicmod.repositories.BaseSettingsRepository.FakeAmbientMusicModSetting
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionScheduleRepository.ScheduleModel
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.LastBackup
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.LockscreenOnTrackClicked
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.OverlayTextColour
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.PeriodicBackupInterval
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.RecognitionBuffer
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.RecognitionPeriod
+import kotlinx.coroutines.flow.MutableStateFlow
+
+/**
+ *  Settings held in memory, with the app's defaults for the recognition loop: a one minute
+ *  adaptive period and a ten second buffer. [RecognitionPeriod.NEVER] disables automatic
+ *  recognition.
+ */
+class FakeSettingsRepository(
+    recognitionPeriod: RecognitionPeriod = RecognitionPeriod.MINUTES_1,
+    recognitionBuffer: RecognitionBuffer = RecognitionBuffer.SECONDS_10,
+    recognitionPeriodAdaptive: Boolean = true,
+    musicPresenceGateEnabled: Boolean = false,
+    triggerWhenScreenOn: Boolean = true
+): SettingsRepository {
+
+    override val hasSeenSetup = setting(true)
+    override val recognitionPeriod = setting(recognitionPeriod)
+    override val recognitionPeriodAdaptive = setting(recognitionPeriodAdaptive)
+    override val musicPresenceGateEnabled = setting(musicPresenceGateEnabled)
+    override val recognitionScheduleModel = setting(ScheduleModel())
+    override val recognitionBuffer = setting(recognitionBuffer)
+    override val lockscreenOverlayEnhanced = setting(false)
+    override val lockscreenOverlayStyle = setting(LockscreenOverlayStyle.NEW)
+    override val lockscreenOverlayYPos = setting(0)
+    override val lockscreenOverlayClicked = setting(LockscreenOnTrackClicked.NOTHING)
+    override val lockscreenOverlayColour = setting(OverlayTextColour.AUTOMATIC)
+    override val lockscreenOverlayCustomColour = setting(0)
+    override val lockscreenOverlayShadowEnabled = setting(false)
+    override val lockscreenOwnerInfo = setting(false)
+    override val lockscreenOwnerInfoShowNote = setting(false)
+    override val lockscreenOwnerInfoFallback = setting("")
+    override val onDemandLockscreenEnabled = setting(false)
+    override val recognitionServiceKeepWarmTimeout = setting(0L)
+    override val onDemandPreRollSeconds = setting(0)
+    override val recordingProcessingEnabled = setting(false)
+    override val skipRecognitionDuringPlayback = setting(false)
+    override val triggerWhenScreenOn = setting(triggerWhenScreenOn)
+    override val bedtimeModeEnabled = setting(false)
+    override val bedtimeModeStart = setting(0L)
+    override val bedtimeModeEnd = setting(0L)
+    override val automaticMusicDatabaseUpdates = setting(false)
+    override val hasSetNotificationPermission = setting(true)
+    override val hasSetAccessibilityPermission = setting(true)
+    override val periodicBackupEnabled = setting(false)
+    override val periodicBackupInterval = setting(PeriodicBackupInterval.WEEKLY)
+    override val periodicBackupUri = setting("")
+    override val periodicBackupLastBackup = setting(LastBackup())
+    override val shardsCacheHash = setting("")
+    override val monetColor = setting(0)
+
+    private fun <T> setting(value: T): AmbientMusicModSetting<T> {
+        val flow = MutableStateFlow(value)
+        return FakeAmbientMusicModSetting(flow) { flow.value = it }
+    }
+
+}
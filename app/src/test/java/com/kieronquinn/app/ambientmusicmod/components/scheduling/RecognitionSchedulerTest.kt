@@ -0,0 +1,226 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+import com.kieronquinn.app.ambientmusicmod.components.scheduling.FakeRecognitionRepository.Track
+import com.kieronquinn.app.ambientmusicmod.components.scheduling.RecognitionSimulator.Companion.DAY
+import com.kieronquinn.app.ambientmusicmod.components.scheduling.RecognitionSimulator.Metrics
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepository.SkipReason
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepositoryImpl
+import com.kieronquinn.app.ambientmusicmod.repositories.SettingsRepository.RecognitionPeriod
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+import java.time.LocalDateTime
+import java.time.LocalTime
+import java.util.Random
+
+class RecognitionSchedulerTest {
+
+    companion object {
+        private const val PERIOD = 60_000L
+        private const val BUFFER = 10_000L
+        private const val HOUR = 60 * 60 * 1000L
+
+        //Listening sessions through the day, all outside the default 23:00 to 07:00 bedtime
+        private val SESSIONS = listOf(
+            LocalTime.of(8, 0) to LocalTime.of(9, 0),
+            LocalTime.of(12, 30) to LocalTime.of(13, 15),
+            LocalTime.of(18, 0) to LocalTime.of(22, 30)
+        )
+    }
+
+    @Test
+    fun fixedPeriodIgnoresRemainingTime() {
+        assertEquals(
+            PERIOD + BUFFER,
+            RecognitionScheduler.getNextRecognitionDelay(PERIOD, BUFFER, false, 5_000L, 2f)
+        )
+    }
+
+    @Test
+    fun adaptivePeriodWaitsForTheTrackToEnd() {
+        assertEquals(
+            95_000L + BUFFER,
+            RecognitionScheduler.getNextRecognitionDelay(PERIOD, BUFFER, true, 95_000L, 2f)
+        )
+    }
+
+    @Test
+    fun adaptivePeriodAppliesMultiplierWithoutMatch() {
+        assertEquals(
+            PERIOD * 2 + BUFFER,
+            RecognitionScheduler.getNextRecognitionDelay(PERIOD, BUFFER, true, null, 2f)
+        )
+    }
+
+    @Test
+    fun disabledPeriodHasNoDelay() {
+        assertNull(RecognitionScheduler.getNextRecognitionDelay(null, BUFFER, true, null))
+        assertNull(RecognitionScheduler.getSkippedRecognitionDelay(null, BUFFER, true, 3))
+    }
+
+    @Test
+    fun skippedRecognitionsBackOffUpToFourTimes() {
+        val delays = (1..5).map {
+            RecognitionScheduler.getSkippedRecognitionDelay(PERIOD, BUFFER, true, it)
+        }
+        val base = PERIOD + BUFFER
+        assertEquals(listOf(base, base * 2, base * 4, base * 4, base * 4), delays)
+        assertEquals(base, RecognitionScheduler.getSkippedRecognitionDelay(PERIOD, BUFFER, false, 5))
+    }
+
+    @Test
+    fun adaptiveDayRunsFewerRecognitionsWithoutMissingMoreSongs() = runTest {
+        val fixed = replay(FakeSettingsRepository(recognitionPeriodAdaptive = false))
+        val adaptive = replay(FakeSettingsRepository())
+        assertTrue("$adaptive vs $fixed", adaptive.recognitions < fixed.recognitions)
+        assertTrue("$adaptive vs $fixed", adaptive.wakeups < fixed.wakeups)
+        assertTrue("$adaptive vs $fixed", adaptive.missedSongs <= fixed.missedSongs)
+        //Every wakeup records apart from two in bedtime: the initial trigger at midnight, and the
+        //alarm already pending when bedtime starts
+        assertEquals(adaptive.wakeups - 2, adaptive.recognitions)
+    }
+
+    @Test
+    fun adaptiveOverlayOnlyOutlivesTrackByBuffer() = runTest {
+        val tracks = createDay()
+        val metrics = replay(FakeSettingsRepository(), tracks)
+        val recognisedTracks = tracks.size - metrics.missedSongs
+        val listeningTime = tracks.sumOf { it.end - it.start }
+        assertTrue("$metrics", metrics.staleOverlayTime <= recognisedTracks * BUFFER)
+        //Most of each track is shown, less the recording time before it is recognised
+        assertTrue("$metrics", metrics.overlayVisibleTime > listeningTime * 3 / 4)
+    }
+
+    @Test
+    fun bedtimeStopsRecognitionsOvernight() = runTest {
+        val awake = replay(FakeSettingsRepository(), bedtimeEnabled = false)
+        val asleep = replay(FakeSettingsRepository())
+        //Eight hours of failed checks, each recording and then waiting the period and buffer,
+        //less the wakeup pending when bedtime starts and the immediate one when it ends
+        val overnight = (8 * HOUR / (FakeRecognitionRepository.RECORDING_TIME + PERIOD + BUFFER))
+            .toInt()
+        assertTrue("$awake vs $asleep", awake.wakeups - asleep.wakeups >= overnight - 2)
+        assertEquals(awake.missedSongs, asleep.missedSongs)
+    }
+
+    @Test
+    fun multiplierSpacesOutQuietChecks() = runTest {
+        val normal = replay(FakeSettingsRepository())
+        val quiet = replay(FakeSettingsRepository()) {
+            if(it.hour in 9..17) 2f else 1f
+        }
+        assertTrue("$quiet vs $normal", quiet.recognitions < normal.recognitions)
+        assertEquals(normal.missedSongs, quiet.missedSongs)
+    }
+
+    @Test
+    fun disabledPeriodNeverRecognises() = runTest {
+        val metrics = replay(FakeSettingsRepository(RecognitionPeriod.NEVER))
+        assertEquals(0, metrics.recognitions)
+        assertEquals(0, metrics.wakeups)
+    }
+
+    @Test
+    fun screenOnDuringATrackShowsTheLastResult() = runTest {
+        val tracks = createDay()
+        val normal = replay(FakeSettingsRepository(), tracks)
+        //Halfway through every track of the evening, and twice in the quiet afternoon
+        val evening = SESSIONS.last().first.toSecondOfDay() * 1000L
+        val screenOnTimes = tracks.filter { it.start >= evening }.map { (it.start + it.end) / 2 } +
+                listOf(15 * HOUR, 16 * HOUR)
+        val metrics = replay(FakeSettingsRepository(), tracks, screenOnTimes = screenOnTimes)
+        val cacheStats = metrics.cacheStats
+        assertEquals(screenOnTimes.size.toLong(), cacheStats.hits + cacheStats.misses)
+        //Nothing plays in the afternoon, so those screen ons record
+        assertTrue("$metrics", cacheStats.misses >= 2)
+        assertTrue("$metrics", cacheStats.hits >= (screenOnTimes.size - 2) * 3 / 4)
+        //Only a cache miss adds a recording
+        assertTrue("$metrics vs $normal", metrics.recognitions <= normal.recognitions + cacheStats.misses)
+        assertTrue("$metrics vs $normal", metrics.missedSongs <= normal.missedSongs)
+    }
+
+    @Test
+    fun screenOnIsIgnoredWhenDisabled() = runTest {
+        val screenOnTimes = listOf(15 * HOUR, 16 * HOUR)
+        val settings = FakeSettingsRepository(triggerWhenScreenOn = false)
+        val metrics = replay(settings, screenOnTimes = screenOnTimes)
+        assertEquals(0L, metrics.cacheStats.hits + metrics.cacheStats.misses)
+    }
+
+    @Test
+    fun musicGateSkipsQuietChecksAndBacksOff() = runTest {
+        val normal = replay(FakeSettingsRepository())
+        val gated = replay(FakeSettingsRepository(musicPresenceGateEnabled = true))
+        val gateStats = gated.gateStats
+        assertTrue("$gated vs $normal", gated.recognitions < normal.recognitions / 2)
+        assertTrue("$gated vs $normal", gated.wakeups < normal.wakeups)
+        //Every tenth check below the threshold still records, to count missed music
+        val belowThreshold = gateStats.skips + gateStats.audits
+        assertEquals(belowThreshold / MusicPresenceRepositoryImpl.AUDIT_INTERVAL, gateStats.audits)
+        assertEquals(0L, gateStats.falseNegatives)
+        //Quiet hours back off to the longest skip delay
+        assertTrue("$gated", gated.longestDelay >= 4 * (PERIOD + BUFFER))
+        //Backing off may miss the first track of a session, but never more
+        assertTrue("$gated vs $normal", gated.missedSongs <= normal.missedSongs + SESSIONS.size)
+    }
+
+    @Test
+    fun callSkipsCapturesWithoutStoppingTheLoop() = runTest {
+        val tracks = createDay()
+        val call = (19 * HOUR)..(19 * HOUR + HOUR / 2)
+        val normal = replay(FakeSettingsRepository(), tracks)
+        val inCall = replay(FakeSettingsRepository(), tracks, calls = listOf(call))
+        val skips = inCall.skipCounts[SkipReason.IN_CALL] ?: 0L
+        //Skipped checks keep waking at the normal period through the call
+        assertTrue("$inCall", skips >= (HOUR / 2) / (PERIOD + BUFFER) - 1)
+        assertTrue("$inCall vs $normal", inCall.recognitions < normal.recognitions)
+        //Only tracks playing during the call are missed, recognition resumes after it
+        val duringCall = tracks.count { it.end > call.first && it.start < call.last }
+        assertTrue("$inCall vs $normal", inCall.missedSongs > normal.missedSongs)
+        assertTrue(
+            "$inCall vs $normal", inCall.missedSongs <= normal.missedSongs + duringCall
+        )
+    }
+
+    private suspend fun TestScope.replay(
+        settings: FakeSettingsRepository,
+        tracks: List<Track> = createDay(),
+        bedtimeEnabled: Boolean = true,
+        calls: List<LongRange> = emptyList(),
+        screenOnTimes: List<Long> = emptyList(),
+        getMultiplier: (LocalDateTime) -> Float = { 1f }
+    ): Metrics {
+        val clock = VirtualClock(testScheduler)
+        return RecognitionSimulator(
+            clock,
+            settings,
+            FakeBedtimeRepository(clock, bedtimeEnabled),
+            FakeRecognitionRepository(clock, tracks),
+            FakeMusicPresenceRepository(clock, tracks, settings),
+            FakeRecognitionScheduleRepository(clock, getMultiplier),
+            FakeAudioContextRepository(clock, calls),
+            tracks,
+            screenOnTimes
+        ).run(DAY)
+    }
+
+    /**
+     *  Creates a day of back to back tracks in each of [SESSIONS], with short gaps between them
+     */
+    private fun createDay(seed: Long = 0L): List<Track> {
+        val random = Random(seed)
+        val tracks = ArrayList<Track>()
+        SESSIONS.forEach { (start, end) ->
+            var time = start.toSecondOfDay() * 1000L
+            val sessionEnd = end.toSecondOfDay() * 1000L
+            while(time < sessionEnd) {
+                val length = 150_000L + random.nextInt(180_000)
+                tracks.add(Track(tracks.size, time, time + length))
+                time += length + 1_000L + random.nextInt(4_000)
+            }
+        }
+        return tracks
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+import com.kieronquinn.app.ambientmusicmod.components.scheduling.FakeRecognitionRepository.Companion.getTrackId
+import com.kieronquinn.app.ambientmusicmod.components.scheduling.FakeRecognitionRepository.Track
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepository.SkipReason
+import com.kieronquinn.app.ambientmusicmod.repositories.MusicPresenceRepository.GateStats
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionEventRepositoryImpl
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.CacheStats
+import com.kieronquinn.app.ambientmusicmod.repositories.RecognitionRepository.RecognitionState
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.launch
+
+/**
+ *  Runs the foreground service's [RecognitionLoop] against fake repositories on a test
+ *  scheduler's virtual time. The simulator stands in for the rest of the service: its alarm waits
+ *  out each delay the loop asks for and then ticks, screen on events are replayed at
+ *  [screenOnTimes], and the overlay shows each result until its end time or the next failure.
+ *  Nothing waits on real time, so a whole day runs in well under a second.
+ */
+class RecognitionSimulator(
+    private val clock: VirtualClock,
+    private val settings: FakeSettingsRepository,
+    private val bedtime: FakeBedtimeRepository,
+    private val recognition: FakeRecognitionRepository,
+    private val musicPresence: FakeMusicPresenceRepository,
+    private val schedule: FakeRecognitionScheduleRepository,
+    private val audioContext: FakeAudioContextRepository,
+    private val tracks: List<Track>,
+    private val screenOnTimes: List<Long> = emptyList()
+) {
+
+    companion object {
+        const val DAY = 24 * 60 * 60 * 1000L
+    }
+
+    /**
+     *  @param recognitions Recordings run, automatic or on screen on
+     *  @param wakeups Alarm wakeups, including the immediate ones on start and end of bedtime
+     *  @param overlayVisibleTime Time the lockscreen overlay showed a track
+     *  @param staleOverlayTime Part of [overlayVisibleTime] after the shown track had ended
+     *  @param missedSongs Tracks that played but were never recognised
+     *  @param longestDelay Longest delay the loop asked the alarm for
+     *  @param gateStats The music presence gate's checks, skips and audits
+     *  @param skipCounts Captures skipped for the audio context, by reason
+     *  @param cacheStats Screen on requests answered from the last recognised track
+     */
+    data class Metrics(
+        val recognitions: Int,
+        val wakeups: Int,
+        val overlayVisibleTime: Long,
+        val staleOverlayTime: Long,
+        val missedSongs: Int,
+        val longestDelay: Long,
+        val gateStats: GateStats,
+        val skipCounts: Map<SkipReason, Long>,
+        val cacheStats: CacheStats
+    )
+
+    private data class Overlay(val track: Track, val start: Long, val end: Long)
+
+    private val recognised = HashSet<Int>()
+    private var overlay: Overlay? = null
+    private var overlayVisibleTime = 0L
+    private var staleOverlayTime = 0L
+    private var wakeups = 0
+    private var longestDelay = 0L
+
+    suspend fun run(duration: Long = DAY): Metrics = coroutineScope {
+        val job = Job(coroutineContext[Job])
+        val scope = CoroutineScope(coroutineContext + job)
+        val ticker = MutableSharedFlow<Unit>()
+        val screenOn = MutableSharedFlow<Unit>()
+        val loop = RecognitionLoop(
+            scope,
+            recognition,
+            settings,
+            bedtime,
+            musicPresence,
+            schedule,
+            audioContext,
+            RecognitionEventRepositoryImpl(),
+            flowOf(true),
+            flowOf(false),
+            screenOn,
+            ticker,
+            { clock.now }
+        )
+        //Subscribe before starting, as the service does, so the initial trigger is scheduled
+        scope.launch {
+            loop.nextRecognitionDelay.collectLatest {
+                longestDelay = maxOf(longestDelay, it)
+                delay(it)
+                wakeups++
+                ticker.emit(Unit)
+            }
+        }
+        scope.launch {
+            loop.recognitionState.collect { onRecognitionState(loop, it) }
+        }
+        scope.launch {
+            screenOnTimes.sorted().forEach {
+                delay((it - clock.now).coerceAtLeast(0L))
+                screenOn.emit(Unit)
+            }
+        }
+        loop.start()
+        delay(duration)
+        job.cancel()
+        hideOverlay(clock.now)
+        Metrics(
+            recognition.recordings,
+            wakeups,
+            overlayVisibleTime,
+            staleOverlayTime,
+            tracks.count { it.start < clock.now && it.id !in recognised },
+            longestDelay,
+            musicPresence.getStats(),
+            audioContext.getSkipCounts(),
+            recognition.getCacheStats()
+        )
+    }
+
+    private suspend fun onRecognitionState(loop: RecognitionLoop, state: RecognitionState?) {
+        when(state) {
+            is RecognitionState.Recognised -> {
+                hideOverlay(clock.now)
+                val track = tracks.first { it.id == state.getTrackId() }
+                recognised.add(track.id)
+                overlay = Overlay(track, clock.now, loop.getEndTime(state))
+            }
+            //The overlay is cleared by failures, but kept during recordings and triggers
+            is RecognitionState.Failed, is RecognitionState.Error -> hideOverlay(clock.now)
+            else -> {
+                //No-op
+            }
+        }
+    }
+
+    /**
+     *  Hides the overlay at [time] or when it timed out, whichever came first
+     */
+    private fun hideOverlay(time: Long) {
+        val current = overlay ?: return
+        val hiddenAt = time.coerceIn(current.start, current.end)
+        overlayVisibleTime += hiddenAt - current.start
+        staleOverlayTime += (hiddenAt - current.track.end.coerceAtLeast(current.start))
+            .coerceAtLeast(0L)
+        overlay = null
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.kieronquinn.app.ambientmusicmod.components.scheduling
+
+import kotlinx.coroutines.test.TestCoroutineScheduler
+import java.time.Duration
+import java.time.LocalDateTime
+import java.time.LocalTime
+
+/**
+ *  Simulated time in milliseconds since the clock was created, read from the test [scheduler] so
+ *  it only moves forward as delays in the simulation are skipped. [start] is the wall clock time
+ *  at 0.
+ */
+class VirtualClock(
+    private val scheduler: TestCoroutineScheduler,
+    private val start: LocalDateTime = LocalDateTime.of(2024, 1, 1, 0, 0)
+) {
+
+    private val origin = scheduler.currentTime
+
+    val now
+        get() = scheduler.currentTime - origin
+
+    fun getDateTime(time: Long = now): LocalDateTime {
+        return start.plusNanos(time * 1_000_000L)
+    }
+
+    fun getTimeOfDay(time: Long = now): LocalTime {
+        return getDateTime(time).toLocalTime()
+    }
+
+    /**
+     *  Returns the first time at or after [now] with the given [timeOfDay]
+     */
+    fun getNext(timeOfDay: LocalTime): Long {
+        val today = getDateTime().toLocalDate().atTime(timeOfDay)
+        val next = if(today.isBefore(getDateTime())) today.plusDays(1) else today
+        return now + Duration.between(getDateTime(), next).toMillis()
+    }
+
+}
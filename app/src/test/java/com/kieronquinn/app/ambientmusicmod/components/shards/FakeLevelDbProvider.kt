@@ -0,0 +1,38 @@
+package com.kieronquinn.app.ambientmusicmod.components.shards
+
+import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ *  Stands in for PAM's leveldb provider, serving [shards] by name. Each query blocks for the
+ *  shard's [getLatency] as a real cursor would while PAM reads the shard, and the most queries
+ *  open at once is recorded in [maxOpenQueries].
+ */
+class FakeLevelDbProvider(
+    private val shards: List<List<ShardTrack>>,
+    private val getLatency: (index: Int) -> Long
+) {
+
+    val names = shards.indices.map { "shard_$it" }
+
+    private val openQueries = AtomicInteger(0)
+    private val _maxOpenQueries = AtomicInteger(0)
+
+    val maxOpenQueries
+        get() = _maxOpenQueries.get()
+
+    fun getTracksForShard(name: String, intern: (String) -> String): List<ShardTrack> {
+        val index = names.indexOf(name)
+        val open = openQueries.incrementAndGet()
+        _maxOpenQueries.accumulateAndGet(open, ::maxOf)
+        try {
+            Thread.sleep(getLatency(index))
+            return shards[index].map {
+                it.copy(artist = intern(it.artist), database = it.database?.let(intern))
+            }
+        } finally {
+            openQueries.decrementAndGet()
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.kieronquinn.app.ambientmusicmod.components.shards
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ *  Compares loading shards one at a time, as the tracklist did before, against loading
+ *  [MAX_CONCURRENT_LOADS] at a time through [ShardTrackLoader]. Shards come from a fake provider
+ *  with a per-shard latency, standing in for PAM reading each shard. Only run with `-Pbenchmark`.
+ */
+class ShardTrackLoaderBenchmark {
+
+    companion object {
+        private const val SHARDS = 40
+        private const val TRACKS_PER_SHARD = 10_000
+        //Matches ShardsListRepositoryImpl
+        private const val MAX_CONCURRENT_LOADS = 3
+        //Time PAM takes to open and read a shard, varying between shards
+        private const val MIN_SHARD_LATENCY = 50
+        private const val MAX_SHARD_LATENCY = 250
+    }
+
+    @Test
+    fun benchmarkSequentialAgainstBoundedParallel() = runBlocking(Dispatchers.IO) {
+        val shards = createShards(SHARDS, TRACKS_PER_SHARD)
+        val random = Random(0)
+        val latencies = List(SHARDS) {
+            MIN_SHARD_LATENCY + random.nextInt(MAX_SHARD_LATENCY - MIN_SHARD_LATENCY).toLong()
+        }
+        val provider = FakeLevelDbProvider(shards) { latencies[it] }
+        //Warm up the merge first, without the latency
+        ShardTrackLoader(MAX_CONCURRENT_LOADS) { name, intern ->
+            shards[provider.names.indexOf(name)].onEach { intern(it.artist) }
+        }.load(provider.names).build()
+        var sequential = 0
+        var parallel = 0
+        val sequentialTime = measure {
+            sequential = ShardTrackLoader(1, provider::getTracksForShard)
+                .load(provider.names).build().size
+        }
+        val parallelTime = measure {
+            parallel = ShardTrackLoader(MAX_CONCURRENT_LOADS, provider::getTracksForShard)
+                .load(provider.names).build().size
+        }
+        assertEquals(sequential, parallel)
+        //The latency alone makes the sequential load at least this long
+        assertTrue(sequentialTime * 1000 >= latencies.sum())
+        println("Loaded $SHARDS shards of $TRACKS_PER_SHARD tracks with " +
+                "${latencies.sum()}ms total latency, " +
+                "sequential: ${"%.1f".format(sequentialTime * 1000)}ms, " +
+                "$MAX_CONCURRENT_LOADS at once: ${"%.1f".format(parallelTime * 1000)}ms")
+    }
+
+    private suspend fun measure(block: suspend () -> Unit): Double {
+        val start = System.nanoTime()
+        block()
+        return (System.nanoTime() - start) / 1_000_000_000.0
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.kieronquinn.app.ambientmusicmod.components.shards
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.Collections
+import java.util.Random
+
+class ShardTrackLoaderTest {
+
+    companion object {
+        private const val SHARD_COUNT = 12
+        private const val TRACKS_PER_SHARD = 500
+        private const val MAX_CONCURRENT_LOADS = 3
+    }
+
+    @Test
+    fun matchesLegacyMergeWhateverOrderShardsArrive() = runBlocking(Dispatchers.IO) {
+        val shards = createShards(SHARD_COUNT, TRACKS_PER_SHARD)
+        val random = Random(0)
+        val latencies = List(SHARD_COUNT) { random.nextInt(50).toLong() }
+        val provider = FakeLevelDbProvider(shards) { latencies[it] }
+        val merged = ShardTrackLoader(MAX_CONCURRENT_LOADS, provider::getTracksForShard)
+            .load(provider.names)
+            .build()
+        val legacy = shards.legacyMerge()
+        assertEquals(legacy.size, merged.size)
+        legacy.zip(merged).forEach { (expected, actual) ->
+            assertEquals(expected, actual)
+            assertEquals(expected.database, actual.database)
+        }
+    }
+
+    @Test
+    fun neverLoadsMoreThanTheLimitAtOnce() = runBlocking(Dispatchers.IO) {
+        val provider = FakeLevelDbProvider(createShards(SHARD_COUNT, TRACKS_PER_SHARD)) { 20L }
+        ShardTrackLoader(MAX_CONCURRENT_LOADS, provider::getTracksForShard).load(provider.names)
+        assertEquals(MAX_CONCURRENT_LOADS, provider.maxOpenQueries)
+    }
+
+    @Test
+    fun reportsEachShardAsItLoads() = runBlocking(Dispatchers.IO) {
+        val provider = FakeLevelDbProvider(createShards(SHARD_COUNT, TRACKS_PER_SHARD)) {
+            //Later shards finish first
+            (SHARD_COUNT - it) * 5L
+        }
+        val progress = Collections.synchronizedList(ArrayList<Pair<Int, String>>())
+        ShardTrackLoader(MAX_CONCURRENT_LOADS, provider::getTracksForShard)
+            .load(provider.names) { loaded, name -> progress.add(loaded to name) }
+        assertEquals((1..SHARD_COUNT).toList(), progress.map { it.first })
+        assertEquals(provider.names.toSet(), progress.map { it.second }.toSet())
+    }
+
+}
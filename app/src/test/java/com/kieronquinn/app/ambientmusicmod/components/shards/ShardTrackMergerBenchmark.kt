@@ -0,0 +1,63 @@
+package com.kieronquinn.app.ambientmusicmod.components.shards
+
+import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import com.sun.management.ThreadMXBean
+
+/**
+ *  Compares merging with [ShardTrackMerger] against the legacy merge it replaced, on a full
+ *  size tracklist. Prints the time and bytes allocated by both rather than asserting on them,
+ *  which vary too much between machines. Only run with `-Pbenchmark`.
+ */
+class ShardTrackMergerBenchmark {
+
+    companion object {
+        private const val SHARDS = 40
+        private const val TRACKS_PER_SHARD = 10_000
+    }
+
+    private data class Result(val seconds: Double, val allocatedBytes: Long) {
+        override fun toString(): String {
+            return "${"%.1f".format(seconds * 1000)}ms, " +
+                    "${"%.1f".format(allocatedBytes / 1_000_000.0)}MB allocated"
+        }
+    }
+
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as ThreadMXBean
+
+    @Test
+    fun benchmarkAgainstLegacyMerge() {
+        val shards = createShards(SHARDS, TRACKS_PER_SHARD)
+        //Warm up both paths first
+        shards.legacyMerge()
+        mergeAll(shards)
+        var legacy: List<ShardTrack> = emptyList()
+        var merged: List<ShardTrack> = emptyList()
+        val legacyResult = measure { legacy = shards.legacyMerge() }
+        val mergerResult = measure { merged = mergeAll(shards) }
+        assertEquals(legacy.size, merged.size)
+        println("Merged ${shards.sumOf { it.size }} tracks to ${merged.size}, " +
+                "merger: $mergerResult, legacy: $legacyResult")
+    }
+
+    private fun mergeAll(shards: List<List<ShardTrack>>): List<ShardTrack> {
+        val merger = ShardTrackMerger()
+        shards.forEachIndexed { index, tracks -> merger.add(index, tracks) }
+        return merger.build()
+    }
+
+    /**
+     *  Times [block] and counts the bytes it allocates, which it must do on the calling thread
+     */
+    private fun measure(block: () -> Unit): Result {
+        val threadId = Thread.currentThread().id
+        val startBytes = threadMXBean.getThreadAllocatedBytes(threadId)
+        val start = System.nanoTime()
+        block()
+        val seconds = (System.nanoTime() - start) / 1_000_000_000.0
+        return Result(seconds, threadMXBean.getThreadAllocatedBytes(threadId) - startBytes)
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.kieronquinn.app.ambientmusicmod.components.shards
+
+import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
+import com.kieronquinn.app.ambientmusicmod.repositories.ShardsRepository.ShardCountry.Companion.CORE_SHARED_FILENAME
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.Random
+
+class ShardTrackMergerTest {
+
+    companion object {
+        private const val SHARD_COUNT = 12
+        private const val TRACKS_PER_SHARD = 2_000
+    }
+
+    @Test
+    fun matchesLegacyMergeInListedOrder() {
+        val shards = createShards(SHARD_COUNT, TRACKS_PER_SHARD)
+        val merger = ShardTrackMerger()
+        shards.forEachIndexed { index, tracks -> merger.add(index, tracks) }
+        assertTracksEqual(shards.legacyMerge(), merger.build())
+    }
+
+    @Test
+    fun matchesLegacyMergeInAnyOrder() {
+        val shards = createShards(SHARD_COUNT, TRACKS_PER_SHARD)
+        val merger = ShardTrackMerger()
+        shards.indices.shuffled(Random(1)).forEach { merger.add(it, shards[it]) }
+        assertTracksEqual(shards.legacyMerge(), merger.build())
+    }
+
+    @Test
+    fun matchesLegacyMergeWhenAddedConcurrently() {
+        val shards = createShards(SHARD_COUNT, TRACKS_PER_SHARD)
+        val merger = ShardTrackMerger()
+        //Shards are loaded in parallel and added as each finishes
+        shards.indices.map {
+            Thread { merger.add(it, shards[it].map { track -> track.internedIn(merger) }) }
+        }.onEach { it.start() }.forEach { it.join() }
+        assertTracksEqual(shards.legacyMerge(), merger.build())
+    }
+
+    @Test
+    fun matchesLegacyMergeWhenGrowingPastExpectedSize() {
+        val shards = createShards(SHARD_COUNT, TRACKS_PER_SHARD)
+        val merger = ShardTrackMerger(expectedTracks = 4)
+        shards.forEachIndexed { index, tracks -> merger.add(index, tracks) }
+        assertTracksEqual(shards.legacyMerge(), merger.build())
+    }
+
+    @Test
+    fun singleTrackIsReturnedAsIs() {
+        val track = createTrack("1", "Song", "Artist", arrayOf("a", "b"), "shard_1")
+        val merger = ShardTrackMerger()
+        merger.add(0, listOf(track))
+        assertSame(track, merger.build().single())
+    }
+
+    @Test
+    fun singleTrackDropsDuplicatePlayers() {
+        val track = createTrack("1", "Song", "Artist", arrayOf("a", "b", "a"), "shard_1")
+        val merger = ShardTrackMerger()
+        merger.add(0, listOf(track))
+        assertArrayEquals(arrayOf("a", "b"), merger.build().single().playerUrls)
+    }
+
+    @Test
+    fun prefersTrackNotFromCoreShard() {
+        val core = createTrack("1", "Song", "Artist", arrayOf("a"), CORE_SHARED_FILENAME)
+        val country = createTrack("2", "Song", "Artist", arrayOf("b"), "shard_gb")
+        val merger = ShardTrackMerger()
+        merger.add(1, listOf(country))
+        merger.add(0, listOf(core))
+        val merged = merger.build().single()
+        assertEquals("2", merged.id)
+        assertEquals("shard_gb", merged.database)
+        //Players are still in shard order
+        assertArrayEquals(arrayOf("a", "b"), merged.playerUrls)
+    }
+
+    @Test
+    fun linearTrackKeepsItsDbId() {
+        val shard = createTrack("1", "Song", "Artist", arrayOf("a"), "shard_gb")
+        val linear = createTrack("2", "Song", "Artist", arrayOf("b"), null, isLinear = true)
+        val merger = ShardTrackMerger()
+        merger.add(0, listOf(shard))
+        merger.add(1, listOf(linear))
+        val merged = merger.build().single()
+        assertEquals("db_2", merged.dbId)
+        assertEquals("1", merged.id)
+        assertTrue(merged.isLinear)
+    }
+
+    @Test
+    fun separatorInNameDoesNotMergeTracks() {
+        //The legacy merge keyed groups on "name:artist", so these two were wrongly merged
+        val first = createTrack("1", "Song:Part", "Artist", arrayOf("a"), "shard_gb")
+        val second = createTrack("2", "Song", "Part:Artist", arrayOf("b"), "shard_gb")
+        val merger = ShardTrackMerger()
+        merger.add(0, listOf(first, second))
+        assertEquals(2, merger.build().size)
+        assertEquals(1, listOf(listOf(first, second)).legacyMerge().size)
+    }
+
+    @Test
+    fun internSharesInstances() {
+        val merger = ShardTrackMerger()
+        val first = merger.intern(String(charArrayOf('a', 'b')))
+        val second = merger.intern(String(charArrayOf('a', 'b')))
+        assertSame(first, second)
+    }
+
+    private fun assertTracksEqual(expected: List<ShardTrack>, actual: List<ShardTrack>) {
+        assertEquals(expected.size, actual.size)
+        expected.zip(actual).forEach { (expectedTrack, actualTrack) ->
+            //ShardTrack's equals doesn't compare the database
+            assertEquals(expectedTrack, actualTrack)
+            assertEquals(expectedTrack.database, actualTrack.database)
+        }
+    }
+
+    private fun ShardTrack.internedIn(merger: ShardTrackMerger): ShardTrack {
+        return copy(artist = merger.intern(artist), database = database?.let { merger.intern(it) })
+    }
+
+}
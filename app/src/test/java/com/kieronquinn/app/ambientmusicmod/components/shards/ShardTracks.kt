@@ -0,0 +1,78 @@
+package com.kieronquinn.app.ambientmusicmod.components.shards
+
+import com.kieronquinn.app.ambientmusicmod.model.shards.ShardTrack
+import com.kieronquinn.app.ambientmusicmod.repositories.ShardsRepository.ShardCountry.Companion.CORE_SHARED_FILENAME
+import java.util.Random
+
+/**
+ *  The merge [ShardTrackMerger] replaced, kept here to check the two give the same result
+ */
+fun List<List<ShardTrack>>.legacyMerge(): List<ShardTrack> {
+    return flatten().groupBy {
+        "${it.trackName}:${it.artist}"
+    }.map {
+        it.value.createBest()
+    }.distinctBy {
+        it.sharedName()
+    }
+}
+
+private fun List<ShardTrack>.createBest(): ShardTrack {
+    val preferred = firstOrNull { it.database != CORE_SHARED_FILENAME } ?: first()
+    val linear = firstOrNull { it.isLinear }
+    return ShardTrack(
+        linear?.dbId ?: preferred.dbId,
+        preferred.id,
+        preferred.trackName,
+        preferred.artist,
+        preferred.googleId,
+        map { it.playerUrls.toList() }.flatten().distinct().toTypedArray(),
+        preferred.album,
+        preferred.year,
+        any { it.isLinear },
+        preferred.database
+    )
+}
+
+/**
+ *  Creates shards whose tracks overlap, as the core and country shards do: most tracks appear
+ *  in more than one shard, some more than once in a shard, and a few are on-demand tracks.
+ *  The first shard is the core shard.
+ */
+fun createShards(count: Int, tracksPerShard: Int): List<List<ShardTrack>> {
+    val random = Random(0)
+    val distinctTracks = count * tracksPerShard / 3
+    val players = Array(8) { "player_$it" }
+    var id = 0
+    return (0 until count).map { shard ->
+        val database = if(shard == 0) CORE_SHARED_FILENAME else "shard_$shard"
+        List(tracksPerShard) {
+            val track = random.nextInt(distinctTracks)
+            val trackPlayers = Array(1 + random.nextInt(3)) {
+                players[random.nextInt(players.size)]
+            }
+            createTrack(
+                (id++).toString(),
+                "Song $track",
+                "Artist ${track % 500}",
+                trackPlayers,
+                database,
+                isLinear = random.nextInt(20) == 0
+            )
+        }
+    }
+}
+
+fun createTrack(
+    id: String,
+    trackName: String,
+    artist: String,
+    playerUrls: Array<String>,
+    database: String?,
+    isLinear: Boolean = false
+): ShardTrack {
+    return ShardTrack(
+        "db_$id", id, trackName, artist, "google_$id", playerUrls, "Album", 2020, isLinear,
+        database
+    )
+}
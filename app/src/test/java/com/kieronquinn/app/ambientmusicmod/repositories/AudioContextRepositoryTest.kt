@@ -0,0 +1,59 @@
+package com.kieronquinn.app.ambientmusicmod.repositories
+
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepositoryImpl.Companion.getOwnUids
+import com.kieronquinn.app.ambientmusicmod.repositories.AudioContextRepositoryImpl.Companion.isOtherAppRecording
+import org.junit.Assert.*
+import org.junit.Test
+
+class AudioContextRepositoryTest {
+
+    companion object {
+        private const val APP_UID = 10_150
+        private const val PAM_UID = 10_098
+        private const val OTHER_APP_UID = 10_200
+        private const val SHELL_UID = 2000
+        private const val ROOT_UID = 0
+
+        private const val AUDIO_SOURCE_MIC = 1
+        private const val AUDIO_SOURCE_HOTWORD = 1999
+    }
+
+    private val ownUids = getOwnUids(APP_UID, PAM_UID)
+
+    @Test
+    fun shizukuServiceRecordingsAreOurOwn() {
+        //The proxy, pre-roll and shared recordings run in the Shizuku service as shell or root
+        assertFalse(isOtherAppRecording(SHELL_UID, AUDIO_SOURCE_HOTWORD, ownUids))
+        assertFalse(isOtherAppRecording(ROOT_UID, AUDIO_SOURCE_HOTWORD, ownUids))
+        assertFalse(isOtherAppRecording(SHELL_UID, AUDIO_SOURCE_MIC, ownUids))
+    }
+
+    @Test
+    fun appAndPamRecordingsAreOurOwn() {
+        assertFalse(isOtherAppRecording(APP_UID, AUDIO_SOURCE_MIC, ownUids))
+        assertFalse(isOtherAppRecording(PAM_UID, AUDIO_SOURCE_HOTWORD, ownUids))
+    }
+
+    @Test
+    fun otherAppRecordingIsDetected() {
+        assertTrue(isOtherAppRecording(OTHER_APP_UID, AUDIO_SOURCE_MIC, ownUids))
+        //Another app with hotword access is still another app when its UID is visible
+        assertTrue(isOtherAppRecording(OTHER_APP_UID, AUDIO_SOURCE_HOTWORD, ownUids))
+    }
+
+    @Test
+    fun hiddenUidFallsBackToTheAudioSource() {
+        assertFalse(isOtherAppRecording(-1, AUDIO_SOURCE_HOTWORD, ownUids))
+        assertFalse(isOtherAppRecording(null, AUDIO_SOURCE_HOTWORD, ownUids))
+        assertTrue(isOtherAppRecording(-1, AUDIO_SOURCE_MIC, ownUids))
+        assertTrue(isOtherAppRecording(null, AUDIO_SOURCE_MIC, ownUids))
+    }
+
+    @Test
+    fun missingPamIsNotAnOwnUid() {
+        val uids = getOwnUids(APP_UID, null)
+        assertEquals(setOf(APP_UID, SHELL_UID, ROOT_UID), uids)
+        assertTrue(isOtherAppRecording(PAM_UID, AUDIO_SOURCE_MIC, uids))
+    }
+
+}
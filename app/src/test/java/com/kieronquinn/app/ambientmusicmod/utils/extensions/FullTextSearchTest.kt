@@ -0,0 +1,76 @@
+package com.kieronquinn.app.ambientmusicmod.utils.extensions
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class FullTextSearchTest {
+
+    @Test
+    fun splitsOnSpacesAndLowercases() {
+        assertEquals(listOf("daft", "punk"), "Daft Punk".toSearchTokens())
+    }
+
+    @Test
+    fun blankSearchHasNoTokens() {
+        assertEquals(emptyList<String>(), "".toSearchTokens())
+        assertEquals(emptyList<String>(), "   ".toSearchTokens())
+        assertEquals(emptyList<String>(), "\"*-()".toSearchTokens())
+    }
+
+    @Test
+    fun dropsQuerySyntax() {
+        //Quotes, operators, column filters and wildcards must not reach the match query
+        assertEquals(
+            listOf("artist", "abba", "or", "queen", "near", "x"),
+            "artist:\"ABBA\" OR queen* NEAR(x)".toSearchTokens()
+        )
+        assertEquals(listOf("ac", "dc"), "AC/DC".toSearchTokens())
+        assertEquals(listOf("don", "t", "stop"), "Don't - stop!".toSearchTokens())
+    }
+
+    @Test
+    fun keepsLettersFromOtherScripts() {
+        assertEquals(listOf("björk"), "Björk".toSearchTokens())
+        assertEquals(listOf("坂本龍一"), "坂本龍一".toSearchTokens())
+        assertEquals(listOf("café", "del", "mar"), "Café del Mar".toSearchTokens())
+        assertEquals(listOf("блестящие"), "Блестящие".toSearchTokens())
+    }
+
+    @Test
+    fun keepsCombiningMarksAndDigits() {
+        //e followed by a combining acute accent stays one token
+        assertEquals(listOf("cafe\u0301", "22"), "Cafe\u0301 22".toSearchTokens())
+        assertEquals(listOf("blink", "182"), "blink-182".toSearchTokens())
+    }
+
+    @Test
+    fun matchQueryPrefixesEveryToken() {
+        assertEquals("daft* punk*", listOf("daft", "punk").toMatchQuery())
+    }
+
+    @Test
+    fun matchQueryFiltersColumn() {
+        assertEquals(
+            "track_name:one* track_name:more*",
+            listOf("one", "more").toMatchQuery("track_name")
+        )
+        assertEquals("artist:abba*", listOf("abba").toMatchQuery("artist"))
+    }
+
+    @Test
+    fun emptyTokensGiveEmptyQuery() {
+        assertEquals("", emptyList<String>().toMatchQuery())
+        assertEquals("", emptyList<String>().toMatchQuery("artist"))
+    }
+
+    @Test
+    fun searchBuildsOnlyPrefixTerms() {
+        val query = "  Café del \"Mar\" * ".toSearchTokens().toMatchQuery()
+        assertEquals("café* del* mar*", query)
+        //Every term is a bare word with a single trailing wildcard
+        query.split(" ").forEach {
+            assertTrue(it, it.matches("[\\p{L}\\p{M}\\p{N}]+\\*".toRegex()))
+        }
+    }
+
+}
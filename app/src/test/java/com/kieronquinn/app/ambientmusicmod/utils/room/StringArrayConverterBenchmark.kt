@@ -0,0 +1,91 @@
+package com.kieronquinn.app.ambientmusicmod.utils.room
+
+import com.google.gson.Gson
+import com.google.gson.reflect.TypeToken
+import com.sun.management.ThreadMXBean
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.util.Random
+
+/**
+ *  Compares decoding a full tracklist's player URLs with [StringArrayConverter] against the Gson
+ *  converter it replaced, which stored them as JSON. Prints the time and bytes allocated by both
+ *  rather than asserting on them, which vary too much between machines. Only run with
+ *  `-Pbenchmark`.
+ */
+class StringArrayConverterBenchmark {
+
+    companion object {
+        private const val ROWS = 100_000
+        private const val ITERATIONS = 5
+    }
+
+    private data class Result(val seconds: Double, val allocatedBytes: Long) {
+        override fun toString(): String {
+            return "${"%.1f".format(seconds * 1000)}ms, " +
+                    "${"%.1f".format(allocatedBytes / 1_000_000.0)}MB allocated"
+        }
+    }
+
+    private val gson = Gson()
+    private val arrayType = object: TypeToken<Array<String>>(){}.type
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as ThreadMXBean
+
+    @Test
+    fun benchmarkAgainstGson() {
+        val rows = createRows()
+        val json = rows.map { gson.toJson(it) }
+        val blobs = rows.map { StringArrayConverter.fromArray(it) }
+        //Warm up both paths first, checking they decode the same
+        json.zip(blobs).forEach { (json, blob) ->
+            assertArrayEquals(gsonFromString(json), StringArrayConverter.fromBytes(blob))
+        }
+        val gsonResult = measure { json.forEach { gsonFromString(it) } }
+        val blobResult = measure { blobs.forEach { StringArrayConverter.fromBytes(it) } }
+        println("Decoded $ROWS rows x$ITERATIONS, blob: $blobResult, gson: $gsonResult " +
+                "(stored ${blobs.sumOf { it.size }} bytes vs ${json.sumOf { it.length }} chars)")
+    }
+
+    /**
+     *  The decode the removed `GsonConverter` ran for each row
+     */
+    private fun gsonFromString(value: String): Array<String> {
+        return gson.fromJson(value, arrayType)
+    }
+
+    /**
+     *  One to three player URLs per row, as the shards have
+     */
+    private fun createRows(): List<Array<String>> {
+        val random = Random(0)
+        return List(ROWS) {
+            Array(1 + random.nextInt(3)) {
+                when(random.nextInt(3)) {
+                    0 -> "https://open.spotify.com/track/${randomId(random, 22)}"
+                    1 -> "https://music.youtube.com/watch?v=${randomId(random, 11)}"
+                    else -> "https://www.deezer.com/track/${random.nextInt(Int.MAX_VALUE)}"
+                }
+            }
+        }
+    }
+
+    private fun randomId(random: Random, length: Int): String {
+        val characters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"
+        return String(CharArray(length) { characters[random.nextInt(characters.length)] })
+    }
+
+    /**
+     *  Times [ITERATIONS] runs of [block] and counts the bytes they allocate, which they must do
+     *  on the calling thread
+     */
+    private fun measure(block: () -> Unit): Result {
+        val threadId = Thread.currentThread().id
+        val startBytes = threadMXBean.getThreadAllocatedBytes(threadId)
+        val start = System.nanoTime()
+        repeat(ITERATIONS) { block() }
+        val seconds = (System.nanoTime() - start) / 1_000_000_000.0
+        return Result(seconds, threadMXBean.getThreadAllocatedBytes(threadId) - startBytes)
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.kieronquinn.app.ambientmusicmod.utils.room
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class StringArrayConverterTest {
+
+    @Test
+    fun roundTripsPlayerUrls() {
+        val urls = arrayOf(
+            "https://open.spotify.com/track/4uLU6hMCjMI75M1A2tKUQC",
+            "https://music.youtube.com/watch?v=dQw4w9WgXcQ",
+            ""
+        )
+        assertArrayEquals(urls, roundTrip(urls))
+    }
+
+    @Test
+    fun roundTripsMultiByteCharacters() {
+        val strings = arrayOf("Björk", "坂本龍一", "Beyoncé 🐝", "Ω")
+        assertArrayEquals(strings, roundTrip(strings))
+    }
+
+    @Test
+    fun emptyArrayIsOneByte() {
+        val bytes = StringArrayConverter.fromArray(emptyArray())
+        assertArrayEquals(byteArrayOf(0), bytes)
+        assertEquals(0, StringArrayConverter.fromBytes(bytes).size)
+    }
+
+    @Test
+    fun emptyBlobIsEmptyArray() {
+        assertEquals(0, StringArrayConverter.fromBytes(ByteArray(0)).size)
+    }
+
+    @Test
+    fun arrayOfEmptyStrings() {
+        val strings = arrayOf("", "", "")
+        val bytes = StringArrayConverter.fromArray(strings)
+        assertArrayEquals(byteArrayOf(3, 0, 0, 0), bytes)
+        assertArrayEquals(strings, StringArrayConverter.fromBytes(bytes))
+    }
+
+    @Test
+    fun lengthsPastOneByteUseMultiByteVarInts() {
+        //127 fits in one varint byte, 128 needs two and 16,384 needs three
+        listOf(127, 128, 300, 16_383, 16_384, 70_000).forEach { length ->
+            val string = "a".repeat(length)
+            val bytes = StringArrayConverter.fromArray(arrayOf(string))
+            val varIntSize = when {
+                length < 128 -> 1
+                length < 16_384 -> 2
+                else -> 3
+            }
+            assertEquals(1 + varIntSize + length, bytes.size)
+            assertEquals(string, StringArrayConverter.fromBytes(bytes).single())
+        }
+    }
+
+    @Test
+    fun multiByteVarIntLayout() {
+        val bytes = StringArrayConverter.fromArray(arrayOf("a".repeat(300)))
+        //300 is 0b10_0101100, written low seven bits first with the continuation bit set
+        assertEquals(1.toByte(), bytes[0])
+        assertEquals(0xAC.toByte(), bytes[1])
+        assertEquals(0x02.toByte(), bytes[2])
+    }
+
+    @Test
+    fun countPastOneByteUsesMultiByteVarInt() {
+        val strings = Array(200) { "player_$it" }
+        val bytes = StringArrayConverter.fromArray(strings)
+        assertEquals(0xC8.toByte(), bytes[0])
+        assertEquals(0x01.toByte(), bytes[1])
+        assertArrayEquals(strings, StringArrayConverter.fromBytes(bytes))
+    }
+
+    @Test
+    fun lengthIsInBytesNotCharacters() {
+        //Two characters, each three bytes in UTF-8
+        val bytes = StringArrayConverter.fromArray(arrayOf("龍一"))
+        assertEquals(6.toByte(), bytes[1])
+        assertEquals(1 + 1 + 6, bytes.size)
+    }
+
+    private fun roundTrip(array: Array<String>): Array<String> {
+        return StringArrayConverter.fromBytes(StringArrayConverter.fromArray(array))
+    }
+
+}